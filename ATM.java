@@ -64,6 +64,52 @@ public abstract class ATM
      */
     public static final int MSG_RESPONSE = 8;
     
+    /**
+     * PROTOCOL
+     * UPDATE REQUEST with a capability bitfield, client-to-server.
+     * Like UPDATE REQUEST, followed by an 8-bit bitfield of CAP_* flags
+     * announcing which optional protocol features the client supports.
+     */
+    public static final int MSG_UPDATE_REQUEST_EX = 9;
+    
+    /**
+     * PROTOCOL
+     * UPDATE DELTA, server-to-client. Sent instead of an UPDATE to a
+     * client announcing CAP_DELTA, carrying only the language strings
+     * that changed since the version the client has.
+     */
+    public static final int MSG_UPDATE_DELTA = 10;
+    
+    /**
+     * PROTOCOL
+     * UPDATE DEFLATE, server-to-client. Sent instead of an UPDATE to a
+     * client announcing CAP_DEFLATE, carrying the language file
+     * compressed with java.util.zip.Deflater (zlib format).
+     */
+    public static final int MSG_UPDATE_DEFLATE = 11;
+    
+    /**
+     * PROTOCOL
+     * Capability bitfield, bit 0 indicates that the client accepts an
+     * UPDATE at any time between two server replies, not only in reply
+     * to its own UPDATE REQUEST.
+     */
+    public static final int CAP_PUSH = 1;
+    
+    /**
+     * PROTOCOL
+     * Capability bitfield, bit 1 indicates that the client accepts an
+     * UPDATE DELTA wherever it accepts an UPDATE.
+     */
+    public static final int CAP_DELTA = 2;
+    
+    /**
+     * PROTOCOL
+     * Capability bitfield, bit 2 indicates that the client accepts an
+     * UPDATE DEFLATE wherever it accepts an UPDATE.
+     */
+    public static final int CAP_DEFLATE = 4;
+    
     /**
      * PROTOCOL
      * Type bitfield, bit 0 is reserved
@@ -0,0 +1,259 @@
+import java.io.*;
+import java.net.*;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ATMBenchmark compares the session execution modes of ATMServer by
+ * running an in-process server in each mode and connecting a large
+ * number of simulated ATM terminals to it.
+ * 
+ * Every terminal logs in and then repeatedly asks for its balance for
+ * a fixed amount of time. For each mode the benchmark reports how long
+ * it took to connect and log in all terminals, the number of completed
+ * balance requests per second and the peak number of live threads in
+ * the JVM (which includes the benchmark's own terminal threads).
+ * 
+ * Usage: java ATMBenchmark [sessions] [seconds] [cardNr] [pinCode]
+ * 
+ * @author Mikael Forsberg <miforsb@kth.se>
+ * @author Robin Gunning <rgunning@kth.se>
+ * @version 20151204T1700
+ */
+public class ATMBenchmark
+{
+    /**
+     * Main entry point for running the benchmark.
+     * 
+     * @param args Command line arguments
+     */
+    public static void main(String[] args) throws Exception
+    {
+        int sessions = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int cardNr = args.length > 2 ? Integer.parseInt(args[2]) : 1234;
+        int pinCode = args.length > 3 ? Integer.parseInt(args[3]) : 4321;
+        
+        Bank bank = new Bank("accounts.yml");
+        LanguageBundleCache languages = new LanguageBundleCache("languages.yml");
+        ATMUpdateBroadcaster broadcaster = new ATMUpdateBroadcaster(languages);
+        
+        run(bank, languages, broadcaster, false, sessions, seconds, cardNr, pinCode);
+        
+        if (ATMServer.virtualThreadsAvailable())
+        {
+            run(bank, languages, broadcaster, true, sessions, seconds, cardNr, pinCode);
+        }
+        else
+        {
+            System.out.println("virtual: skipped, requires Java 21 or later");
+        }
+        
+        System.exit(0);
+    }
+    
+    /**
+     * Run the benchmark against one server mode.
+     * 
+     * @param bank Bank to represent
+     * @param languages Language data to send to clients
+     * @param broadcaster Broadcaster of language data changes
+     * @param virtual Whether the server runs its sessions on virtual threads
+     * @param sessions Number of simulated terminals
+     * @param seconds Duration of the measurement
+     * @param cardNr Card number to log in with
+     * @param pinCode PIN code to log in with
+     */
+    private static void run(final Bank bank, final LanguageBundleCache languages,
+                            final ATMUpdateBroadcaster broadcaster, final boolean virtual, int sessions, int seconds,
+                            final int cardNr, final int pinCode) throws Exception
+    {
+        final ServerSocket serverSocket = new ServerSocket(0, sessions);
+        final int port = serverSocket.getLocalPort();
+        
+        Thread server = new Thread("ATMBenchmarkServer")
+        {
+            public void run()
+            {
+                try
+                {
+                    ATMServer.serve(bank, languages, broadcaster, serverSocket, virtual);
+                }
+                catch (IOException e)
+                {
+                    // the server socket was closed at the end of the run
+                }
+            }
+        };
+        
+        server.setDaemon(true);
+        server.start();
+        
+        final CountDownLatch ready = new CountDownLatch(sessions);
+        final CountDownLatch go = new CountDownLatch(1);
+        final AtomicLong requests = new AtomicLong();
+        final AtomicLong failures = new AtomicLong();
+        final long[] window = new long[2];
+        ArrayList<Thread> terminals = new ArrayList<Thread>();
+        
+        long start = System.nanoTime();
+        
+        for (int i = 0; i < sessions; ++i)
+        {
+            Runnable terminal = new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        terminal(port, cardNr, pinCode, ready, go, window, requests);
+                    }
+                    catch (Exception e)
+                    {
+                        failures.incrementAndGet();
+                        ready.countDown();
+                    }
+                }
+            };
+            
+            if (ATMServer.virtualThreadsAvailable())
+            {
+                terminals.add(ATMServer.startVirtualThread(terminal));
+            }
+            else
+            {
+                Thread t = new Thread(terminal, "ATMBenchmarkTerminal");
+                t.setDaemon(true);
+                t.start();
+                terminals.add(t);
+            }
+        }
+        
+        ready.await();
+        
+        long connected = System.nanoTime();
+        
+        window[0] = System.nanoTime();
+        window[1] = window[0] + seconds * 1000000000L;
+        
+        // publishes window to the terminals
+        go.countDown();
+        
+        for (Thread t : terminals)
+        {
+            t.join();
+        }
+        
+        long elapsed = System.nanoTime() - window[0];
+        
+        serverSocket.close();
+        
+        System.out.println(String.format(
+            "%s: %d sessions (%d failed), login %.1f ms, %.0f requests/s, peak threads %d",
+            virtual ? "virtual" : "thread",
+            sessions,
+            failures.get(),
+            (connected - start) / 1e6,
+            requests.get() / (elapsed / 1e9),
+            java.lang.management.ManagementFactory.getThreadMXBean().getPeakThreadCount()));
+        
+        java.lang.management.ManagementFactory.getThreadMXBean().resetPeakThreadCount();
+    }
+    
+    /**
+     * Simulate a single ATM terminal: log in, wait for all other terminals
+     * to do the same, then request the balance until the measurement
+     * window closes, and log out.
+     * 
+     * @param port Port of the server
+     * @param cardNr Card number to log in with
+     * @param pinCode PIN code to log in with
+     * @param ready Latch counted down once logged in
+     * @param go Latch released once the measurement window is set
+     * @param window Start and end of the measurement window (nanoTime),
+     *        valid once go is released
+     * @param requests Counter of completed balance requests
+     */
+    private static void terminal(int port, int cardNr, int pinCode, CountDownLatch ready,
+                                 CountDownLatch go, long[] window, AtomicLong requests) throws Exception
+    {
+        Socket socket = new Socket("127.0.0.1", port);
+        socket.setTcpNoDelay(true);
+        socket.setSoTimeout(30000);
+        
+        DataInputStream rx = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        DataOutputStream tx = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        byte[] reply = new byte[MAX_REPLY_SIZE];
+        
+        // login: card number, then PIN
+        action(tx, ATM.ACT_LOGIN_CARDNO, cardNr);
+        receive(rx, reply, ATM.MSG_OK, 3);
+        receive(rx, reply, ATM.MSG_MENU_ITEM, 5); // follow-up
+        
+        action(tx, ATM.ACT_LOGIN_PIN, pinCode);
+        receive(rx, reply, ATM.MSG_OK, 3);
+        
+        ready.countDown();
+        go.await();
+        
+        long count = 0;
+        
+        while (System.nanoTime() < window[1])
+        {
+            action(tx, ATM.ACT_BALANCE, 0);
+            receive(rx, reply, ATM.MSG_RESPONSE, 1 + 2 + 4);
+            ++count;
+        }
+        
+        requests.addAndGet(count);
+        
+        action(tx, ATM.ACT_LOGOUT, 0);
+        socket.shutdownOutput();
+        
+        // wait for the server to close its end
+        while (rx.read() >= 0);
+        
+        socket.close();
+    }
+    
+    /**
+     * Send an ACTION to the server.
+     * 
+     * @param tx Stream to write to
+     * @param action_id Action to execute
+     * @param arg Action argument
+     */
+    private static void action(DataOutputStream tx, int action_id, int arg) throws IOException
+    {
+        tx.writeByte(ATM.MSG_ACTION);
+        tx.writeByte(action_id);
+        tx.writeInt(arg);
+        tx.writeShort(0);
+        tx.flush();
+    }
+    
+    /**
+     * Receive a reply of a known size from the server, and check that
+     * it is the expected message.
+     * 
+     * @param rx Stream to read from
+     * @param reply Buffer to read the reply into
+     * @param msg_id Message the reply must be
+     * @param length Size of the reply, including the message id
+     */
+    private static void receive(DataInputStream rx, byte[] reply, int msg_id, int length) throws IOException
+    {
+        rx.readFully(reply, 0, length);
+        
+        if ((reply[0] & 0xff) != msg_id)
+        {
+            throw new IOException("expected message " + msg_id + ", got " + (reply[0] & 0xff));
+        }
+    }
+    
+    /**
+     * Size of the largest reply a terminal receives.
+     */
+    private static final int MAX_REPLY_SIZE = 7;
+}
@@ -7,6 +7,8 @@ import java.util.Stack;
 import java.util.LinkedList;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 /**
  * ATMClient is a client for an ATM server conforming to
@@ -51,6 +53,128 @@ public class ATMClient
         }
     }
     
+    /**
+     * ATMClient.BoundedInputStream reads at most a given number of bytes
+     * from another stream, and leaves that stream open when closed.
+     */
+    private static class BoundedInputStream extends FilterInputStream
+    {
+        /**
+         * Create a new BoundedInputStream.
+         * 
+         * @param in Stream to read from
+         * @param limit Number of bytes to read at most
+         */
+        public BoundedInputStream(InputStream in, long limit)
+        {
+            super(in);
+            
+            remaining = limit;
+        }
+        
+        /**
+         * Overrides FilterInputStream.read()
+         */
+        public int read() throws IOException
+        {
+            if (remaining == 0)
+            {
+                return -1;
+            }
+            
+            int b = in.read();
+            
+            if (b >= 0)
+            {
+                --remaining;
+            }
+            
+            return b;
+        }
+        
+        /**
+         * Overrides FilterInputStream.read()
+         */
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            if (remaining == 0)
+            {
+                return -1;
+            }
+            
+            int numread = in.read(b, off, (int) Math.min(len, remaining));
+            
+            if (numread > 0)
+            {
+                remaining -= numread;
+            }
+            
+            return numread;
+        }
+        
+        /**
+         * Overrides FilterInputStream.skip()
+         */
+        public long skip(long n) throws IOException
+        {
+            long skipped = in.skip(Math.min(n, remaining));
+            
+            remaining -= skipped;
+            
+            return skipped;
+        }
+        
+        /**
+         * Overrides FilterInputStream.available()
+         */
+        public int available() throws IOException
+        {
+            return (int) Math.min(in.available(), remaining);
+        }
+        
+        /**
+         * Overrides FilterInputStream.close(). The underlying stream
+         * stays open.
+         */
+        public void close()
+        {
+            
+        }
+        
+        /**
+         * Overrides FilterInputStream.markSupported()
+         */
+        public boolean markSupported()
+        {
+            return false;
+        }
+        
+        /**
+         * Read and discard the rest of the bytes.
+         */
+        public void drain() throws IOException
+        {
+            byte[] buf = new byte[512];
+            
+            while (read(buf, 0, buf.length) >= 0);
+        }
+        
+        /**
+         * Get the number of bytes left to read.
+         * 
+         * @return Number of bytes left
+         */
+        public long remaining()
+        {
+            return remaining;
+        }
+        
+        /**
+         * Number of bytes left to read.
+         */
+        private long remaining;
+    }
+    
     /**
      * ATMClient.LanguageCollections represents a set of selectable
      * user interface languages.
@@ -124,7 +248,7 @@ public class ATMClient
     {
         /**
          * Create a new MenuItem.
-         *
+         * 
          * @param lang Language to use
          * @param menutext_id Key of string to display in menu
          * @param screentext_id Key of string to display before executing
@@ -248,8 +372,9 @@ public class ATMClient
     public ATMClient(String host, int port) throws UnknownHostException, IOException
     {
         socket = new Socket(host, port);
+        ATMFrameWriter.tune(socket);
         
-        tx = new DataOutputStream(socket.getOutputStream());
+        tx = new ATMFrameWriter(socket.getOutputStream());
         rx = new DataInputStream(socket.getInputStream());
         
         connected = true;
@@ -317,7 +442,11 @@ public class ATMClient
         switch (state.peek())
         {
             case ST_REQUEST_MENU:
-                tryUpdate();
+                if (!subscribed)
+                {
+                    tryUpdate();
+                }
+                
                 menuitems.clear();
                 // debug("requesting menu");
                 state.push(ST_RECV_MENU_NUM_ITEMS);
@@ -422,6 +551,7 @@ public class ATMClient
                 tx.writeByte(menuitem_selected.action);
                 tx.writeInt(arg);
                 tx.writeShort(transaction_counter);
+                tx.flush();
                 
                 // do we need to receive a particular response?
                 if ((menuitem_selected.type & ATM.TYPE_RECV_UINT32) != 0)
@@ -576,7 +706,7 @@ public class ATMClient
      */
     private boolean receive(int msg, boolean drain_on_failure) throws IOException
     {
-        int recv = rx.readUnsignedByte();
+        int recv = receiveMessageId(msg == ATM.MSG_UPDATE);
         
         if (recv == msg)
         {
@@ -603,7 +733,15 @@ public class ATMClient
      */
     private int receive(int[] msg, boolean drain_on_failure) throws IOException
     {
-        int recv = rx.readUnsignedByte();
+        boolean update_expected = false;
+        
+        for (int m : msg)
+        {
+            update_expected |= (m == ATM.MSG_UPDATE || m == ATM.MSG_UPDATE_DELTA
+                                || m == ATM.MSG_UPDATE_DEFLATE);
+        }
+        
+        int recv = receiveMessageId(update_expected);
         
         for (int m : msg)
         {
@@ -621,6 +759,42 @@ public class ATMClient
         return -1;
     }
     
+    /**
+     * Receive the id of the next message, applying any UPDATE, UPDATE DELTA
+     * or UPDATE DEFLATE pushed by the server on the way.
+     * 
+     * @param update_expected Whether the update messages are among the
+     *        messages the caller expects, in which case they are returned
+     *        like any other
+     * @return The positive 8-bit ID of the received message
+     */
+    private int receiveMessageId(boolean update_expected) throws IOException
+    {
+        int recv = rx.readUnsignedByte();
+        
+        while (!update_expected && (recv == ATM.MSG_UPDATE || recv == ATM.MSG_UPDATE_DELTA
+                                    || recv == ATM.MSG_UPDATE_DEFLATE))
+        {
+            // debug("got pushed update");
+            if (recv == ATM.MSG_UPDATE)
+            {
+                receiveUpdate();
+            }
+            else if (recv == ATM.MSG_UPDATE_DELTA)
+            {
+                receiveDelta();
+            }
+            else
+            {
+                receiveDeflated();
+            }
+            
+            recv = rx.readUnsignedByte();
+        }
+        
+        return recv;
+    }
+    
     /**
      * Drain the socket input.
      */
@@ -635,6 +809,7 @@ public class ATMClient
     private void sendMenuRequest() throws IOException
     {
         tx.writeByte(ATM.MSG_MENU_REQUEST);
+        tx.flush();
     }
     
     /**
@@ -683,12 +858,14 @@ public class ATMClient
     }
     
     /**
-     * Try to update the language file.
+     * Try to update the language file. The request announces that the
+     * client accepts pushed updates, so this is only needed once per
+     * connection; later changes are pushed by the server.
      */
     private void tryUpdate() throws IOException
     {
         // send an update request
-        tx.write(ATM.MSG_UPDATE_REQUEST);
+        tx.write(ATM.MSG_UPDATE_REQUEST_EX);
         
         if (!languages.containsKey("_Version") || !languages.get("_Version").containsKey("0"))
         {
@@ -699,83 +876,202 @@ public class ATMClient
             tx.writeInt(Integer.parseInt(languages.get("_Version").get("0")));
         }
         
+        tx.writeByte(ATM.CAP_PUSH | ATM.CAP_DELTA | ATM.CAP_DEFLATE);
+        tx.flush();
+        
         // get a response
-        int recv = receive(new int[]{ATM.MSG_OK, ATM.MSG_UPDATE}, true);
+        int recv = receive(new int[]{ATM.MSG_OK, ATM.MSG_UPDATE, ATM.MSG_UPDATE_DELTA,
+                                     ATM.MSG_UPDATE_DEFLATE}, true);
         
         // do we get an update?
         if (recv == ATM.MSG_UPDATE)
         {
-            // numbytes is sent as a 24-bit unsigned integer
-            int numbytes = rx.readUnsignedByte() << 16 | rx.readUnsignedByte() << 8
-                            | rx.readUnsignedByte();
+            receiveUpdate();
+        }
+        else if (recv == ATM.MSG_UPDATE_DELTA)
+        {
+            receiveDelta();
+        }
+        else if (recv == ATM.MSG_UPDATE_DEFLATE)
+        {
+            receiveDeflated();
+        }
+        else if (recv == ATM.MSG_OK)
+        {
+            // debug("no update available");
+            rx.skipBytes(2);
+        }
+        
+        subscribed = true;
+    }
+    
+    /**
+     * Receive the body of an UPDATE and replace the language file with it.
+     */
+    private void receiveUpdate() throws IOException
+    {
+        // numbytes is sent as a 24-bit unsigned integer
+        int numbytes = rx.readUnsignedByte() << 16 | rx.readUnsignedByte() << 8
+                        | rx.readUnsignedByte();
+        
+        byte[] bytes = new byte[numbytes];
+        
+        // debug("update, numbytes: " + Integer.toString(numbytes));
+        
+        // receive the updated data
+        rx.readFully(bytes);
+        
+        // parse the data
+        String yaml_str = new String(bytes, java.nio.charset.Charset.forName("UTF-8"));
+        
+        loadLanguages(new StringReader(yaml_str));
+    }
+    
+    /**
+     * Receive the body of an UPDATE DEFLATE and replace the language file
+     * with it. The text is inflated straight from the connection while it
+     * is being parsed, so neither the compressed nor the uncompressed text
+     * ever has to be held in memory as a whole.
+     */
+    private void receiveDeflated() throws IOException
+    {
+        // numbytes and rawbytes are sent as 24-bit unsigned integers
+        int numbytes = rx.readUnsignedByte() << 16 | rx.readUnsignedByte() << 8
+                        | rx.readUnsignedByte();
+        int rawbytes = rx.readUnsignedByte() << 16 | rx.readUnsignedByte() << 8
+                        | rx.readUnsignedByte();
+        
+        BoundedInputStream compressed = new BoundedInputStream(rx, numbytes);
+        Inflater inflater = new Inflater();
+        
+        try
+        {
+            InflaterInputStream inflating = new InflaterInputStream(compressed, inflater);
             
-            int numread = 0;
+            // never inflates more than announced
+            BoundedInputStream text = new BoundedInputStream(inflating, rawbytes);
             
-            byte[] bytes = new byte[numbytes];
+            loadLanguages(new InputStreamReader(text, java.nio.charset.Charset.forName("UTF-8")));
             
-            // debug("update, numbytes: " + Integer.toString(numbytes));
+            text.drain();
             
-            // receive the updated data
-            while (numbytes > 0)
+            if (text.remaining() != 0 || inflating.read() >= 0)
             {
-                numread += rx.read(bytes, numread, numbytes);
-                numbytes -= numread;
+                throw new IOException("update did not inflate to " + rawbytes + " bytes");
             }
+        }
+        finally
+        {
+            inflater.end();
+            
+            // keep the connection in step whatever the payload held
+            compressed.drain();
+        }
+    }
+    
+    /**
+     * Parse a complete language file and replace the current one with it.
+     * 
+     * @param yaml Reader of the language file text
+     */
+    private void loadLanguages(Reader yaml)
+    {
+        try
+        {
+            YamlReader reader = new YamlReader(yaml);
+            Map map = (Map) reader.read();
             
-            // parse the data
-            String yaml_str = new String(bytes, java.nio.charset.Charset.forName("UTF-8"));
+            languages.clear();
             
-            try
+            // handle the special "_Version" field
+            Language ver = new Language();
+            ver.put("0", (String) map.get("_Version"));
+            languages.put("_Version", ver);
+            
+            // handle the other languages, including "_Useful"
+            for (Object o : map.keySet())
             {
-                YamlReader reader = new YamlReader(new StringReader(yaml_str));
-                Map map = (Map) reader.read();
+                String langname = (String) o;
+                
+                if (langname.equals("_Version"))
+                {
+                    continue;
+                }
                 
-                languages.clear();
+                // debug(langname);
                 
-                // handle the special "_Version" field
-                Language ver = new Language();
-                ver.put("0", (String) map.get("_Version"));
-                languages.put("_Version", ver);
+                Map langmap = (Map) map.get(langname);
+                Language lang = new Language();
                 
-                // handle the other languages, including "_Useful"
-                for (Object o : map.keySet())
+                for (Object oo : langmap.keySet())
                 {
-                    String langname = (String) o;
-                    
-                    if (langname.equals("_Version"))
-                    {
-                        continue;
-                    }
-                    
-                    // debug(langname);
-                    
-                    Map langmap = (Map) map.get(langname);
-                    Language lang = new Language();
-                    
-                    for (Object oo : langmap.keySet())
-                    {
-                        lang.put((String) oo, (String) langmap.get(oo));
-                    }
-                    
+                    lang.put((String) oo, (String) langmap.get(oo));
+                }
+                
+                languages.put(langname, lang);
+            }
+            
+            // save the data
+            languages.toYaml("languages-client.yml");
+            current_language = languages.get("English");
+        }
+        catch (Exception e)
+        {
+            System.out.println(e);
+            e.printStackTrace();
+            debug("broken yaml");
+            System.exit(1);
+        }
+    }
+    
+    /**
+     * Receive the body of an UPDATE DELTA and apply it to the language
+     * file in place.
+     */
+    private void receiveDelta() throws IOException
+    {
+        // numbytes is sent as a 24-bit unsigned integer; the entries
+        // carry their own lengths, so it is not needed here
+        rx.skipBytes(3);
+        
+        int version = rx.readInt();
+        int count = rx.readInt();
+        
+        // debug("delta to version " + Integer.toString(version) + ", entries: " + Integer.toString(count));
+        
+        for (int i = 0; i < count; ++i)
+        {
+            String langname = rx.readUTF();
+            String key = rx.readUTF();
+            boolean present = rx.readBoolean();
+            Language lang = languages.get(langname);
+            
+            if (present)
+            {
+                if (lang == null)
+                {
+                    lang = new Language();
                     languages.put(langname, lang);
                 }
                 
-                // save the data
-                languages.toYaml("languages-client.yml");
-                current_language = languages.get("English");
+                lang.put(key, rx.readUTF());
             }
-            catch (Exception e)
+            else if (lang != null)
             {
-                System.out.println(e);
-                e.printStackTrace();
-                debug("broken yaml");
-                System.exit(1);
+                lang.remove(key);
             }
         }
-        else if (recv == ATM.MSG_OK)
+        
+        Language ver = new Language();
+        ver.put("0", Integer.toString(version));
+        languages.put("_Version", ver);
+        
+        // save the data
+        languages.toYaml("languages-client.yml");
+        
+        if (current_language == null)
         {
-            // debug("no update available");
-            rx.skipBytes(2);
+            current_language = languages.get("English");
         }
     }
     
@@ -784,6 +1080,11 @@ public class ATMClient
      */
     private boolean connected = false;
     
+    /**
+     * Has the client asked for language updates to be pushed?
+     */
+    private boolean subscribed = false;
+    
     /**
      * Stack of states for the client state machine.
      */
@@ -815,9 +1116,9 @@ public class ATMClient
     private DataInputStream rx;
     
     /**
-     * Network socket output data stream.
+     * Network socket output frame writer.
      */
-    private DataOutputStream tx;
+    private ATMFrameWriter tx;
     
     /**
      * Set of selectable user interface languages.
@@ -0,0 +1,246 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * ATMFrameWriter assembles protocol messages in a reusable buffer so that
+ * a complete reply (for example MENU NUM ITEMS followed by all its MENU
+ * ITEMs) reaches the socket in a single write instead of one write per
+ * byte.
+ * 
+ * Messages are written with the usual DataOutputStream methods. When the
+ * writer has a target stream, flush() sends everything written since the
+ * previous flush in one go. Without a target stream the buffered frames
+ * are instead handed out with frames(), for callers that write to a
+ * non-blocking channel themselves.
+ * 
+ * Large frames shared between sessions, such as the UPDATE carrying the
+ * language file, are written with writeShared(), which sends them
+ * straight from the shared memory instead of copying them into the
+ * buffer of every session.
+ * 
+ * @author Mikael Forsberg <miforsb@kth.se>
+ * @author Robin Gunning <rgunning@kth.se>
+ * @version 20151204T1700
+ */
+public class ATMFrameWriter extends DataOutputStream
+{
+    /**
+     * ATMFrameWriter.FrameBuffer is a ByteArrayOutputStream whose
+     * contents can be read without copying them.
+     */
+    private static class FrameBuffer extends ByteArrayOutputStream
+    {
+        /**
+         * Create a new FrameBuffer.
+         */
+        public FrameBuffer()
+        {
+            super(INITIAL_CAPACITY);
+        }
+        
+        /**
+         * Get a range of the buffered bytes without copying them.
+         * 
+         * @param from Offset of the first byte of the range
+         * @return Buffer wrapping the buffered bytes from the offset
+         */
+        public ByteBuffer contents(int from)
+        {
+            return ByteBuffer.wrap(buf, from, count - from);
+        }
+        
+        /**
+         * Write the buffered bytes to a stream.
+         * 
+         * @param out Stream to write to
+         */
+        public void drainTo(OutputStream out) throws IOException
+        {
+            out.write(buf, 0, count);
+            count = 0;
+        }
+        
+        /**
+         * Implementation of OutputStream.flush(). Frames are only sent by
+         * the enclosing ATMFrameWriter, never by DataOutputStream.
+         */
+        public void flush()
+        {
+            
+        }
+    }
+    
+    /**
+     * Create a new ATMFrameWriter that sends its frames to a stream.
+     * 
+     * @param target Stream to send frames to, typically a socket stream
+     */
+    public ATMFrameWriter(OutputStream target)
+    {
+        super(new FrameBuffer());
+        
+        this.target = target;
+    }
+    
+    /**
+     * Create a new ATMFrameWriter that only collects frames, to be taken
+     * out with frames().
+     */
+    public ATMFrameWriter()
+    {
+        this(null);
+    }
+    
+    /**
+     * Send everything written since the previous flush to the target
+     * stream in a single write. Does nothing if there is no target stream.
+     */
+    public void flush() throws IOException
+    {
+        FrameBuffer buffer = (FrameBuffer) out;
+        
+        if (target == null || buffer.size() == 0)
+        {
+            return;
+        }
+        
+        buffer.drainTo(target);
+        target.flush();
+    }
+    
+    /**
+     * Write a frame shared with other sessions. With a target stream, the
+     * buffered frames are flushed and the shared frame is written directly
+     * after them. Otherwise a read-only view of the shared frame is queued
+     * after the buffered frames, to be taken out with frames().
+     * 
+     * @param frame Frame to write
+     */
+    public void writeShared(ATMFrames.Frame frame) throws IOException
+    {
+        if (target != null)
+        {
+            flush();
+            frame.writeTo(target);
+            target.flush();
+            return;
+        }
+        
+        ByteBuffer view = frame.asBuffer();
+        
+        seal();
+        segments.add(view);
+        sharedBytes += view.remaining();
+    }
+    
+    /**
+     * Get the number of bytes not yet sent or taken out.
+     * 
+     * @return Number of pending bytes
+     */
+    public int pending()
+    {
+        return sharedBytes + ((FrameBuffer) out).size();
+    }
+    
+    /**
+     * Get the pending frames without copying them, in the order they were
+     * written, ready for a gathering write. The returned buffers are only
+     * valid until reset() is called or more frames are written.
+     * 
+     * @return Buffers wrapping the pending frames
+     */
+    public ByteBuffer[] frames()
+    {
+        seal();
+        
+        return segments.toArray(new ByteBuffer[segments.size()]);
+    }
+    
+    /**
+     * Discard the pending frames, typically after the buffers returned by
+     * frames() have been completely written. The buffer memory is kept for
+     * reuse by the next frames.
+     */
+    public void reset()
+    {
+        ((FrameBuffer) out).reset();
+        segments.clear();
+        sealed = 0;
+        sharedBytes = 0;
+    }
+    
+    /**
+     * Queue the bytes buffered since the last shared frame as a segment
+     * of their own, so that frames written later are kept in order.
+     */
+    private void seal()
+    {
+        FrameBuffer buffer = (FrameBuffer) out;
+        
+        if (buffer.size() > sealed)
+        {
+            segments.add(buffer.contents(sealed));
+            sealed = buffer.size();
+        }
+    }
+    
+    /**
+     * Apply the configured socket options to a client connection socket.
+     * 
+     * Options are read from system properties:
+     * atm.tcpNoDelay (default true) disables Nagle's algorithm, so that a
+     * flushed reply is sent at once instead of waiting for more data;
+     * atm.sendBufferSize and atm.receiveBufferSize set the kernel socket
+     * buffer sizes in bytes (default: left to the operating system).
+     * 
+     * @param socket Socket to configure
+     */
+    public static void tune(Socket socket) throws SocketException
+    {
+        socket.setTcpNoDelay(Boolean.parseBoolean(System.getProperty("atm.tcpNoDelay", "true")));
+        
+        int sendBufferSize = Integer.getInteger("atm.sendBufferSize", 0);
+        int receiveBufferSize = Integer.getInteger("atm.receiveBufferSize", 0);
+        
+        if (sendBufferSize > 0)
+        {
+            socket.setSendBufferSize(sendBufferSize);
+        }
+        
+        if (receiveBufferSize > 0)
+        {
+            socket.setReceiveBufferSize(receiveBufferSize);
+        }
+    }
+    
+    /**
+     * Initial capacity of the frame buffer. Enough for any message except
+     * UPDATE; the buffer grows as needed and keeps its size.
+     */
+    private static final int INITIAL_CAPACITY = 64;
+    
+    /**
+     * Stream frames are sent to, or null if frames are taken out
+     * with frames().
+     */
+    private final OutputStream target;
+    
+    /**
+     * Pending frames queued for frames(), in order: ranges of the buffer
+     * and views of shared frames.
+     */
+    private final ArrayList<ByteBuffer> segments = new ArrayList<ByteBuffer>();
+    
+    /**
+     * Number of buffered bytes already queued in segments.
+     */
+    private int sealed = 0;
+    
+    /**
+     * Number of bytes of shared frames queued in segments.
+     */
+    private int sharedBytes = 0;
+}
@@ -0,0 +1,178 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * ATMFrames is a cache of the protocol messages that the server sends
+ * over and over with the exact same contents: the menus and the
+ * follow-up MENU ITEMs of the actions. They only depend on constants in
+ * ATM, so each of them is encoded once, when the class is loaded, and
+ * afterwards copied to the client with a single bulk write.
+ * 
+ * @author Mikael Forsberg <miforsb@kth.se>
+ * @author Robin Gunning <rgunning@kth.se>
+ * @version 20151204T1700
+ */
+public abstract class ATMFrames
+{
+    /**
+     * ATMFrames.Frame is an immutable, pre-encoded sequence of
+     * protocol messages.
+     */
+    public static class Frame
+    {
+        /**
+         * Create a new Frame.
+         * 
+         * @param bytes Encoded messages, not to be modified afterwards
+         */
+        Frame(byte[] bytes)
+        {
+            this.bytes = bytes;
+        }
+        
+        /**
+         * Write the frame to a stream.
+         * 
+         * @param out Stream to write to
+         */
+        public void writeTo(OutputStream out) throws IOException
+        {
+            out.write(bytes);
+        }
+        
+        /**
+         * Get a read-only view of the frame. Views share the memory of
+         * the frame, so any number of them can be written concurrently
+         * without copying the frame.
+         * 
+         * @return Read-only buffer over the encoded messages
+         */
+        public ByteBuffer asBuffer()
+        {
+            return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+        }
+        
+        /**
+         * Encoded messages.
+         */
+        private final byte[] bytes;
+    }
+    
+    /**
+     * Encode a single MENU ITEM.
+     * 
+     * @param out Stream to encode to
+     * @param menutext_id Key of string to display in menu
+     * @param text_id Key of string to display before executing the action
+     * @param action_id Action ID the client sends when executing
+     * @param type Action type bitfield
+     */
+    private static void menuItem(ByteArrayOutputStream out, int menutext_id, int text_id,
+                                 int action_id, int type)
+    {
+        out.write(ATM.MSG_MENU_ITEM);
+        out.write(menutext_id);
+        out.write(text_id);
+        out.write(action_id);
+        out.write(type);
+    }
+    
+    /**
+     * Encode a follow-up MENU ITEM.
+     * 
+     * @param menutext_id Key of string to display in menu
+     * @param text_id Key of string to display before executing the action
+     * @param action_id Action ID the client sends when executing
+     * @param type Action type bitfield
+     * @return The encoded frame
+     */
+    private static Frame followup(int menutext_id, int text_id, int action_id, int type)
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        
+        menuItem(out, menutext_id, text_id, action_id, type);
+        
+        return new Frame(out.toByteArray());
+    }
+    
+    /**
+     * Encode the menu shown to users who have not logged in.
+     * 
+     * @return The encoded frame
+     */
+    private static Frame unauthenticatedMenu()
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        
+        out.write(ATM.MSG_MENU_NUM_ITEMS);
+        out.write(1);
+        
+        menuItem(out, ATM.S_LOGIN, ATM.S_LOGINTEXT_CARD, ATM.ACT_LOGIN_CARDNO,
+            ATM.TYPE_SND_UINT32 | ATM.TYPE_RECV_FOLLOWUP);
+        
+        return new Frame(out.toByteArray());
+    }
+    
+    /**
+     * Encode the menu shown to users who have logged in.
+     * 
+     * @return The encoded frame
+     */
+    private static Frame authenticatedMenu()
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        
+        out.write(ATM.MSG_MENU_NUM_ITEMS);
+        out.write(4);
+        
+        menuItem(out, ATM.S_BALANCE, ATM.S_BALANCETEXT, ATM.ACT_BALANCE,
+            ATM.TYPE_RECV_UINT32);
+        
+        menuItem(out, ATM.S_DEPOSIT, ATM.S_DEPOSITTEXT, ATM.ACT_DEPOSIT,
+            ATM.TYPE_SND_UINT32 | ATM.TYPE_RECV_FOLLOWUP);
+        
+        menuItem(out, ATM.S_WITHDRAW, ATM.S_WITHDRAWTEXT, ATM.ACT_WITHDRAW,
+            ATM.TYPE_SND_UINT32 | ATM.TYPE_RECV_FOLLOWUP);
+        
+        menuItem(out, ATM.S_LOGOUT, ATM.S_LOGOUTTEXT, ATM.ACT_LOGOUT, 0);
+        
+        return new Frame(out.toByteArray());
+    }
+    
+    /**
+     * MENU NUM ITEMS and MENU ITEMs of the menu shown to users who
+     * have not logged in.
+     */
+    public static final Frame MENU_UNAUTHENTICATED = unauthenticatedMenu();
+    
+    /**
+     * MENU NUM ITEMS and MENU ITEMs of the menu shown to users who
+     * have logged in.
+     */
+    public static final Frame MENU_AUTHENTICATED = authenticatedMenu();
+    
+    /**
+     * Follow-up after a card number has been given: ask for the PIN code.
+     */
+    public static final Frame FOLLOWUP_LOGIN_PIN = followup(
+        ATM.S_LOGIN, ATM.S_LOGINTEXT_PIN, ATM.ACT_LOGIN_PIN, ATM.TYPE_SND_UINT32);
+    
+    /**
+     * Follow-up after a deposit: show the balance.
+     */
+    public static final Frame FOLLOWUP_DEPOSIT_BALANCE = followup(
+        ATM.S_BALANCE, ATM.S_BALANCETEXT, ATM.ACT_BALANCE, ATM.TYPE_RECV_UINT32);
+    
+    /**
+     * Follow-up after a withdraw amount has been given: ask for the OTP.
+     */
+    public static final Frame FOLLOWUP_OTP = followup(
+        ATM.S_NONE, ATM.S_OTPTEXT, ATM.ACT_OTP_WITHDRAW,
+        ATM.TYPE_SND_UINT32 | ATM.TYPE_RECV_FOLLOWUP);
+    
+    /**
+     * Follow-up after a withdraw has been attempted: show the balance.
+     */
+    public static final Frame FOLLOWUP_WITHDRAW_BALANCE = followup(
+        ATM.S_NONE, ATM.S_BALANCETEXT, ATM.ACT_BALANCE, ATM.TYPE_RECV_UINT32);
+}
@@ -0,0 +1,671 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * ATMSelectorServer serves ATM sessions using a small, fixed number of
+ * non-blocking event loops instead of one thread per client connection.
+ * 
+ * Each event loop owns a Selector and a set of client connections. The
+ * protocol state of every connection is kept in an ATMSession, which is
+ * fed whatever bytes have arrived on the socket and decodes as much as
+ * it can without blocking. Idle connections therefore only cost a few
+ * small buffers, not a thread and its stack.
+ * 
+ * An event loop never waits for a single transaction to be committed.
+ * The bank defers commits (see Bank.deferCommits()), and a loop commits
+ * the transactions made while handling its ready connections at once,
+ * holding back their replies until then.
+ * 
+ * In "core" mode, the server represents a ShardedBank and runs one event
+ * loop per shard, each loop owning its shard (see ShardedBank.own()). A
+ * connection is accepted by any loop, but once its user has logged in,
+ * it is handed over to the loop owning the shard of the account, so that
+ * all its transactions are made by that loop alone.
+ * 
+ * @author Mikael Forsberg <miforsb@kth.se>
+ * @author Robin Gunning <rgunning@kth.se>
+ * @version 20151204T1700
+ */
+public class ATMSelectorServer
+{
+    /**
+     * ATMSelectorServer.Connection holds the state of a single
+     * client connection served by an event loop.
+     */
+    private static class Connection implements ATMUpdateBroadcaster.Target
+    {
+        /**
+         * Create a new Connection.
+         * 
+         * @param bank Bank to represent
+         * @param languages Language data to send to clients
+         * @param loop Event loop serving the connection
+         * @param channel Client connection channel
+         */
+        public Connection(Bank bank, LanguageBundleCache languages, EventLoop loop,
+                          SocketChannel channel)
+        {
+            this.loop = loop;
+            this.channel = channel;
+            session = new ATMSession(bank, languages, tx);
+        }
+        
+        /**
+         * Implementation of ATMUpdateBroadcaster.Target.pushUpdate(). The
+         * push is handed to the event loop of the connection; a bundle
+         * arriving while one is pending replaces it.
+         * 
+         * @param bundle Bundle to push
+         */
+        public void pushUpdate(LanguageBundleCache.Bundle bundle)
+        {
+            if (pendingPush.getAndSet(bundle) == null)
+            {
+                loop.schedulePush(this);
+            }
+        }
+        
+        /**
+         * Event loop serving the connection. Changes when the connection
+         * is handed over to another event loop.
+         */
+        public volatile EventLoop loop;
+        
+        /**
+         * Selection key of the connection, set once registered.
+         */
+        public SelectionKey key = null;
+        
+        /**
+         * Client connection channel.
+         */
+        public final SocketChannel channel;
+        
+        /**
+         * Received bytes not yet consumed by the session.
+         */
+        public final ByteBuffer rx = ByteBuffer.allocate(RX_BUFFER_SIZE);
+        
+        /**
+         * Replies produced by the session. The buffer is reused for the
+         * lifetime of the connection.
+         */
+        public final ATMFrameWriter tx = new ATMFrameWriter();
+        
+        /**
+         * Replies handed to the channel but not yet completely written,
+         * or null if there is nothing left to write. Wraps the buffer of
+         * the frame writer, which is reset once everything is written.
+         */
+        public ByteBuffer[] pending = null;
+        
+        /**
+         * Are replies held back until the event loop has committed the
+         * transactions behind them?
+         */
+        public boolean held = false;
+        
+        /**
+         * Protocol state of the session.
+         */
+        public final ATMSession session;
+        
+        /**
+         * Bundle waiting to be pushed, or null if there is none.
+         */
+        public final AtomicReference<LanguageBundleCache.Bundle> pendingPush =
+            new AtomicReference<LanguageBundleCache.Bundle>();
+    }
+    
+    /**
+     * ATMSelectorServer.EventLoop drives a set of client connections
+     * from a single thread.
+     */
+    private class EventLoop extends Thread
+    {
+        /**
+         * Create a new EventLoop.
+         * 
+         * @param index Index of the event loop, used for naming the thread
+         * @param shard Shard owned by the event loop, or -1 if none
+         */
+        public EventLoop(int index, int shard) throws IOException
+        {
+            super("ATMEventLoop-" + index);
+            
+            this.shard = shard;
+            selector = Selector.open();
+        }
+        
+        /**
+         * Hand a newly accepted client connection over to the event loop.
+         * 
+         * @param channel Client connection channel
+         */
+        public void register(SocketChannel channel)
+        {
+            incoming.add(channel);
+            selector.wakeup();
+        }
+        
+        /**
+         * Hand a connection over to the event loop, along with its
+         * session and whatever it has received but not yet decoded.
+         * 
+         * @param conn Connection to take over
+         */
+        public void adopt(Connection conn)
+        {
+            arrivals.add(conn);
+            selector.wakeup();
+        }
+        
+        /**
+         * Have the event loop push pending language data to a connection.
+         * 
+         * @param conn Connection with a pending push
+         */
+        public void schedulePush(Connection conn)
+        {
+            pushes.add(conn);
+            selector.wakeup();
+        }
+        
+        /**
+         * Implementation of Thread.run()
+         */
+        public void run()
+        {
+            if (sharded != null)
+            {
+                sharded.own(shard, new Runnable()
+                {
+                    public void run()
+                    {
+                        selector.wakeup();
+                    }
+                });
+            }
+            
+            while (true)
+            {
+                try
+                {
+                    selector.select();
+                    registerIncoming();
+                    deliverPushes();
+                    
+                    if (sharded != null)
+                    {
+                        sharded.applyQueued(shard);
+                    }
+                    
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    
+                    while (it.hasNext())
+                    {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        
+                        handle(key);
+                    }
+                }
+                catch (IOException e)
+                {
+                    System.out.println(e);
+                }
+                finally
+                {
+                    flushHeld();
+                }
+            }
+        }
+        
+        /**
+         * Register connections handed over by the acceptor with the selector.
+         */
+        private void registerIncoming() throws IOException
+        {
+            SocketChannel channel;
+            
+            while ((channel = incoming.poll()) != null)
+            {
+                Connection conn = new Connection(bank, languages, this, channel);
+                
+                if (sharded != null)
+                {
+                    conn.session.pauseAfterLogin();
+                }
+                
+                channel.configureBlocking(false);
+                ATMFrameWriter.tune(channel.socket());
+                conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+                broadcaster.register(conn);
+            }
+            
+            Connection conn;
+            
+            while ((conn = arrivals.poll()) != null)
+            {
+                try
+                {
+                    conn.key = conn.channel.register(selector, SelectionKey.OP_READ, conn);
+                    process(conn.key, conn);
+                    
+                    // a push scheduled with the previous event loop
+                    if (conn.pendingPush.get() != null)
+                    {
+                        pushes.add(conn);
+                    }
+                }
+                catch (Exception e)
+                {
+                    System.out.println(e);
+                    close(conn.key, conn);
+                }
+            }
+        }
+        
+        /**
+         * Push pending language data to the connections that asked for it.
+         * A connection that still has replies waiting to be written gets
+         * its push once those have been written instead, so a slow client
+         * never has more than one reply and one push queued.
+         */
+        private void deliverPushes()
+        {
+            Connection conn;
+            
+            while ((conn = pushes.poll()) != null)
+            {
+                if (conn.loop != this || !conn.key.isValid() || conn.pending != null
+                    || conn.held)
+                {
+                    continue;
+                }
+                
+                try
+                {
+                    push(conn.key, conn);
+                }
+                catch (Exception e)
+                {
+                    System.out.println(e);
+                    close(conn.key, conn);
+                }
+            }
+        }
+        
+        /**
+         * Push pending language data to a connection, if there is any.
+         * 
+         * @param key Selection key of the connection
+         * @param conn Connection to push to
+         */
+        private void push(SelectionKey key, Connection conn) throws IOException
+        {
+            LanguageBundleCache.Bundle bundle = conn.pendingPush.getAndSet(null);
+            
+            if (bundle == null)
+            {
+                return;
+            }
+            
+            conn.session.pushUpdate(bundle);
+            
+            if (conn.tx.pending() > 0)
+            {
+                conn.pending = conn.tx.frames();
+                write(key, conn);
+            }
+        }
+        
+        /**
+         * Handle a ready connection, closing it if the client disconnected
+         * or broke the protocol.
+         * 
+         * @param key Selection key of the connection
+         */
+        private void handle(SelectionKey key)
+        {
+            Connection conn = (Connection) key.attachment();
+            
+            try
+            {
+                if (key.isWritable())
+                {
+                    write(key, conn);
+                }
+                
+                if (key.isValid() && key.isReadable())
+                {
+                    read(key, conn);
+                }
+            }
+            catch (Exception e)
+            {
+                System.out.println(e);
+                close(key, conn);
+            }
+        }
+        
+        /**
+         * Read whatever has arrived on a connection and let its session
+         * decode it.
+         * 
+         * @param key Selection key of the connection
+         * @param conn Connection to read from
+         */
+        private void read(SelectionKey key, Connection conn) throws IOException
+        {
+            if (conn.channel.read(conn.rx) < 0)
+            {
+                close(key, conn);
+                return;
+            }
+            
+            process(key, conn);
+        }
+        
+        /**
+         * Let the session of a connection decode what has been received.
+         * Its replies are held back until flushHeld(). In core mode, a
+         * session that has logged in to a shard owned by another event
+         * loop is handed over to that loop before any further message is
+         * decoded.
+         * 
+         * @param key Selection key of the connection
+         * @param conn Connection to process
+         */
+        private void process(SelectionKey key, Connection conn) throws IOException
+        {
+            conn.rx.flip();
+            
+            while (true)
+            {
+                int remaining = conn.rx.remaining();
+                
+                conn.session.decode(conn.rx);
+                
+                int owner = conn.session.shard();
+                
+                if (sharded != null && owner >= 0 && owner != shard)
+                {
+                    // replies not yet sent may be for transactions made here
+                    if (!sharded.commitShard(shard))
+                    {
+                        throw new IOException("Commit failed");
+                    }
+                    
+                    conn.rx.compact();
+                    key.cancel();
+                    conn.loop = loops[owner];
+                    loops[owner].adopt(conn);
+                    return;
+                }
+                
+                // decoding only pauses after a login
+                if (conn.rx.remaining() == remaining)
+                {
+                    break;
+                }
+            }
+            
+            conn.rx.compact();
+            
+            if (conn.tx.pending() > 0 && !conn.held)
+            {
+                conn.held = true;
+                held.add(conn);
+            }
+        }
+        
+        /**
+         * Commit the transactions made by the event loop, or on its shard
+         * in core mode, then send the replies held back meanwhile. If the
+         * commit fails, the connections are closed instead, so that no
+         * client is ever told of a transaction that was not committed.
+         */
+        private void flushHeld()
+        {
+            boolean committed = sharded != null ? sharded.commitShard(shard) : bank.commit();
+            
+            for (Connection conn : held)
+            {
+                conn.held = false;
+                
+                if (!conn.key.isValid())
+                {
+                    continue;
+                }
+                
+                try
+                {
+                    if (!committed)
+                    {
+                        throw new IOException("Commit failed");
+                    }
+                    
+                    conn.pending = conn.tx.frames();
+                    write(conn.key, conn);
+                }
+                catch (Exception e)
+                {
+                    System.out.println(e);
+                    close(conn.key, conn);
+                }
+            }
+            
+            held.clear();
+        }
+        
+        /**
+         * Write as much pending output as the connection accepts. While
+         * output is pending, no more input is read from the connection,
+         * so a client that does not read its replies cannot make the
+         * server buffer an unbounded amount of data.
+         * 
+         * @param key Selection key of the connection
+         * @param conn Connection to write to
+         */
+        private void write(SelectionKey key, Connection conn) throws IOException
+        {
+            if (conn.pending != null)
+            {
+                conn.channel.write(conn.pending);
+                
+                if (conn.pending[conn.pending.length - 1].hasRemaining())
+                {
+                    key.interestOps(SelectionKey.OP_WRITE);
+                    return;
+                }
+                
+                conn.pending = null;
+                conn.tx.reset();
+            }
+            
+            key.interestOps(SelectionKey.OP_READ);
+            
+            // a push held back while replies were pending can go out now
+            if (conn.pendingPush.get() != null)
+            {
+                push(key, conn);
+            }
+        }
+        
+        /**
+         * Close a connection.
+         * 
+         * @param key Selection key of the connection
+         * @param conn Connection to close
+         */
+        private void close(SelectionKey key, Connection conn)
+        {
+            broadcaster.unregister(conn);
+            key.cancel();
+            
+            try
+            {
+                conn.channel.close();
+            }
+            catch (IOException e)
+            {
+                System.out.println(e);
+            }
+        }
+        
+        /**
+         * Shard owned by the event loop, or -1 if none.
+         */
+        private final int shard;
+        
+        /**
+         * Selector of the event loop.
+         */
+        private final Selector selector;
+        
+        /**
+         * Connections accepted but not yet registered with the selector.
+         */
+        private final ConcurrentLinkedQueue<SocketChannel> incoming =
+            new ConcurrentLinkedQueue<SocketChannel>();
+        
+        /**
+         * Connections handed over by other event loops, not yet
+         * registered with the selector.
+         */
+        private final ConcurrentLinkedQueue<Connection> arrivals =
+            new ConcurrentLinkedQueue<Connection>();
+        
+        /**
+         * Connections with a pending push.
+         */
+        private final ConcurrentLinkedQueue<Connection> pushes =
+            new ConcurrentLinkedQueue<Connection>();
+        
+        /**
+         * Connections whose replies are held back until the next commit.
+         */
+        private final ArrayList<Connection> held = new ArrayList<Connection>();
+    }
+    
+    /**
+     * Create a new ATMSelectorServer.
+     * 
+     * @param bank Bank to represent
+     * @param languages Language data to send to clients
+     * @param broadcaster Broadcaster of language data changes
+     * @param numLoops Number of event loops (threads) to run
+     */
+    public ATMSelectorServer(Bank bank, LanguageBundleCache languages,
+                             ATMUpdateBroadcaster broadcaster, int numLoops) throws IOException
+    {
+        this(bank, null, languages, broadcaster, numLoops);
+    }
+    
+    /**
+     * Create a new ATMSelectorServer in core mode, with one event loop
+     * owning each shard of a bank.
+     * 
+     * @param bank Bank to represent, made without writer threads
+     * @param languages Language data to send to clients
+     * @param broadcaster Broadcaster of language data changes
+     */
+    public ATMSelectorServer(ShardedBank bank, LanguageBundleCache languages,
+                             ATMUpdateBroadcaster broadcaster) throws IOException
+    {
+        this(bank, bank, languages, broadcaster, bank.shardCount());
+    }
+    
+    /**
+     * Create a new ATMSelectorServer.
+     * 
+     * @param bank Bank to represent
+     * @param sharded Bank whose shards the event loops own, or null
+     * @param languages Language data to send to clients
+     * @param broadcaster Broadcaster of language data changes
+     * @param numLoops Number of event loops (threads) to run
+     */
+    private ATMSelectorServer(Bank bank, ShardedBank sharded, LanguageBundleCache languages,
+                              ATMUpdateBroadcaster broadcaster, int numLoops) throws IOException
+    {
+        this.bank = bank;
+        this.sharded = sharded;
+        this.languages = languages;
+        this.broadcaster = broadcaster;
+        
+        if (sharded == null)
+        {
+            bank.deferCommits();
+        }
+        
+        loops = new EventLoop[numLoops];
+        
+        for (int i = 0; i < numLoops; ++i)
+        {
+            loops[i] = new EventLoop(i, sharded != null ? i : -1);
+        }
+        
+        for (EventLoop loop : loops)
+        {
+            loop.start();
+        }
+    }
+    
+    /**
+     * Accept client connections forever, spreading them evenly over
+     * the event loops.
+     * 
+     * @param serverChannel Listening server channel
+     */
+    public void serve(ServerSocketChannel serverChannel) throws IOException
+    {
+        int next = 0;
+        
+        while (true)
+        {
+            SocketChannel channel = serverChannel.accept();
+            
+            loops[next].register(channel);
+            next = (next + 1) % loops.length;
+        }
+    }
+    
+    /**
+     * Size of the receive buffer of each connection. The largest client
+     * message is 8 bytes, so this leaves plenty of room for pipelined
+     * requests.
+     */
+    private static final int RX_BUFFER_SIZE = 64;
+    
+    /**
+     * Bank being represented.
+     */
+    private final Bank bank;
+    
+    /**
+     * Bank whose shards the event loops own in core mode, or null.
+     */
+    private final ShardedBank sharded;
+    
+    /**
+     * Language data to send to clients.
+     */
+    private final LanguageBundleCache languages;
+    
+    /**
+     * Broadcaster of language data changes.
+     */
+    private final ATMUpdateBroadcaster broadcaster;
+    
+    /**
+     * Event loops serving the client connections.
+     */
+    private final EventLoop[] loops;
+}
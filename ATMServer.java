@@ -1,9 +1,16 @@
 import java.net.*;
 import java.io.*;
+import java.lang.reflect.Method;
+import java.nio.channels.ServerSocketChannel;
 
 /**
- * ATMServer creates a server socket and spawns server threads
- * for each new client connection.
+ * ATMServer creates a server socket and serves client connections,
+ * either by spawning a server thread for each new connection
+ * ("thread" mode, the default), by running each connection's session
+ * on a virtual thread ("virtual" mode) or by multiplexing all
+ * connections over a few non-blocking event loops ("nio" mode). In
+ * "core" mode, the accounts are sharded, and each event loop owns a
+ * shard and serves the sessions of its accounts.
  * 
  * @author Viebrapadata
  * @author Mikael Forsberg <miforsb@kth.se>
@@ -22,12 +29,17 @@ public class ATMServer
         // setting port using command line
         int connectionPort = 0;
         
+        // setting server mode using command line
+        String mode = MODE_THREAD;
+        
         ServerSocket serverSocket = null;
-       
-        boolean listening = true;
         
-        // connect to the bank
-        Bank bank = new Bank("accounts.yml");
+        // load the language data, and reload it whenever it changes
+        LanguageBundleCache languages = new LanguageBundleCache("languages.yml");
+        languages.watch();
+        
+        // push changes of the language data to connected clients
+        ATMUpdateBroadcaster broadcaster = new ATMUpdateBroadcaster(languages);
         
         try
         {
@@ -45,9 +57,95 @@ public class ATMServer
             System.exit(1);
         }
         
+        if (args.length > 1)
+        {
+            mode = args[1];
+            
+            if (!mode.equals(MODE_THREAD) && !mode.equals(MODE_VIRTUAL)
+                && !mode.equals(MODE_NIO) && !mode.equals(MODE_CORE))
+            {
+                System.err.println("Invalid mode, expected one of: "
+                    + MODE_THREAD + ", " + MODE_VIRTUAL + ", " + MODE_NIO + ", " + MODE_CORE);
+                System.exit(1);
+            }
+        }
+        
+        if (mode.equals(MODE_VIRTUAL) && !virtualThreadsAvailable())
+        {
+            System.err.println("Mode " + MODE_VIRTUAL + " requires Java 21 or later");
+            System.exit(1);
+        }
+        
+        // connect to the bank; in core mode, the event loops own its shards
+        String accountsFile = System.getProperty("atm.accountsFile", "accounts.yml");
+        boolean core = mode.equals(MODE_CORE);
+        int split = ShardedBank.splitCount(accountsFile);
+        int shards = Integer.getInteger("atm.shards",
+            split > 0 ? split : core ? Runtime.getRuntime().availableProcessors() : 1);
+        
+        // once split, the accounts file is stale and only the shards count
+        if (split != 0 && split != shards)
+        {
+            System.err.println(split < 0 ? "Could not read the shard count of: " + accountsFile
+                               : accountsFile + " is split into " + split + " shards, not " + shards);
+            System.exit(1);
+        }
+        
+        Bank bank = null;
+        
+        try
+        {
+            bank = core || split > 0 || shards > 1 ? new ShardedBank(accountsFile, shards, !core)
+                                                   : new Bank(accountsFile);
+        }
+        catch (IllegalStateException e)
+        {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+        
+        if (!bank.isLoaded())
+        {
+            System.err.println("Could not load accounts from: " + accountsFile);
+            System.exit(1);
+        }
+        
+        if (mode.equals(MODE_NIO) || core)
+        {
+            ServerSocketChannel serverChannel = null;
+            
+            try
+            {
+                serverChannel = ServerSocketChannel.open();
+                serverChannel.bind(new InetSocketAddress(connectionPort), ACCEPT_BACKLOG);
+            }
+            catch (IOException e)
+            {
+                System.err.println("Could not listen on port: " + connectionPort);
+                System.exit(1);
+            }
+            
+            if (core)
+            {
+                System.out.println("Bank started listening on port: " + connectionPort
+                    + " (" + shards + " shard-owning event loops)");
+                
+                new ATMSelectorServer((ShardedBank) bank, languages, broadcaster).serve(serverChannel);
+                return;
+            }
+            
+            int numLoops = Runtime.getRuntime().availableProcessors();
+            
+            System.out.println("Bank started listening on port: " + connectionPort
+                + " (" + numLoops + " event loops)");
+            
+            new ATMSelectorServer(bank, languages, broadcaster, numLoops).serve(serverChannel);
+            return;
+        }
+        
         try
         {
-            serverSocket = new ServerSocket(connectionPort);
+            serverSocket = new ServerSocket(connectionPort, ACCEPT_BACKLOG);
         }
         catch (IOException e)
         {
@@ -55,13 +153,130 @@ public class ATMServer
             System.exit(1);
         }
         
-        System.out.println("Bank started listening on port: " + connectionPort);
+        System.out.println("Bank started listening on port: " + connectionPort
+            + " (" + mode + " mode)");
+        
+        serve(bank, languages, broadcaster, serverSocket, mode.equals(MODE_VIRTUAL));
+    }
+    
+    /**
+     * Accept client connections and run one ATMServerThread session per
+     * connection, either on its own platform thread or on a virtual thread.
+     * 
+     * ATMServerThread only blocks in socket I/O and in java.util.concurrent
+     * locks, never inside a synchronized block, so a virtual thread running
+     * it unmounts from its carrier thread while waiting instead of pinning it.
+     * 
+     * @param bank Bank to represent
+     * @param languages Language data to send to clients
+     * @param broadcaster Broadcaster of language data changes
+     * @param serverSocket Listening server socket
+     * @param virtual Whether to run the sessions on virtual threads
+     */
+    public static void serve(Bank bank, LanguageBundleCache languages,
+                             ATMUpdateBroadcaster broadcaster, ServerSocket serverSocket,
+                             boolean virtual) throws IOException
+    {
+        boolean listening = true;
         
         while (listening)
         {
-            new ATMServerThread(bank, serverSocket.accept()).start();
+            ATMServerThread session = new ATMServerThread(bank, languages, broadcaster,
+                serverSocket.accept());
+            
+            if (virtual)
+            {
+                // the ATMServerThread object is only used as the Runnable
+                startVirtualThread(session);
+            }
+            else
+            {
+                session.start();
+            }
         }
         
         serverSocket.close();
     }
+    
+    /**
+     * Are virtual threads available in the running JVM?
+     * 
+     * @return True if virtual threads can be started, false otherwise
+     */
+    public static boolean virtualThreadsAvailable()
+    {
+        return startVirtualThread != null;
+    }
+    
+    /**
+     * Start a task on a new virtual thread.
+     * 
+     * @param task Task to run
+     * @return The started virtual thread
+     */
+    public static Thread startVirtualThread(Runnable task)
+    {
+        try
+        {
+            return (Thread) startVirtualThread.invoke(null, task);
+        }
+        catch (Exception e)
+        {
+            throw new RuntimeException("Could not start virtual thread", e);
+        }
+    }
+    
+    /**
+     * Look up Thread.startVirtualThread(Runnable), which only exists
+     * on Java 21 and later. The server itself is built for older JVMs,
+     * so the method is resolved at runtime rather than at compile time.
+     * 
+     * @return The method, or null if virtual threads are unavailable
+     */
+    private static Method findStartVirtualThread()
+    {
+        try
+        {
+            return Thread.class.getMethod("startVirtualThread", Runnable.class);
+        }
+        catch (NoSuchMethodException e)
+        {
+            return null;
+        }
+    }
+    
+    /**
+     * Server mode: one blocking ATMServerThread per client connection.
+     */
+    public static final String MODE_THREAD = "thread";
+    
+    /**
+     * Server mode: one blocking ATMServerThread session per client
+     * connection, each running on a virtual thread (Java 21 or later).
+     */
+    public static final String MODE_VIRTUAL = "virtual";
+    
+    /**
+     * Server mode: all client connections multiplexed over a few
+     * non-blocking event loops by an ATMSelectorServer.
+     */
+    public static final String MODE_NIO = "nio";
+    
+    /**
+     * Server mode: one non-blocking event loop per shard of a ShardedBank
+     * (atm.shards, by default one per processor), each owning its shard
+     * and serving the sessions logged in to it.
+     */
+    public static final String MODE_CORE = "core";
+    
+    /**
+     * Length of the queue of incoming connections waiting to be accepted.
+     * Large enough that a burst of reconnecting terminals is not refused.
+     */
+    private static final int ACCEPT_BACKLOG = 1024;
+    
+    /**
+     * Thread.startVirtualThread(Runnable), or null if unavailable.
+     */
+    private static final Method startVirtualThread = findStartVirtualThread();
 }
@@ -1,34 +1,43 @@
 //*neode.command* setgo javac -cp .:./yamlbeans-1.09/yamlbeans-1.09.jar ATMServerThread.java; java -cp .:./yamlbeans-1.09/yamlbeans-1.09.jar ATMServerThread
-import com.esotericsoftware.yamlbeans.*;
 import java.io.*;
 import java.net.*;
-import java.util.Map;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * ATMServerThread handles a single user ATM session according
- * to the UBERPUTER ATM SPECIFICATION DRAFT REV.1.
+ * to the UBERPUTER ATM SPECIFICATION DRAFT REV.1, using one
+ * blocking thread per client connection.
  * 
  * @author Viebrapadata
  * @author Mikael Forsberg <miforsb@kth.se>
  * @author Robin Gunning <rgunning@kth.se>
  * @version 20151204T1700
  */
-public class ATMServerThread extends Thread
+public class ATMServerThread extends Thread implements ATMUpdateBroadcaster.Target
 {
     /**
      * Create a new ATMServerThread.
      * 
      * @param bank Bank to represent
+     * @param languages Language data to send to clients
+     * @param broadcaster Broadcaster of language data changes
      * @param socket Client connection socket
      */
-    public ATMServerThread(Bank bank, Socket socket) throws IOException
+    public ATMServerThread(Bank bank, LanguageBundleCache languages,
+                           ATMUpdateBroadcaster broadcaster, Socket socket) throws IOException
     {
         super("ATMServerThread");
         
-        this.bank = bank;
+        this.broadcaster = broadcaster;
         this.socket = socket;
-        tx = new DataOutputStream(socket.getOutputStream());
+        ATMFrameWriter.tune(socket);
+        tx = new ATMFrameWriter(socket.getOutputStream());
         rx = new DataInputStream(socket.getInputStream());
+        session = new ATMSession(bank, languages, tx);
     }
     
     /**
@@ -46,6 +55,8 @@ public class ATMServerThread extends Thread
      */
     public void run()
     {
+        broadcaster.register(this);
+        
         try
         {
             mainLoop();
@@ -54,6 +65,19 @@ public class ATMServerThread extends Thread
         {
             System.out.println(e);
         }
+        finally
+        {
+            broadcaster.unregister(this);
+            
+            try
+            {
+                socket.close();
+            }
+            catch (IOException e)
+            {
+                System.out.println(e);
+            }
+        }
     }
     
     /**
@@ -61,308 +85,138 @@ public class ATMServerThread extends Thread
      */
     public void mainLoop() throws IOException
     {
-        Bank.LoginToken token = null;
-        
-        int transact_id = 0;
-        int cardno = 0;
-        int pin = 0;
-        int state = 1000; // default waiting state
-        int sum = 0;
+        ByteBuffer buffer = ByteBuffer.allocate(RX_BUFFER_SIZE);
         
         while (true)
         {
-            switch(state)
+            int numread = rx.read(buffer.array(), buffer.position(), buffer.remaining());
+            
+            if (numread < 0)
             {
-                case 1000:
-                    state = rx.readUnsignedByte();
-                    // System.out.println("här är state " + state);
-                    break;
-                
-                case ATM.MSG_MENU_REQUEST:
-                    if (token == null)
-                    {
-                        tx.writeByte(ATM.MSG_MENU_NUM_ITEMS);
-                        tx.writeByte(1);
-                        
-                        tx.writeByte(ATM.MSG_MENU_ITEM);
-                        tx.writeByte(ATM.S_LOGIN);
-                        tx.writeByte(ATM.S_LOGINTEXT_CARD);
-                        tx.writeByte(ATM.ACT_LOGIN_CARDNO);
-                        tx.writeByte(ATM.TYPE_SND_UINT32 | ATM.TYPE_RECV_FOLLOWUP);
-                    }
-                    else
-                    {
-                        tx.writeByte(ATM.MSG_MENU_NUM_ITEMS);
-                        tx.writeByte(4);
-                        
-                        tx.writeByte(ATM.MSG_MENU_ITEM);
-                        tx.writeByte(ATM.S_BALANCE);
-                        tx.writeByte(ATM.S_BALANCETEXT);
-                        tx.writeByte(ATM.ACT_BALANCE);
-                        tx.writeByte(ATM.TYPE_RECV_UINT32);
-                        
-                        tx.writeByte(ATM.MSG_MENU_ITEM);
-                        tx.writeByte(ATM.S_DEPOSIT);
-                        tx.writeByte(ATM.S_DEPOSITTEXT);
-                        tx.writeByte(ATM.ACT_DEPOSIT);
-                        tx.writeByte(ATM.TYPE_SND_UINT32 | ATM.TYPE_RECV_FOLLOWUP);
-                        
-                        tx.writeByte(ATM.MSG_MENU_ITEM);
-                        tx.writeByte(ATM.S_WITHDRAW);
-                        tx.writeByte(ATM.S_WITHDRAWTEXT);
-                        tx.writeByte(ATM.ACT_WITHDRAW);
-                        tx.writeByte(ATM.TYPE_SND_UINT32 | ATM.TYPE_RECV_FOLLOWUP);
-                        
-                        tx.writeByte(ATM.MSG_MENU_ITEM);
-                        tx.writeByte(ATM.S_LOGOUT);
-                        tx.writeByte(ATM.S_LOGOUTTEXT);
-                        tx.writeByte(ATM.ACT_LOGOUT);
-                        tx.writeByte(0);
-                    }
-                    
-                    state = 1000;
-                    break;
-                
-                case ATM.MSG_ACTION:
-                    int action_id = rx.readUnsignedByte();
-                    
-                    switch(action_id)
-                    {
-                        case ATM.ACT_BALANCE:
-                            rx.skipBytes(4);
-                            transact_id = rx.readUnsignedShort();
-                            
-                            tx.writeByte(ATM.MSG_RESPONSE);
-                            tx.writeShort(transact_id);
-                            tx.writeInt(bank.balance(token));
-                            
-                            break;
-                        
-                        case ATM.ACT_DEPOSIT:
-                            if (token == null)
-                            {
-                                throw new RuntimeException("Deposit from unauthenticated user");
-                            }
-                            
-                            sum = rx.readInt();
-                            transact_id = rx.readUnsignedShort();
-                            
-                            bank.deposit(token, sum);
-                            
-                            tx.writeByte(ATM.MSG_OK);
-                            tx.writeShort(transact_id);
-                            
-                            tx.writeByte(ATM.MSG_MENU_ITEM);
-                            tx.writeByte(ATM.S_BALANCE);
-                            tx.writeByte(ATM.S_BALANCETEXT);
-                            tx.writeByte(ATM.ACT_BALANCE);
-                            tx.writeByte(ATM.TYPE_RECV_UINT32);
-                            
-                            sum = 0;
-                            
-                            break;
-                        
-                        case ATM.ACT_WITHDRAW:
-                            if (token == null)
-                            {
-                                throw new RuntimeException("Withdraw from unauthenticated user");
-                            }
-                            
-                            sum = rx.readInt();
-                            transact_id = rx.readUnsignedShort();
-                            
-                            tx.writeByte(ATM.MSG_OK);
-                            tx.writeShort(transact_id);
-                            
-                            tx.writeByte(ATM.MSG_MENU_ITEM);
-                            tx.writeByte(ATM.S_NONE);
-                            tx.writeByte(ATM.S_OTPTEXT);
-                            tx.writeByte(ATM.ACT_OTP_WITHDRAW);
-                            tx.writeByte(ATM.TYPE_SND_UINT32 | ATM.TYPE_RECV_FOLLOWUP);
-                            
-                            break;
-                        
-                        case ATM.ACT_OTP_WITHDRAW:
-                            if (token == null)
-                            {
-                                throw new RuntimeException("OTP from unauthenticated user");
-                            }
-                            
-                            int otp = rx.readInt();
-                            transact_id = rx.readUnsignedShort();
-                            
-                            if (bank.balance(token) < sum)
-                            {
-                                // debug("insuff funds");
-                                tx.writeByte(ATM.MSG_FAIL);
-                                tx.writeShort(transact_id);
-                                tx.writeByte(ATM.S_AMNTERROR);
-                            }
-                            else
-                            {
-                                if (bank.withdraw(token, otp, sum))
-                                {
-                                    // debug("withdraw ok");
-                                    tx.writeByte(ATM.MSG_OK);
-                                    tx.writeShort(transact_id);
-                                }
-                                else
-                                {
-                                    // debug("withdraw fail");
-                                    tx.write(ATM.MSG_FAIL);
-                                    tx.writeShort(transact_id);
-                                    tx.write(ATM.S_ERRORTEXT);
-                                }
-                            }
-                            
-                            tx.writeByte(ATM.MSG_MENU_ITEM);
-                            tx.writeByte(ATM.S_NONE);
-                            tx.writeByte(ATM.S_BALANCETEXT);
-                            tx.writeByte(ATM.ACT_BALANCE);
-                            tx.writeByte(ATM.TYPE_RECV_UINT32);
-                            
-                            break;
-                        
-                        case ATM.ACT_LOGIN_CARDNO:
-                            if (token != null)
-                            {
-                                throw new RuntimeException("Login CARD from already authenticated user");
-                            }
-                            
-                            cardno = rx.readInt();
-                            transact_id = rx.readUnsignedShort();
-                            
-                            tx.write(ATM.MSG_OK);
-                            tx.writeShort(transact_id);
-                            
-                            tx.writeByte(ATM.MSG_MENU_ITEM);
-                            tx.writeByte(ATM.S_LOGIN);
-                            tx.writeByte(ATM.S_LOGINTEXT_PIN);
-                            tx.writeByte(ATM.ACT_LOGIN_PIN);
-                            tx.writeByte(ATM.TYPE_SND_UINT32);
-                            
-                            break;
-                        
-                        case ATM.ACT_LOGIN_PIN:
-                            if (token != null)
-                            {
-                                throw new RuntimeException("Login PIN from already authenticated user");
-                            }
-                            
-                            pin = rx.readInt();
-                            transact_id = rx.readUnsignedShort();
-                            
-                            token = bank.getLoginToken(cardno, pin);
-                            
-                            if (token == null)
-                            {
-                                tx.writeByte(ATM.MSG_FAIL);
-                                tx.writeShort(transact_id);
-                                tx.writeByte(ATM.S_ERRORTEXT);
-                            }
-                            else
-                            {
-                                tx.writeByte(ATM.MSG_OK);
-                                tx.writeShort(transact_id);
-                            }
-                            
-                            break;
-                        
-                        case ATM.ACT_LOGOUT:
-                            if (token == null)
-                            {
-                                throw new RuntimeException("Logout from unauthenticated user");
-                            }
-                            
-                            rx.skipBytes(4);
-                            transact_id = rx.readShort();
-                            
-                            token = null;
-                            
-                            tx.writeByte(ATM.MSG_OK);
-                            tx.writeShort(transact_id);
-                            break;
-                        
-                        default:
-                            throw new RuntimeException("Unrecognized action");
-                            // break;
-                    }
-                    
-                    state = 1000;
-                    break;
+                if (buffer.position() > 0)
+                {
+                    // the client left in the middle of a message
+                    throw new EOFException();
+                }
                 
-                case ATM.MSG_UPDATE_REQUEST:
-                    // debug("got update request");
-                    int version = rx.readInt();
-                    int myversion = getLanguageDataVersion();
-                    
-                    // debug("version: " + Integer.toString(version) + ", my version: " + Integer.toString(myversion));
-                    
-                    if (version != myversion)
-                    {
-                        File file = new File("languages.yml");
-                        FileInputStream in = new FileInputStream(file);
-                        
-                        byte[] data = new byte[(int)file.length()];
-                        
-                        in.read(data);
-                        in.close();
-                        
-                        // debug("sending " + Integer.toString(data.length) + " bytes of language data");
-                        
-                        tx.write(ATM.MSG_UPDATE);
-                        tx.write((data.length & 0xff0000) >> 16);
-                        tx.write((data.length & 0x00ff00) >> 8);
-                        tx.write(data.length & 0x0000ff);
-                        tx.write(data);
-                    }
-                    else
+                return;
+            }
+            
+            buffer.position(buffer.position() + numread);
+            buffer.flip();
+            
+            writeLock.lock();
+            
+            try
+            {
+                session.decode(buffer);
+            }
+            finally
+            {
+                writeLock.unlock();
+            }
+            
+            // a push skipped while the reply was being written
+            writePendingPush();
+            
+            buffer.compact();
+        }
+    }
+    
+    /**
+     * Implementation of ATMUpdateBroadcaster.Target.pushUpdate(). The push
+     * is written by a delivery task of the broadcaster, since writing to
+     * a slow client may block. A session has at most one push pending at
+     * a time; a bundle arriving while one is pending replaces it.
+     * 
+     * A delivery task never waits for the session: if the session is
+     * busy writing a reply, the push is left pending and written by the
+     * session thread once the reply is out. A client that takes longer
+     * than PUSH_DEADLINE_MILLIS to accept a push is disconnected, so a
+     * few stalled clients cannot hold up the delivery threads.
+     * 
+     * @param bundle Bundle to push
+     */
+    public void pushUpdate(LanguageBundleCache.Bundle bundle)
+    {
+        if (pendingPush.getAndSet(bundle) != null)
+        {
+            return;
+        }
+        
+        broadcaster.deliver(new Runnable()
+        {
+            public void run()
+            {
+                ScheduledFuture<?> deadline = broadcaster.schedule(new Runnable()
+                {
+                    public void run()
                     {
-                        // debug("no update necessary");
-                        tx.write(ATM.MSG_OK);
-                        tx.writeShort(0);
+                        try
+                        {
+                            socket.close();
+                        }
+                        catch (IOException e)
+                        {
+                            System.out.println(e);
+                        }
                     }
-                    
-                    state = 1000;
-                    break;
+                }, PUSH_DEADLINE_MILLIS);
                 
-                default:
-                    state = 1000;
-                    break;
+                try
+                {
+                    writePendingPush();
+                }
+                finally
+                {
+                    deadline.cancel(false);
+                }
             }
-        }
+        });
     }
     
     /**
-     * Gets the value of the "_Version" field in the language file.
-     * 
-     * @return Value of the "_Version" field in the language file
+     * Write the pending push, if there is one and no reply is being
+     * written. Whoever holds the write lock checks again after releasing
+     * it, so a push left pending is never forgotten.
      */
-    private int getLanguageDataVersion()
+    private void writePendingPush()
     {
-        try
+        while (pendingPush.get() != null && writeLock.tryLock())
         {
-            YamlReader reader = new YamlReader(new FileReader("languages.yml"));
-            Map map = (Map) reader.read();
-            
-            String version = (String) map.get("_Version");
-            
-            if (version != null)
+            try
             {
-                return Integer.parseInt(version);
+                LanguageBundleCache.Bundle pending = pendingPush.getAndSet(null);
+                
+                if (pending != null)
+                {
+                    session.pushUpdate(pending);
+                }
             }
-            else
+            catch (IOException e)
             {
-                throw new RuntimeException();
+                System.out.println(e);
+                return;
+            }
+            finally
+            {
+                writeLock.unlock();
             }
-        }
-        catch (Exception e)
-        {
-            debug("could not get lang data version");
-            return 0;
         }
     }
     
+    /**
+     * Size of the receive buffer. The largest client message is
+     * 8 bytes, so this leaves plenty of room for pipelined requests.
+     */
+    private static final int RX_BUFFER_SIZE = 256;
+    
+    /**
+     * Longest time a client may take to accept a push before it is
+     * disconnected, in milliseconds.
+     */
+    private static final long PUSH_DEADLINE_MILLIS = Long.getLong("atm.pushDeadlineMillis", 10000);
+    
     /**
      * Client connection socket.
      */
@@ -374,12 +228,29 @@ public class ATMServerThread extends Thread
     private DataInputStream rx;
     
     /**
-     * Client socket output data stream.
+     * Client socket output frame writer.
+     */
+    private ATMFrameWriter tx;
+    
+    /**
+     * Protocol state of the session.
+     */
+    private ATMSession session;
+    
+    /**
+     * Broadcaster of language data changes.
+     */
+    private ATMUpdateBroadcaster broadcaster;
+    
+    /**
+     * Lock held while the session assembles and sends replies, so that
+     * pushes are only ever written between two complete replies.
      */
-    private DataOutputStream tx;
+    private final Lock writeLock = new ReentrantLock();
     
     /**
-     * Bank being represented.
+     * Bundle waiting to be pushed, or null if there is none.
      */
-    private Bank bank;
+    private final AtomicReference<LanguageBundleCache.Bundle> pendingPush =
+        new AtomicReference<LanguageBundleCache.Bundle>();
 }
@@ -0,0 +1,465 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * ATMSession holds the protocol state of a single user ATM session
+ * according to the UBERPUTER ATM SPECIFICATION DRAFT REV.1.
+ * 
+ * The session does not read from the network by itself. Instead, whoever
+ * owns the connection feeds it whatever bytes have arrived so far, and the
+ * session decodes as many complete messages as it can, remembering where
+ * it left off. This lets the same state machine be driven both by a
+ * blocking thread (ATMServerThread) and by a non-blocking event loop
+ * (ATMSelectorServer).
+ * 
+ * @author Viebrapadata
+ * @author Mikael Forsberg <miforsb@kth.se>
+ * @author Robin Gunning <rgunning@kth.se>
+ * @version 20151204T1700
+ */
+public class ATMSession
+{
+    /**
+     * Create a new ATMSession.
+     * 
+     * @param bank Bank to represent
+     * @param languages Language data to send to clients
+     * @param tx Writer to assemble server replies in
+     */
+    public ATMSession(Bank bank, LanguageBundleCache languages, ATMFrameWriter tx)
+    {
+        this.bank = bank;
+        this.languages = languages;
+        this.tx = tx;
+    }
+    
+    /**
+     * Print a debug message to the terminal.
+     * 
+     * @param msg Message to print
+     */
+    public void debug(String msg)
+    {
+        System.out.println(msg);
+    }
+    
+    /**
+     * Decode and handle as many complete client messages as are available
+     * in a buffer. Bytes belonging to an incomplete message are left in the
+     * buffer, to be completed by a later call. Each complete reply is
+     * flushed as a whole.
+     * 
+     * @param rx Buffer of received bytes, ready for reading
+     */
+    public void decode(ByteBuffer rx) throws IOException
+    {
+        while (true)
+        {
+            switch(state)
+            {
+                case ST_WAIT:
+                    if (!rx.hasRemaining())
+                    {
+                        return;
+                    }
+                    
+                    state = rx.get() & 0xff;
+                    // System.out.println("här är state " + state);
+                    break;
+                
+                case ATM.MSG_MENU_REQUEST:
+                    handleMenuRequest();
+                    tx.flush();
+                    state = ST_WAIT;
+                    break;
+                
+                case ATM.MSG_ACTION:
+                    if (rx.remaining() < ACTION_BODY_SIZE)
+                    {
+                        return;
+                    }
+                    
+                    handleAction(rx.get() & 0xff, rx.getInt(), rx.getShort() & 0xffff);
+                    tx.flush();
+                    state = ST_WAIT;
+                    
+                    if (paused)
+                    {
+                        paused = false;
+                        return;
+                    }
+                    
+                    break;
+                
+                case ATM.MSG_UPDATE_REQUEST:
+                    if (rx.remaining() < UPDATE_REQUEST_BODY_SIZE)
+                    {
+                        return;
+                    }
+                    
+                    handleUpdateRequest(rx.getInt(), 0);
+                    tx.flush();
+                    state = ST_WAIT;
+                    break;
+                
+                case ATM.MSG_UPDATE_REQUEST_EX:
+                    if (rx.remaining() < UPDATE_REQUEST_EX_BODY_SIZE)
+                    {
+                        return;
+                    }
+                    
+                    handleUpdateRequest(rx.getInt(), rx.get() & 0xff);
+                    tx.flush();
+                    state = ST_WAIT;
+                    break;
+                
+                default:
+                    state = ST_WAIT;
+                    break;
+            }
+        }
+    }
+    
+    /**
+     * Make decode() return right after a successful login, leaving any
+     * further messages in the buffer, so that whoever drives the session
+     * can move it to the owner of its shard first (see shard()).
+     */
+    public void pauseAfterLogin()
+    {
+        pauseAfterLogin = true;
+    }
+    
+    /**
+     * Get the shard of the ShardedBank holding the account of the
+     * authenticated user.
+     * 
+     * @return Index of the shard, or -1 if the user has not logged in
+     */
+    public int shard()
+    {
+        return token != null ? token.getShard() : -1;
+    }
+    
+    /**
+     * Push new language data to the client, unless the client has not
+     * announced that it accepts pushes or already has this version. Must
+     * only be called between two replies, never while one is being
+     * assembled.
+     * 
+     * @param bundle Language data to push
+     */
+    public void pushUpdate(LanguageBundleCache.Bundle bundle) throws IOException
+    {
+        if ((caps & ATM.CAP_PUSH) == 0 || clientVersion == bundle.version)
+        {
+            return;
+        }
+        
+        writeUpdate(bundle);
+        tx.flush();
+    }
+    
+    /**
+     * Handle a MENU REQUEST.
+     */
+    private void handleMenuRequest() throws IOException
+    {
+        if (token == null)
+        {
+            ATMFrames.MENU_UNAUTHENTICATED.writeTo(tx);
+        }
+        else
+        {
+            ATMFrames.MENU_AUTHENTICATED.writeTo(tx);
+        }
+    }
+    
+    /**
+     * Handle an ACTION.
+     * 
+     * @param action_id Action to execute
+     * @param arg Action argument
+     * @param transact_id Transaction id to echo back to the client
+     */
+    private void handleAction(int action_id, int arg, int transact_id) throws IOException
+    {
+        switch(action_id)
+        {
+            case ATM.ACT_BALANCE:
+                tx.writeByte(ATM.MSG_RESPONSE);
+                tx.writeShort(transact_id);
+                
+                // the protocol has room for 32 bits of balance
+                long balance = bank.balance(token);
+                tx.writeInt((int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, balance)));
+                
+                break;
+            
+            case ATM.ACT_DEPOSIT:
+                if (token == null)
+                {
+                    throw new RuntimeException("Deposit from unauthenticated user");
+                }
+                
+                bank.deposit(token, arg);
+                
+                tx.writeByte(ATM.MSG_OK);
+                tx.writeShort(transact_id);
+                
+                ATMFrames.FOLLOWUP_DEPOSIT_BALANCE.writeTo(tx);
+                
+                sum = 0;
+                
+                break;
+            
+            case ATM.ACT_WITHDRAW:
+                if (token == null)
+                {
+                    throw new RuntimeException("Withdraw from unauthenticated user");
+                }
+                
+                sum = arg;
+                
+                tx.writeByte(ATM.MSG_OK);
+                tx.writeShort(transact_id);
+                
+                ATMFrames.FOLLOWUP_OTP.writeTo(tx);
+                
+                break;
+            
+            case ATM.ACT_OTP_WITHDRAW:
+                if (token == null)
+                {
+                    throw new RuntimeException("OTP from unauthenticated user");
+                }
+                
+                int otp = arg;
+                
+                switch(bank.withdraw(token, otp, sum))
+                {
+                    case OK:
+                        // debug("withdraw ok");
+                        tx.writeByte(ATM.MSG_OK);
+                        tx.writeShort(transact_id);
+                        break;
+                    
+                    case INSUFFICIENT_FUNDS:
+                        // debug("insuff funds");
+                        tx.writeByte(ATM.MSG_FAIL);
+                        tx.writeShort(transact_id);
+                        tx.writeByte(ATM.S_AMNTERROR);
+                        break;
+                    
+                    default:
+                        // debug("withdraw fail");
+                        tx.write(ATM.MSG_FAIL);
+                        tx.writeShort(transact_id);
+                        tx.write(ATM.S_ERRORTEXT);
+                        break;
+                }
+                
+                ATMFrames.FOLLOWUP_WITHDRAW_BALANCE.writeTo(tx);
+                
+                break;
+            
+            case ATM.ACT_LOGIN_CARDNO:
+                if (token != null)
+                {
+                    throw new RuntimeException("Login CARD from already authenticated user");
+                }
+                
+                cardno = arg;
+                
+                tx.write(ATM.MSG_OK);
+                tx.writeShort(transact_id);
+                
+                ATMFrames.FOLLOWUP_LOGIN_PIN.writeTo(tx);
+                
+                break;
+            
+            case ATM.ACT_LOGIN_PIN:
+                if (token != null)
+                {
+                    throw new RuntimeException("Login PIN from already authenticated user");
+                }
+                
+                int pin = arg;
+                
+                token = bank.getLoginToken(cardno, pin);
+                
+                if (token == null)
+                {
+                    tx.writeByte(ATM.MSG_FAIL);
+                    tx.writeShort(transact_id);
+                    tx.writeByte(ATM.S_ERRORTEXT);
+                }
+                else
+                {
+                    tx.writeByte(ATM.MSG_OK);
+                    tx.writeShort(transact_id);
+                    paused = pauseAfterLogin;
+                }
+                
+                break;
+            
+            case ATM.ACT_LOGOUT:
+                if (token == null)
+                {
+                    throw new RuntimeException("Logout from unauthenticated user");
+                }
+                
+                token = null;
+                
+                tx.writeByte(ATM.MSG_OK);
+                tx.writeShort(transact_id);
+                break;
+            
+            default:
+                throw new RuntimeException("Unrecognized action");
+                // break;
+        }
+    }
+    
+    /**
+     * Handle an UPDATE REQUEST.
+     * 
+     * @param version Language data version currently held by the client
+     * @param caps Capability bitfield announced by the client
+     */
+    private void handleUpdateRequest(int version, int caps) throws IOException
+    {
+        // debug("got update request");
+        this.caps = caps;
+        
+        LanguageBundleCache.Bundle bundle = languages.current();
+        
+        // debug("version: " + Integer.toString(version) + ", my version: " + Integer.toString(bundle.version));
+        
+        if (version != bundle.version)
+        {
+            // debug("sending language data");
+            clientVersion = version;
+            writeUpdate(bundle);
+        }
+        else
+        {
+            // debug("no update necessary");
+            tx.write(ATM.MSG_OK);
+            tx.writeShort(0);
+            clientVersion = bundle.version;
+        }
+    }
+    
+    /**
+     * Write the message bringing the client from the version it has to
+     * the version of a bundle: an UPDATE DELTA if the client accepts
+     * those and the bundle still knows the client version, otherwise
+     * the full UPDATE, compressed if the client accepts that.
+     * 
+     * @param bundle Language data to send
+     */
+    private void writeUpdate(LanguageBundleCache.Bundle bundle) throws IOException
+    {
+        ATMFrames.Frame frame = null;
+        
+        if ((caps & ATM.CAP_DELTA) != 0)
+        {
+            frame = bundle.delta(clientVersion);
+        }
+        
+        if (frame == null && (caps & ATM.CAP_DEFLATE) != 0)
+        {
+            frame = bundle.deflated;
+        }
+        
+        if (frame == null)
+        {
+            frame = bundle.update;
+        }
+        
+        tx.writeShared(frame);
+        clientVersion = bundle.version;
+    }
+    
+    /**
+     * Decoder state: waiting for the id of the next message.
+     */
+    private static final int ST_WAIT = 1000;
+    
+    /**
+     * Size of the body of an ACTION message, following the message id:
+     * action_id (8 bit), arg (32 bit) and transact_id (16 bit).
+     */
+    private static final int ACTION_BODY_SIZE = 7;
+    
+    /**
+     * Size of the body of an UPDATE REQUEST message, following the
+     * message id: version (32 bit).
+     */
+    private static final int UPDATE_REQUEST_BODY_SIZE = 4;
+    
+    /**
+     * Size of the body of an UPDATE REQUEST EX message, following the
+     * message id: version (32 bit) and caps (8 bit).
+     */
+    private static final int UPDATE_REQUEST_EX_BODY_SIZE = 5;
+    
+    /**
+     * Current decoder state. Either ST_WAIT or the id of a message whose
+     * body has not been fully received yet.
+     */
+    private int state = ST_WAIT;
+    
+    /**
+     * Session token of the authenticated user, or null if the user has
+     * not logged in.
+     */
+    private Bank.LoginToken token = null;
+    
+    /**
+     * Should decode() return after a successful login?
+     */
+    private boolean pauseAfterLogin = false;
+    
+    /**
+     * Has decode() been asked to return after the current message?
+     */
+    private boolean paused = false;
+    
+    /**
+     * Card number given during login.
+     */
+    private int cardno = 0;
+    
+    /**
+     * Amount given in a withdraw action, awaiting its OTP follow-up.
+     */
+    private int sum = 0;
+    
+    /**
+     * Capability bitfield announced by the client in its latest
+     * UPDATE REQUEST.
+     */
+    private int caps = 0;
+    
+    /**
+     * Language data version the client has, as far as the session knows.
+     */
+    private int clientVersion = -1;
+    
+    /**
+     * Writer to assemble server replies in.
+     */
+    private ATMFrameWriter tx;
+    
+    /**
+     * Bank being represented.
+     */
+    private Bank bank;
+    
+    /**
+     * Language data to send to clients.
+     */
+    private LanguageBundleCache languages;
+}
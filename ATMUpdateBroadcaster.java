@@ -0,0 +1,249 @@
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * ATMUpdateBroadcaster pushes new language data to all connected
+ * clients as soon as the language file changes, so that for example a
+ * new banner reaches every terminal without the terminals polling for it.
+ * 
+ * Pushes are rolled out at a limited rate (system property atm.pushRate,
+ * in sessions per second) so that a change does not make every terminal
+ * download the language data at the same instant. Each session is asked
+ * at most once per rollout; how and when the push is actually written is
+ * up to the session, which must never block the broadcaster and only
+ * ever keeps the latest pending bundle.
+ * 
+ * @author Mikael Forsberg <miforsb@kth.se>
+ * @author Robin Gunning <rgunning@kth.se>
+ * @version 20151204T1700
+ */
+public class ATMUpdateBroadcaster implements LanguageBundleCache.Listener
+{
+    /**
+     * ATMUpdateBroadcaster.Target is a connected session that
+     * updates can be pushed to.
+     */
+    public static interface Target
+    {
+        /**
+         * Push a bundle to the client, or remember it for pushing as soon
+         * as the connection is able to take it. Must not block.
+         * 
+         * @param bundle Bundle to push
+         */
+        public void pushUpdate(LanguageBundleCache.Bundle bundle);
+    }
+    
+    /**
+     * Create a new ATMUpdateBroadcaster.
+     * 
+     * @param languages Language data to broadcast changes of
+     */
+    public ATMUpdateBroadcaster(LanguageBundleCache languages)
+    {
+        int rate = Integer.getInteger("atm.pushRate", DEFAULT_PUSH_RATE);
+        
+        pushesPerTick = Math.max(1, rate * TICK_MILLIS / 1000);
+        
+        ThreadFactory daemons = new ThreadFactory()
+        {
+            public Thread newThread(Runnable task)
+            {
+                Thread thread = new Thread(task, "ATMUpdateBroadcaster");
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+        
+        scheduler = Executors.newSingleThreadScheduledExecutor(daemons);
+        deliveryPool = Executors.newFixedThreadPool(DELIVERY_THREADS, daemons);
+        
+        scheduler.scheduleAtFixedRate(new Runnable()
+        {
+            public void run()
+            {
+                tick();
+            }
+        }, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+        
+        languages.addListener(this);
+    }
+    
+    /**
+     * Register a connected session.
+     * 
+     * @param target Session to push updates to
+     */
+    public void register(Target target)
+    {
+        targets.add(target);
+    }
+    
+    /**
+     * Unregister a session that has disconnected.
+     * 
+     * @param target Session to stop pushing updates to
+     */
+    public void unregister(Target target)
+    {
+        targets.remove(target);
+    }
+    
+    /**
+     * Run a task that writes a push to a blocking socket. Tasks run on
+     * virtual threads when available, otherwise on a small pool of daemon
+     * threads; a task must therefore neither wait for its session nor
+     * write to a stalled client without a deadline (see schedule()).
+     * 
+     * @param task Task to run
+     */
+    public void deliver(Runnable task)
+    {
+        if (ATMServer.virtualThreadsAvailable())
+        {
+            ATMServer.startVirtualThread(task);
+        }
+        else
+        {
+            deliveryPool.execute(task);
+        }
+    }
+    
+    /**
+     * Run a short task after a delay, such as closing a connection whose
+     * push has not been written by a deadline.
+     * 
+     * @param task Task to run; must not block
+     * @param delayMillis Delay before running the task, in milliseconds
+     * @return Handle for cancelling the task
+     */
+    public ScheduledFuture<?> schedule(Runnable task, long delayMillis)
+    {
+        return scheduler.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Implementation of LanguageBundleCache.Listener.bundleChanged().
+     * Starts a new rollout, replacing any rollout still in progress.
+     * 
+     * @param bundle The new bundle
+     */
+    public void bundleChanged(LanguageBundleCache.Bundle bundle)
+    {
+        rolloutLock.lock();
+        
+        try
+        {
+            rollout = new ArrayList<Target>(targets);
+            rolloutBundle = bundle;
+            rolloutNext = 0;
+        }
+        finally
+        {
+            rolloutLock.unlock();
+        }
+    }
+    
+    /**
+     * Push the bundle of the current rollout to the next few sessions.
+     */
+    private void tick()
+    {
+        rolloutLock.lock();
+        
+        try
+        {
+            if (rollout == null)
+            {
+                return;
+            }
+            
+            int end = Math.min(rollout.size(), rolloutNext + pushesPerTick);
+            
+            for (; rolloutNext < end; ++rolloutNext)
+            {
+                Target target = rollout.get(rolloutNext);
+                
+                if (targets.contains(target))
+                {
+                    target.pushUpdate(rolloutBundle);
+                }
+            }
+            
+            if (rolloutNext == rollout.size())
+            {
+                rollout = null;
+                rolloutBundle = null;
+            }
+        }
+        finally
+        {
+            rolloutLock.unlock();
+        }
+    }
+    
+    /**
+     * Default rate of pushes, in sessions per second.
+     */
+    private static final int DEFAULT_PUSH_RATE = 1000;
+    
+    /**
+     * Interval between rollout steps, in milliseconds.
+     */
+    private static final int TICK_MILLIS = 100;
+    
+    /**
+     * Number of threads writing pushes to blocking sockets, when virtual
+     * threads are unavailable.
+     */
+    private static final int DELIVERY_THREADS = 4;
+    
+    /**
+     * Number of sessions pushed to per rollout step.
+     */
+    private final int pushesPerTick;
+    
+    /**
+     * Connected sessions.
+     */
+    private final Set<Target> targets = ConcurrentHashMap.newKeySet();
+    
+    /**
+     * Thread running the rollout steps.
+     */
+    private final ScheduledExecutorService scheduler;
+    
+    /**
+     * Threads writing pushes to blocking sockets.
+     */
+    private final ExecutorService deliveryPool;
+    
+    /**
+     * Lock protecting the rollout state.
+     */
+    private final Lock rolloutLock = new ReentrantLock();
+    
+    /**
+     * Sessions of the rollout in progress, or null if there is none.
+     */
+    private ArrayList<Target> rollout = null;
+    
+    /**
+     * Bundle of the rollout in progress.
+     */
+    private LanguageBundleCache.Bundle rolloutBundle = null;
+    
+    /**
+     * Index of the next session of the rollout in progress.
+     */
+    private int rolloutNext = 0;
+}
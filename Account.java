@@ -1,6 +1,11 @@
 /**
  * Account represents a single user bank account.
  * 
+ * The card number, PIN code and OTP password are held as the numbers a
+ * login or withdrawal compares; the accounts file writes them
+ * zero-padded (see AccountSnapshot), and any that is missing is held
+ * as -1, which never matches.
+ * 
  * @author Mikael Forsberg <miforsb@kth.se>
  * @author Robin Gunning <rgunning@kth.se>
  * @version 20151204T1700
@@ -12,7 +17,7 @@ public class Account implements java.io.Serializable
      * This should be changed when any changes have been
      * made to the public API of this class.
      */
-    static final long serialVersionUID = 8169274829459213L;
+    static final long serialVersionUID = 3927461058820417L;
     
     /**
      * Create a new empty account.
@@ -21,9 +26,9 @@ public class Account implements java.io.Serializable
     {
         name = "Unnamed";
         balance = -1;
-        cardNr = "-1";
-        pinCode = "-1";
-        nextOtp = "-1";
+        cardNr = -1;
+        pinCode = -1;
+        nextOtp = -1;
     }
     
     /**
@@ -35,7 +40,7 @@ public class Account implements java.io.Serializable
      * @param pinCode PIN code for the card number
      * @param nextOtp Initial OTP password for withdrawals
      */
-    public Account(String name, int balance, String cardNr, String pinCode, String nextOtp)
+    public Account(String name, long balance, int cardNr, int pinCode, int nextOtp)
     {
         this.name = name;
         this.balance = balance;
@@ -83,7 +88,7 @@ public class Account implements java.io.Serializable
      * 
      * @return Current balance of account
      */
-    public int getBalance()
+    public long getBalance()
     {
         return balance;
     }
@@ -93,7 +98,7 @@ public class Account implements java.io.Serializable
      * 
      * @param balance Balance to set
      */
-    public void setBalance(int balance)
+    public void setBalance(long balance)
     {
         this.balance = balance;
     }
@@ -103,7 +108,7 @@ public class Account implements java.io.Serializable
      * 
      * @return Card number of the account
      */
-    public String getCardNr()
+    public int getCardNr()
     {
         return cardNr;
     }
@@ -113,7 +118,7 @@ public class Account implements java.io.Serializable
      * 
      * @param cardNr Card number to set
      */
-    public void setCardNr(String cardNr)
+    public void setCardNr(int cardNr)
     {
         this.cardNr = cardNr;
     }
@@ -123,7 +128,7 @@ public class Account implements java.io.Serializable
      * 
      * @return PIN code of the account
      */
-    public String getPinCode()
+    public int getPinCode()
     {
         return pinCode;
     }
@@ -133,7 +138,7 @@ public class Account implements java.io.Serializable
      * 
      * @param pinCode PIN code to set
      */
-    public void setPinCode(String pinCode)
+    public void setPinCode(int pinCode)
     {
         this.pinCode = pinCode;
     }
@@ -143,7 +148,7 @@ public class Account implements java.io.Serializable
      * 
      * @return Next OTP password for the account
      */
-    public String getNextOtp()
+    public int getNextOtp()
     {
         return nextOtp;
     }
@@ -153,7 +158,7 @@ public class Account implements java.io.Serializable
      * 
      * @param nextOtp OTP password to set
      */
-    public void setNextOtp(String nextOtp)
+    public void setNextOtp(int nextOtp)
     {
         this.nextOtp = nextOtp;
     }
@@ -166,20 +171,20 @@ public class Account implements java.io.Serializable
     /**
      * Current balance of the account.
      */
-    private int balance;
+    private long balance;
     
     /**
      * Card number of the account.
      */
-    private String cardNr;
+    private int cardNr;
     
     /**
      * PIN code of the account.
      */
-    private String pinCode;
+    private int pinCode;
     
     /**
      * Next OTP password for the account.
      */
-    private String nextOtp;
+    private int nextOtp;
 }
@@ -0,0 +1,227 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * AccountLock guards the accounts of one stripe of a Bank. It can be
+ * held shared, by any number of deposits at once, or exclusively, by
+ * a withdrawal or a snapshot copying an account.
+ * 
+ * A deposit only adds to a balance, which the account store does
+ * atomically, so many deposits into one account may run at the same
+ * time. What they must not do is overlap a withdrawal or a snapshot
+ * copy. Taking a StampedLock read lock for that would have every
+ * deposit update the same lock word, which becomes the bottleneck for
+ * an account receiving deposits on every core. Instead, a shared holder
+ * only counts itself in one of several padded counters, chosen by its
+ * thread, and checks that nobody holds the lock exclusively; an
+ * exclusive holder takes the write lock of a StampedLock, announces
+ * itself, and waits for the counters to drain. As a deposit may hold
+ * the lock across its journal append, the exclusive holder only spins
+ * briefly, and then parks until a shared holder leaving wakes it. A
+ * shared holder finding the lock held exclusively backs out and waits
+ * on the read lock of the StampedLock instead.
+ * 
+ * @author Mikael Forsberg <miforsb@kth.se>
+ * @author Robin Gunning <rgunning@kth.se>
+ * @version 20151204T1700
+ */
+public class AccountLock
+{
+    /**
+     * Create a new AccountLock.
+     */
+    public AccountLock()
+    {
+        int cells = MIN_CELLS;
+        
+        while (cells < Runtime.getRuntime().availableProcessors())
+        {
+            cells <<= 1;
+        }
+        
+        mask = cells - 1;
+        readers = new AtomicLongArray(cells * CELL_PAD);
+    }
+    
+    /**
+     * Acquire the lock shared, blocking while it is held exclusively.
+     * The lock must be released by the same thread.
+     * 
+     * @return Stamp to pass to unlockShared()
+     */
+    public long lockShared()
+    {
+        int cell = cell();
+        
+        readers.incrementAndGet(cell);
+        
+        if (!exclusive)
+        {
+            return FAST_STAMP;
+        }
+        
+        readers.decrementAndGet(cell);
+        
+        return lock.readLock();
+    }
+    
+    /**
+     * Release the lock held shared.
+     * 
+     * @param stamp Stamp returned by lockShared()
+     */
+    public void unlockShared(long stamp)
+    {
+        if (stamp == FAST_STAMP)
+        {
+            readers.decrementAndGet(cell());
+            
+            Thread w = waiter;
+            
+            if (w != null)
+            {
+                LockSupport.unpark(w);
+            }
+        }
+        else
+        {
+            lock.unlockRead(stamp);
+        }
+    }
+    
+    /**
+     * Acquire the lock exclusively, blocking until every shared holder
+     * has released it.
+     * 
+     * @return Stamp to pass to unlock()
+     */
+    public long lock()
+    {
+        long stamp = lock.writeLock();
+        exclusive = true;
+        
+        for (int cell = 0; cell <= mask; ++cell)
+        {
+            for (int spins = 0; readers.get(cell * CELL_PAD) != 0; ++spins)
+            {
+                if (spins < MAX_SPINS)
+                {
+                    Thread.onSpinWait();
+                }
+                else if (waiter == null)
+                {
+                    // the counter is checked again before parking, and
+                    // a shared holder checks waiter after leaving, so
+                    // the wakeup cannot be missed
+                    waiter = Thread.currentThread();
+                }
+                else
+                {
+                    LockSupport.park(this);
+                }
+            }
+        }
+        
+        waiter = null;
+        
+        return stamp;
+    }
+    
+    /**
+     * Release the lock held exclusively.
+     * 
+     * @param stamp Stamp returned by lock()
+     */
+    public void unlock(long stamp)
+    {
+        exclusive = false;
+        lock.unlockWrite(stamp);
+    }
+    
+    /**
+     * Start an optimistic read, as StampedLock.tryOptimisticRead(). The
+     * read is only invalidated by exclusive holders, so it must not
+     * depend on more than one value a shared holder may change.
+     * 
+     * @return Stamp to pass to validate(), or 0 if the lock is held
+     *         exclusively
+     */
+    public long tryOptimisticRead()
+    {
+        return lock.tryOptimisticRead();
+    }
+    
+    /**
+     * Check that the lock has not been held exclusively since an
+     * optimistic read started.
+     * 
+     * @param stamp Stamp returned by tryOptimisticRead()
+     * @return True if the read is valid
+     */
+    public boolean validate(long stamp)
+    {
+        return lock.validate(stamp);
+    }
+    
+    /**
+     * Get the index of the counter of the current thread.
+     * 
+     * @return Index into readers
+     */
+    private int cell()
+    {
+        int h = System.identityHashCode(Thread.currentThread());
+        
+        return ((h ^ (h >>> 16)) & mask) * CELL_PAD;
+    }
+    
+    /**
+     * Stamp of a shared hold that did not touch the StampedLock. The
+     * StampedLock never returns 0 from a blocking acquire.
+     */
+    private static final long FAST_STAMP = 0;
+    
+    /**
+     * Smallest number of counters. Must be a power of two.
+     */
+    private static final int MIN_CELLS = 4;
+    
+    /**
+     * Spacing of the counters, in longs, so that each sits on a cache
+     * line of its own.
+     */
+    private static final int CELL_PAD = 16;
+    
+    /**
+     * Number of times an exclusive holder spins on a counter before it
+     * parks.
+     */
+    private static final int MAX_SPINS = 100;
+    
+    /**
+     * Lock taken by exclusive holders, and by shared holders while an
+     * exclusive holder is about.
+     */
+    private final StampedLock lock = new StampedLock();
+    
+    /**
+     * Number of shared holders counted in each counter.
+     */
+    private final AtomicLongArray readers;
+    
+    /**
+     * Mask selecting a counter.
+     */
+    private final int mask;
+    
+    /**
+     * Is the lock held, or about to be held, exclusively?
+     */
+    private volatile boolean exclusive = false;
+    
+    /**
+     * Exclusive holder parked waiting for the counters to drain, or null.
+     */
+    private volatile Thread waiter = null;
+}
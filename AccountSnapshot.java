@@ -0,0 +1,639 @@
+import com.esotericsoftware.yamlbeans.*;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * AccountSnapshot is a copy of the accounts of a Bank as of some
+ * journal position, and reads and writes the files holding one.
+ * 
+ * A snapshot file is either YAML, as edited by hand, or binary, which
+ * loads without going through the YAML parser and reflection and so
+ * is much faster for a large number of accounts. Reading tells the
+ * two apart by the magic number of a binary file; writing picks the
+ * binary format for filenames ending in BINARY_SUFFIX.
+ * 
+ * A YAML file starts with a comment line naming the journal position.
+ * It writes card numbers, PIN codes and OTP passwords zero-padded, as
+ * strings; they are parsed by the snapshot rather than by the YAML
+ * reader, which would take a number with a leading zero for octal.
+ * Any of them that is missing is held as -1, and written as "-1"; a
+ * file holding any other value that is not zero-padded is refused, as
+ * writing it back would lose it.
+ * A large YAML file is cut into chunks of whole accounts, where an
+ * account starts at column 0, and the chunks are parsed in parallel
+ * on the common ForkJoinPool.
+ * A binary file starts with a header
+ * 
+ * | 32 bit magic | 32 bit version | 64 bit txid | 32 bit count | 32 bit crc |
+ * 
+ * followed by count accounts, each a 64 bit balance, the name as
+ * length-prefixed modified UTF-8 (see DataOutput.writeUTF), and the
+ * card number, PIN code and OTP password as 32 bit numbers. The crc is
+ * the CRC32C of everything after the header.
+ * 
+ * Run as a program, it converts a snapshot file between the formats:
+ * 
+ * Usage: java AccountSnapshot infile outfile
+ * 
+ * @author Mikael Forsberg <miforsb@kth.se>
+ * @author Robin Gunning <rgunning@kth.se>
+ * @version 20151204T1700
+ */
+public class AccountSnapshot
+{
+    /**
+     * AccountSnapshot.YamlChunk parses a chunk of a YAML file, a run of
+     * whole accounts.
+     */
+    private static class YamlChunk extends RecursiveTask<List<Account>>
+    {
+        /**
+         * A version UID is required for java.io.Serializable, which
+         * RecursiveTask implements; chunks are never serialized.
+         */
+        static final long serialVersionUID = 5213870946128537L;
+        
+        /**
+         * Create a new YamlChunk.
+         * 
+         * @param filename Name of the file, for error messages
+         * @param yaml Contents of the file, after the header line
+         * @param start Position of the chunk in yaml
+         * @param end Position after the chunk in yaml
+         */
+        public YamlChunk(String filename, String yaml, int start, int end)
+        {
+            this.filename = filename;
+            this.yaml = yaml;
+            this.start = start;
+            this.end = end;
+        }
+        
+        /**
+         * Implementation of RecursiveTask.compute(). Errors are kept in
+         * error rather than thrown, so that they reach the reader as
+         * they were.
+         */
+        protected List<Account> compute()
+        {
+            List<Account> accounts = new ArrayList<Account>();
+            
+            try
+            {
+                YamlReader reader = new YamlReader(new StringReader(yaml.substring(start, end)),
+                                                   yamlConfig());
+                List<?> records = reader.read(ArrayList.class);
+                reader.close();
+                
+                if (records != null)
+                {
+                    accounts = new ArrayList<Account>(records.size());
+                    
+                    for (Object record : records)
+                    {
+                        if (!(record instanceof Map))
+                        {
+                            throw new IOException(filename + ": not an account: " + record);
+                        }
+                        
+                        accounts.add(fromYaml((Map<?, ?>) record));
+                    }
+                }
+            }
+            catch (IOException e)
+            {
+                error = start == 0 ? e : new IOException(filename + ", in the chunk starting on line "
+                                                         + firstLine() + ": " + e.getMessage(), e);
+            }
+            
+            return accounts;
+        }
+        
+        /**
+         * Get the line of the file the chunk starts on, counting the
+         * header line.
+         * 
+         * @return Line number, starting from 1
+         */
+        private int firstLine()
+        {
+            int line = 2;
+            
+            for (int i = 0; i < start; ++i)
+            {
+                if (yaml.charAt(i) == '\n')
+                {
+                    ++line;
+                }
+            }
+            
+            return line;
+        }
+        
+        /**
+         * Error parsing the chunk, or null if there was none.
+         */
+        public IOException error = null;
+        
+        /**
+         * Name of the file, for error messages.
+         */
+        private final String filename;
+        
+        /**
+         * Contents of the file, after the header line.
+         */
+        private final String yaml;
+        
+        /**
+         * Position of the chunk in yaml.
+         */
+        private final int start;
+        
+        /**
+         * Position after the chunk in yaml.
+         */
+        private final int end;
+    }
+    
+    /**
+     * Main entry point for converting a snapshot file.
+     * 
+     * @param args Command line arguments
+     */
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length != 2)
+        {
+            System.out.println("Usage: java AccountSnapshot infile outfile");
+            System.exit(1);
+        }
+        
+        AccountSnapshot snapshot = read(args[0]);
+        write(args[1], snapshot.accounts, snapshot.txid);
+        
+        System.out.println(snapshot.accounts.size() + " accounts written to " + args[1]);
+    }
+    
+    /**
+     * Create a new AccountSnapshot.
+     * 
+     * @param accounts Copy of the accounts
+     * @param txid Transaction id of the last journal record covered
+     */
+    public AccountSnapshot(AccountList accounts, long txid)
+    {
+        this.accounts = accounts;
+        this.txid = txid;
+    }
+    
+    /**
+     * Read a snapshot file of either format.
+     * 
+     * @param filename Name of file to read
+     * @return Snapshot held by the file
+     */
+    public static AccountSnapshot read(String filename) throws IOException
+    {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(filename)))
+        {
+            if (in.available() >= HEADER_SIZE && in.readInt() == MAGIC)
+            {
+                return readBinary(filename);
+            }
+        }
+        
+        return readYaml(filename);
+    }
+    
+    /**
+     * Read a YAML snapshot file.
+     * 
+     * @param filename Name of file to read
+     * @return Snapshot held by the file
+     */
+    private static AccountSnapshot readYaml(String filename) throws IOException
+    {
+        String yaml = new String(Files.readAllBytes(Paths.get(filename)));
+        long txid = 0;
+        
+        if (yaml.startsWith(YAML_HEADER))
+        {
+            int eol = yaml.indexOf('\n');
+            txid = Long.parseLong(yaml.substring(YAML_HEADER.length(), eol).trim());
+            yaml = yaml.substring(eol + 1);
+        }
+        
+        int numChunks = Math.max(1, Math.min(yaml.length() / MIN_CHUNK_SIZE,
+                                             Runtime.getRuntime().availableProcessors() * CHUNKS_PER_THREAD));
+        List<YamlChunk> chunks = new ArrayList<YamlChunk>(numChunks);
+        int start = 0;
+        
+        for (int i = 1; i < numChunks && start < yaml.length(); ++i)
+        {
+            int end = nextAccount(yaml, Math.max(start, (int) ((long) yaml.length() * i / numChunks)));
+            
+            if (end > start)
+            {
+                chunks.add(new YamlChunk(filename, yaml, start, end));
+                start = end;
+            }
+        }
+        
+        chunks.add(new YamlChunk(filename, yaml, start, yaml.length()));
+        
+        // the first chunk is parsed by this thread, the others by the pool
+        ForkJoinTask.invokeAll(chunks);
+        
+        int count = 0;
+        
+        for (YamlChunk chunk : chunks)
+        {
+            if (chunk.error != null)
+            {
+                throw chunk.error;
+            }
+            
+            count += chunk.join().size();
+        }
+        
+        AccountList accounts = new AccountList();
+        accounts.ensureCapacity(count);
+        
+        for (YamlChunk chunk : chunks)
+        {
+            accounts.addAll(chunk.join());
+        }
+        
+        return new AccountSnapshot(accounts, txid);
+    }
+    
+    /**
+     * Find the start of the next account of a YAML file, a line starting
+     * a top-level sequence entry.
+     * 
+     * @param yaml Contents of the file
+     * @param from Position to search from
+     * @return Position of the account, or the length of yaml if there
+     *         is none
+     */
+    private static int nextAccount(String yaml, int from)
+    {
+        for (int i = yaml.indexOf("\n-", Math.max(from, 1) - 1); i >= 0; i = yaml.indexOf("\n-", i + 1))
+        {
+            if (i + 2 == yaml.length() || yaml.charAt(i + 2) == ' ' || yaml.charAt(i + 2) == '\n')
+            {
+                return i + 1;
+            }
+        }
+        
+        return yaml.length();
+    }
+    
+    /**
+     * Get the YAML configuration of a snapshot file, under which an
+     * account reads as a map of strings rather than as an Account.
+     * 
+     * @return YAML configuration
+     */
+    private static YamlConfig yamlConfig()
+    {
+        YamlConfig config = new YamlConfig();
+        config.setClassTag("AccountList", ArrayList.class);
+        config.setClassTag("Account", LinkedHashMap.class);
+        
+        return config;
+    }
+    
+    /**
+     * Make an account from its YAML form. A missing field keeps the
+     * value of a new Account.
+     * 
+     * @param record Fields of the account, as read
+     * @return The account
+     */
+    private static Account fromYaml(Map<?, ?> record) throws IOException
+    {
+        Account acc = new Account();
+        Object name = record.get("name");
+        Object balance = record.get("balance");
+        
+        if (name != null)
+        {
+            acc.setName(name.toString());
+        }
+        
+        if (balance != null)
+        {
+            try
+            {
+                acc.setBalance(Long.decode(balance.toString()));
+            }
+            catch (NumberFormatException e)
+            {
+                throw new IOException("bad balance: " + balance, e);
+            }
+        }
+        
+        acc.setCardNr(parseField("cardNr", record.get("cardNr"), Bank.CARD_DIGITS));
+        acc.setPinCode(parseField("pinCode", record.get("pinCode"), Bank.PIN_DIGITS));
+        acc.setNextOtp(parseField("nextOtp", record.get("nextOtp"), Bank.OTP_DIGITS));
+        
+        return acc;
+    }
+    
+    /**
+     * Parse a zero-padded numeric field of an account.
+     * 
+     * @param field Name of the field, for error messages
+     * @param value Field as read, or null if missing
+     * @param width Number of digits the field is zero-padded to
+     * @return The number, or -1 if the field is missing or written as -1
+     */
+    private static int parseField(String field, Object value, int width) throws IOException
+    {
+        if (value == null || value.toString().equals(MISSING_FIELD))
+        {
+            return -1;
+        }
+        
+        int n = Bank.parsePadded(value.toString(), width);
+        
+        if (n < 0)
+        {
+            throw new IOException("bad " + field + ": " + value + " (not " + width + " digits)");
+        }
+        
+        return n;
+    }
+    
+    /**
+     * Get the YAML form of an account.
+     * 
+     * @param acc Account to write
+     * @return Fields of the account, in the order written
+     */
+    private static Map<String, Object> toYaml(Account acc)
+    {
+        Map<String, Object> record = new LinkedHashMap<String, Object>();
+        record.put("name", acc.getName());
+        record.put("balance", acc.getBalance());
+        record.put("cardNr", Bank.formatPadded(acc.getCardNr(), Bank.CARD_DIGITS));
+        record.put("nextOtp", Bank.formatPadded(acc.getNextOtp(), Bank.OTP_DIGITS));
+        record.put("pinCode", Bank.formatPadded(acc.getPinCode(), Bank.PIN_DIGITS));
+        
+        return record;
+    }
+    
+    /**
+     * Read a binary snapshot file.
+     * 
+     * @param filename Name of file to read
+     * @return Snapshot held by the file
+     */
+    private static AccountSnapshot readBinary(String filename) throws IOException
+    {
+        try (FileInputStream file = new FileInputStream(filename))
+        {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            
+            while (header.hasRemaining() && file.getChannel().read(header) >= 0);
+            
+            header.flip();
+            
+            if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC)
+            {
+                throw new IOException(filename + ": not a binary snapshot");
+            }
+            
+            int version = header.getInt();
+            
+            if (version != VERSION)
+            {
+                throw new IOException(filename + ": unsupported snapshot version " + version);
+            }
+            
+            long txid = header.getLong();
+            int count = header.getInt();
+            int crc = header.getInt();
+            
+            // the count is not covered by the checksum, so check that the
+            // file could hold that many accounts before making room for them
+            long room = (file.getChannel().size() - HEADER_SIZE) / MIN_RECORD_SIZE;
+            
+            if (count < 0 || count > room)
+            {
+                throw new IOException(filename + ": snapshot corrupt, cannot hold " + count + " accounts");
+            }
+            
+            CheckedInputStream checked = new CheckedInputStream(file, new CRC32C());
+            DataInputStream in = new DataInputStream(new BufferedInputStream(checked, BUFFER_SIZE));
+            AccountList accounts = new AccountList();
+            accounts.ensureCapacity(count);
+            
+            try
+            {
+                for (int i = 0; i < count; ++i)
+                {
+                    long balance = in.readLong();
+                    String name = in.readUTF();
+                    
+                    accounts.add(new Account(name, balance, in.readInt(), in.readInt(), in.readInt()));
+                }
+            }
+            catch (UTFDataFormatException | EOFException e)
+            {
+                // a damaged file may not even get as far as the checksum
+                throw new IOException(filename + ": snapshot corrupt", e);
+            }
+            
+            if (in.read() >= 0 || (int) checked.getChecksum().getValue() != crc)
+            {
+                throw new IOException(filename + ": snapshot checksum mismatch");
+            }
+            
+            return new AccountSnapshot(accounts, txid);
+        }
+    }
+    
+    /**
+     * Write a snapshot file, in the binary format if the filename ends
+     * in BINARY_SUFFIX and as YAML otherwise. A new file is written,
+     * forced to disk and moved into place, so that a crash never leaves
+     * a half-written snapshot behind.
+     * 
+     * @param filename Name of file to write
+     * @param accounts Accounts to write
+     * @param txid Transaction id of the last journal record covered
+     */
+    public static void write(String filename, List<Account> accounts, long txid) throws IOException
+    {
+        String tmpfile = filename + ".tmp";
+        
+        try (FileChannel channel = FileChannel.open(Paths.get(tmpfile), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+        {
+            if (filename.endsWith(BINARY_SUFFIX))
+            {
+                writeBinary(channel, accounts, txid);
+            }
+            else
+            {
+                writeYaml(channel, accounts, txid);
+            }
+            
+            channel.force(true);
+        }
+        
+        Files.move(Paths.get(tmpfile), Paths.get(filename),
+                   StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+    
+    /**
+     * Write a YAML snapshot.
+     * 
+     * @param channel Channel to write to
+     * @param accounts Accounts to write
+     * @param txid Transaction id of the last journal record covered
+     */
+    private static void writeYaml(FileChannel channel, List<Account> accounts, long txid) throws IOException
+    {
+        List<Map<String, Object>> records = new ArrayList<Map<String, Object>>(accounts.size());
+        
+        for (Account acc : accounts)
+        {
+            records.add(toYaml(acc));
+        }
+        
+        // closing the YAML writer closes what it writes to, so render
+        // the document first
+        StringWriter yaml = new StringWriter();
+        yaml.write(YAML_HEADER + txid + "\n");
+        
+        YamlWriter writer = new YamlWriter(yaml, yamlConfig());
+        writer.write(records);
+        writer.close();
+        
+        ByteBuffer data = ByteBuffer.wrap(yaml.toString().getBytes());
+        
+        while (data.hasRemaining())
+        {
+            channel.write(data);
+        }
+    }
+    
+    /**
+     * Write a binary snapshot. The accounts are streamed out behind a
+     * blank header, which is filled in once the checksum is known.
+     * 
+     * @param channel Channel to write to
+     * @param accounts Accounts to write
+     * @param txid Transaction id of the last journal record covered
+     */
+    private static void writeBinary(FileChannel channel, List<Account> accounts, long txid) throws IOException
+    {
+        channel.position(HEADER_SIZE);
+        
+        CheckedOutputStream checked = new CheckedOutputStream(Channels.newOutputStream(channel), new CRC32C());
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(checked, BUFFER_SIZE));
+        
+        for (Account acc : accounts)
+        {
+            out.writeLong(acc.getBalance());
+            out.writeUTF(acc.getName());
+            out.writeInt(acc.getCardNr());
+            out.writeInt(acc.getPinCode());
+            out.writeInt(acc.getNextOtp());
+        }
+        
+        out.flush();
+        
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putLong(txid);
+        header.putInt(accounts.size());
+        header.putInt((int) checked.getChecksum().getValue());
+        header.flip();
+        
+        while (header.hasRemaining())
+        {
+            channel.write(header, header.position());
+        }
+    }
+    
+    /**
+     * Filename suffix that selects the binary format when writing.
+     */
+    public static final String BINARY_SUFFIX = ".snap";
+    
+    /**
+     * First line of a YAML snapshot, followed by the transaction id of
+     * the last journal record it covers.
+     */
+    private static final String YAML_HEADER = "# journal: ";
+    
+    /**
+     * How a missing card number, PIN code or OTP password is written.
+     */
+    private static final String MISSING_FIELD = "-1";
+    
+    /**
+     * Magic number starting a binary snapshot, "ATMB".
+     */
+    private static final int MAGIC = 0x41544d42;
+    
+    /**
+     * Version of the binary format.
+     */
+    private static final int VERSION = 1;
+    
+    /**
+     * Size of the header of a binary snapshot.
+     */
+    private static final int HEADER_SIZE = 24;
+    
+    /**
+     * Smallest size of an account in a binary file: balance, empty name
+     * and three numbers.
+     */
+    private static final int MIN_RECORD_SIZE = 8 + 2 + 3 * 4;
+    
+    /**
+     * Size of the buffers used when streaming a snapshot.
+     */
+    private static final int BUFFER_SIZE = 1 << 16;
+    
+    /**
+     * Smallest YAML chunk worth parsing on its own, in characters.
+     */
+    private static final int MIN_CHUNK_SIZE = 1 << 16;
+    
+    /**
+     * Number of YAML chunks per processor, so that a thread that is done
+     * early can take over part of the work of a slower one.
+     */
+    private static final int CHUNKS_PER_THREAD = 4;
+    
+    /**
+     * Copy of the accounts.
+     */
+    public final AccountList accounts;
+    
+    /**
+     * Transaction id of the last journal record covered by the snapshot.
+     */
+    public final long txid;
+}
@@ -0,0 +1,133 @@
+import java.io.IOException;
+
+/**
+ * AccountStore holds the accounts of a Bank. Accounts are addressed by
+ * slot, their position in the store, which never changes once an
+ * account has been added.
+ * 
+ * A store does not lock anything itself. The bank guards adding
+ * accounts with its table lock and the fields of each account with
+ * that account's lock; reads and writes of different slots may
+ * happen concurrently. Balances are the exception: each is an atomic
+ * 64 bit cell, so that deposits into one account may run at the same
+ * time, and is read and written as a long.
+ * 
+ * @author Mikael Forsberg <miforsb@kth.se>
+ * @author Robin Gunning <rgunning@kth.se>
+ * @version 20151204T1700
+ */
+public interface AccountStore
+{
+    /**
+     * Get the number of accounts in the store.
+     * 
+     * @return Number of accounts
+     */
+    public int size();
+    
+    /**
+     * Add an account to the store.
+     * 
+     * @param acc Account to add
+     * @return Slot of the new account
+     */
+    public int add(Account acc) throws IOException;
+    
+    /**
+     * Get a copy of an account.
+     * 
+     * @param slot Slot of the account
+     * @return New Account holding the fields of the account
+     */
+    public Account get(int slot);
+    
+    /**
+     * Get the balance of an account.
+     * 
+     * @param slot Slot of the account
+     * @return Current balance of the account
+     */
+    public long getBalance(int slot);
+    
+    /**
+     * Set the balance of an account.
+     * 
+     * @param slot Slot of the account
+     * @param balance Balance to set
+     */
+    public void setBalance(int slot, long balance);
+    
+    /**
+     * Atomically add to the balance of an account.
+     * 
+     * @param slot Slot of the account
+     * @param delta Amount to add
+     * @return New balance of the account
+     */
+    public long addBalance(int slot, long delta);
+    
+    /**
+     * Atomically set the balance of an account, if it is as expected.
+     * 
+     * @param slot Slot of the account
+     * @param expected Balance the account is expected to have
+     * @param balance Balance to set
+     * @return True if the balance was set, false if it was not as
+     *         expected
+     */
+    public boolean compareAndSetBalance(int slot, long expected, long balance);
+    
+    /**
+     * Get the card number of an account, as a login compares it.
+     * 
+     * @param slot Slot of the account
+     * @return Card number of the account, or -1 if it is not written
+     *         zero-padded to Bank.CARD_DIGITS digits
+     */
+    public int getCardNr(int slot);
+    
+    /**
+     * Get the PIN code of an account, as a login compares it.
+     * 
+     * @param slot Slot of the account
+     * @return PIN code of the account, or -1 if it is not written
+     *         zero-padded to Bank.PIN_DIGITS digits
+     */
+    public int getPinCode(int slot);
+    
+    /**
+     * Get the next OTP password of an account, as a withdrawal
+     * compares it.
+     * 
+     * @param slot Slot of the account
+     * @return Next OTP password of the account, or -1 if it is not
+     *         written zero-padded to Bank.OTP_DIGITS digits
+     */
+    public int getNextOtp(int slot);
+    
+    /**
+     * Set the next OTP password of an account.
+     * 
+     * @param slot Slot of the account
+     * @param nextOtp OTP password to set
+     */
+    public void setNextOtp(int slot, int nextOtp);
+    
+    /**
+     * Hand any changes made so far to the operating system, if the
+     * store is kept on disk at all, so that they survive a crash of the
+     * server but not necessarily of the machine.
+     */
+    public void flush() throws IOException;
+    
+    /**
+     * Write any changes made so far to disk, if the store is kept on
+     * disk at all.
+     */
+    public void force() throws IOException;
+    
+    /**
+     * Release the resources of the store.
+     */
+    public void close() throws IOException;
+}
@@ -0,0 +1,241 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * ArrayAccountStore keeps accounts in memory as parallel arrays of
+ * numbers, one per field, rather than as one Account object per
+ * account. Balances are kept as 64 bit cells, and names as references
+ * to the strings they were added with. An
+ * account thus takes 24 bytes besides its name, where an Account
+ * and its strings take a few hundred, and the whole table is a few
+ * large arrays of primitives, which the garbage collector never has
+ * to look into.
+ * 
+ * The arrays are cut into chunks, which are never moved, only added,
+ * so adding an account never holds up a change to another one.
+ * 
+ * @author Mikael Forsberg <miforsb@kth.se>
+ * @author Robin Gunning <rgunning@kth.se>
+ * @version 20151204T1700
+ */
+public class ArrayAccountStore implements AccountStore
+{
+    /**
+     * ArrayAccountStore.Chunk holds the fields of CHUNK_SIZE
+     * consecutive slots.
+     */
+    private static class Chunk
+    {
+        /**
+         * Card numbers.
+         */
+        public final int[] cardNrs = new int[CHUNK_SIZE];
+        
+        /**
+         * PIN codes.
+         */
+        public final int[] pinCodes = new int[CHUNK_SIZE];
+        
+        /**
+         * Next OTP passwords.
+         */
+        public final int[] nextOtps = new int[CHUNK_SIZE];
+        
+        /**
+         * Names.
+         */
+        public final String[] names = new String[CHUNK_SIZE];
+        
+        /**
+         * Balances, accessed through BALANCE.
+         */
+        public final long[] balances = new long[CHUNK_SIZE];
+    }
+    
+    /**
+     * Create a new ArrayAccountStore.
+     * 
+     * @param accounts Accounts to hold; they are copied, and the
+     *        list may be dropped afterwards
+     */
+    public ArrayAccountStore(List<Account> accounts)
+    {
+        for (Account acc : accounts)
+        {
+            add(acc);
+        }
+    }
+    
+    /**
+     * Implementation of AccountStore.size()
+     */
+    public int size()
+    {
+        return size;
+    }
+    
+    /**
+     * Implementation of AccountStore.add()
+     */
+    public int add(Account acc)
+    {
+        int slot = size;
+        int chunk = slot >>> CHUNK_BITS;
+        
+        if (chunk == chunks.length)
+        {
+            Chunk[] grown = Arrays.copyOf(chunks, chunks.length + 1);
+            grown[chunk] = new Chunk();
+            chunks = grown;
+        }
+        
+        Chunk c = chunks[chunk];
+        int i = slot & CHUNK_MASK;
+        
+        c.cardNrs[i] = acc.getCardNr();
+        c.pinCodes[i] = acc.getPinCode();
+        c.nextOtps[i] = acc.getNextOtp();
+        c.names[i] = acc.getName();
+        BALANCE.setVolatile(c.balances, i, acc.getBalance());
+        
+        size = slot + 1;
+        
+        return slot;
+    }
+    
+    /**
+     * Implementation of AccountStore.get()
+     */
+    public Account get(int slot)
+    {
+        Chunk c = chunks[slot >>> CHUNK_BITS];
+        int i = slot & CHUNK_MASK;
+        
+        return new Account(c.names[i], getBalance(slot), c.cardNrs[i],
+                           c.pinCodes[i], c.nextOtps[i]);
+    }
+    
+    /**
+     * Implementation of AccountStore.getBalance()
+     */
+    public long getBalance(int slot)
+    {
+        return (long) BALANCE.getVolatile(chunks[slot >>> CHUNK_BITS].balances, slot & CHUNK_MASK);
+    }
+    
+    /**
+     * Implementation of AccountStore.setBalance()
+     */
+    public void setBalance(int slot, long balance)
+    {
+        BALANCE.setVolatile(chunks[slot >>> CHUNK_BITS].balances, slot & CHUNK_MASK, balance);
+    }
+    
+    /**
+     * Implementation of AccountStore.addBalance()
+     */
+    public long addBalance(int slot, long delta)
+    {
+        return (long) BALANCE.getAndAdd(chunks[slot >>> CHUNK_BITS].balances,
+                                        slot & CHUNK_MASK, delta) + delta;
+    }
+    
+    /**
+     * Implementation of AccountStore.compareAndSetBalance()
+     */
+    public boolean compareAndSetBalance(int slot, long expected, long balance)
+    {
+        return BALANCE.compareAndSet(chunks[slot >>> CHUNK_BITS].balances, slot & CHUNK_MASK,
+                                     expected, balance);
+    }
+    
+    /**
+     * Implementation of AccountStore.getCardNr()
+     */
+    public int getCardNr(int slot)
+    {
+        return chunks[slot >>> CHUNK_BITS].cardNrs[slot & CHUNK_MASK];
+    }
+    
+    /**
+     * Implementation of AccountStore.getPinCode()
+     */
+    public int getPinCode(int slot)
+    {
+        return chunks[slot >>> CHUNK_BITS].pinCodes[slot & CHUNK_MASK];
+    }
+    
+    /**
+     * Implementation of AccountStore.getNextOtp()
+     */
+    public int getNextOtp(int slot)
+    {
+        return chunks[slot >>> CHUNK_BITS].nextOtps[slot & CHUNK_MASK];
+    }
+    
+    /**
+     * Implementation of AccountStore.setNextOtp()
+     */
+    public void setNextOtp(int slot, int nextOtp)
+    {
+        chunks[slot >>> CHUNK_BITS].nextOtps[slot & CHUNK_MASK] = nextOtp;
+    }
+    
+    /**
+     * Implementation of AccountStore.flush(). The accounts only live
+     * in memory, so there is nothing to do.
+     */
+    public void flush()
+    {
+        
+    }
+    
+    /**
+     * Implementation of AccountStore.force(). The accounts only live
+     * in memory, so there is nothing to do.
+     */
+    public void force()
+    {
+        
+    }
+    
+    /**
+     * Implementation of AccountStore.close()
+     */
+    public void close()
+    {
+        
+    }
+    
+    /**
+     * Number of bits of a slot selecting the account within a chunk.
+     */
+    private static final int CHUNK_BITS = 12;
+    
+    /**
+     * Number of accounts in a chunk.
+     */
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    
+    /**
+     * Mask selecting the account within a chunk.
+     */
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    
+    /**
+     * Atomic access to the balance cells of a chunk.
+     */
+    private static final VarHandle BALANCE = MethodHandles.arrayElementVarHandle(long[].class);
+    
+    /**
+     * Chunks of accounts, by slot.
+     */
+    private volatile Chunk[] chunks = new Chunk[0];
+    
+    /**
+     * Number of accounts.
+     */
+    private volatile int size = 0;
+}
@@ -1,17 +1,78 @@
 // *neode.command* setgo rm -f ./*.class; javac -Xlint -cp .:./yamlbeans-1.09/yamlbeans-1.09.jar Bank.java; java -cp .:./yamlbeans-1.09/yamlbeans-1.09.jar Bank; cat accounts.yml
-import com.esotericsoftware.yamlbeans.*;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
-import java.util.Random;
+import java.util.concurrent.locks.StampedLock;
 
 /**
  * Bank represents a (currency-centric) bank capable of handling
  * transactions in several accounts pseudo-concurrently.
  * 
+ * The accounts are held by an AccountStore and addressed by slot.
+ * Locking is two-level. The table lock guards the store's list of
+ * accounts and the card index, and is only taken exclusively for
+ * structural changes (loading and creating accounts). The fields of
+ * each account are guarded by one of a fixed set of striped account
+ * locks, so that transactions on different accounts rarely contend.
+ * Deposits only hold their account lock shared (see AccountLock) and
+ * add to the balance atomically, so deposits into the same account
+ * run side by side; an account whose balance sees contended updates
+ * is given a striped accumulator, which is added to the balance
+ * whenever it is read. Saving to disk works on a copy-on-write view
+ * and holds neither lock for long.
+ * 
+ * By default the accounts are kept in memory (ListAccountStore), and
+ * deposits and withdrawals are made durable by appending a record to
+ * a BankJournal. The accounts file is only rewritten as a snapshot
+ * every so many records; it names the last journal record it covers,
+ * and loading it replays the records written after that one. It may
+ * be YAML or, for a large number of accounts, the faster binary
+ * format of AccountSnapshot. Snapshots are written by a background
+ * thread once the journal has grown long or some time has passed.
+ * A transaction returns once its record is as durable as the
+ * atm.durability property asks for (none, async, group or sync; see
+ * BankJournal.Durability).
+ * 
+ * With atm.accountStore=array, the accounts are kept in memory as
+ * parallel arrays of numbers (ArrayAccountStore), which takes a
+ * fraction of the memory of Account objects for a large bank.
+ * 
+ * With atm.accountStore=mapped, the accounts are instead kept in a
+ * memory-mapped binary file next to the accounts file
+ * (MappedAccountStore), imported from the accounts file the first time.
+ * Transactions then change the file in place and no journal is kept;
+ * the mapping is forced to disk after every transaction with
+ * atm.durability=sync, and otherwise by the background thread.
+ * 
+ * With atm.accountStore=paged, the accounts are kept in the same file,
+ * but only those in use are held in memory (PagedAccountStore, with
+ * room for atm.cachedAccounts accounts), and the card index is read
+ * from an index file next to it, so a bank may have many more accounts
+ * than fit in the heap. An account is read from the file on its first
+ * login. Changed accounts are written back to the file as each
+ * transaction commits, and forced to disk as the mapped store is.
+ * 
+ * Session tokens are random numbers looked up in a SessionStore. With
+ * atm.sessionTokens=signed, a token instead holds the account slot and
+ * expiration time, signed by a SessionSigner; validating it needs no
+ * session table, so any bank with the same key, read from the file
+ * named by atm.sessionKeyFile, accepts it. Tokens never leave the
+ * server: the protocol has no field for one, and ATMSession keeps the
+ * token of its connection. Signing only spares the bank its session
+ * table and reaper, and lets banks in one process share sessions.
+ * Reloading the accounts ends every session, as the slots of the old
+ * accounts mean nothing in the new ones: the session table is emptied,
+ * and signed tokens are signed with a new random key from then on.
+ * 
  * @author Mikael Forsberg <miforsb@kth.se>
  * @author Robin Gunning <rgunning@kth.se>
  * @version 20151204T1700
@@ -38,6 +99,65 @@ public class Bank
             this.expires = (System.currentTimeMillis() / 1000L) + ttl_seconds;
         }
         
+        /**
+         * Create a new signed LoginToken.
+         * 
+         * @param value Numeric value of the token
+         * @param ttl_seconds Lifetime (time of validity, in seconds)
+         *        of the token
+         * @param signature Signature of the value
+         */
+        public LoginToken(long value, long ttl_seconds, long signature)
+        {
+            this(value, ttl_seconds);
+            this.signature = signature;
+        }
+        
+        /**
+         * Returns the numeric value of the token.
+         * 
+         * @return Numeric token value
+         */
+        public long getValue()
+        {
+            return value;
+        }
+        
+        /**
+         * Returns the signature of the token value.
+         * 
+         * @return Signature, or 0 if the token is not signed
+         */
+        public long getSignature()
+        {
+            return signature;
+        }
+        
+        /**
+         * Returns the shard of a ShardedBank that issued the token.
+         * 
+         * @return Index of the shard, or 0 if not issued by a ShardedBank
+         */
+        public int getShard()
+        {
+            return shard;
+        }
+        
+        /**
+         * Copy the token, marked as issued by a shard of a ShardedBank.
+         * 
+         * @param shard Index of the shard
+         * @return New token with the same value, expiration and signature
+         */
+        public LoginToken withShard(int shard)
+        {
+            LoginToken copy = new LoginToken(value, 0, signature);
+            copy.expires = expires;
+            copy.shard = shard;
+            
+            return copy;
+        }
+        
         /**
          * Is the token equal to some other token?
          * 
@@ -68,321 +188,1566 @@ public class Bank
          * UNIX timestamp of token expiration.
          */
         private long expires;
-    }
-    
-    /**
-     * Create a new bank without loading any accounts.
-     */
-    public Bank()
-    {
         
+        /**
+         * Signature of the token value, if signed.
+         */
+        private long signature = 0;
+        
+        /**
+         * Shard of the ShardedBank that issued the token.
+         */
+        private int shard = 0;
     }
     
     /**
-     * Create a new bank, loading accounts from a given file.
-     * 
-     * @param accountsFile YAML database of accounts
-     */
-    public Bank(String accountsFile)
-    {
-        this.accountsFile = accountsFile;
-        loadAccounts();
-    }
-    
-    /**
-     * Load accounts.
+     * Bank.WithdrawResult is the outcome of a withdrawal.
      */
-    public boolean loadAccounts()
+    public enum WithdrawResult
     {
-        return loadAccounts(accountsFile);
+        /**
+         * The currency was withdrawn.
+         */
+        OK,
+        
+        /**
+         * The balance of the account does not cover the amount.
+         */
+        INSUFFICIENT_FUNDS,
+        
+        /**
+         * The OTP password is not the next one of the account.
+         */
+        BAD_OTP,
+        
+        /**
+         * The session token is invalid or has expired.
+         */
+        BAD_SESSION,
+        
+        /**
+         * The amount is not positive, or the withdrawal could not be
+         * made durable.
+         */
+        FAILED
     }
     
     /**
-     * Load accounts from a given filename.
-     * 
-     * @param filename Name of file to load accounts from
+     * Bank.Table is an account store together with its card index. The
+     * two are replaced as one when the accounts are reloaded, so that a
+     * slot found in the index always belongs to the store read.
      */
-    public boolean loadAccounts(String filename)
+    private static class Table
     {
-        accountsLock.lock(); // blocks until obtained
-        
-        try
-        {
-            YamlReader reader = new YamlReader(new FileReader(filename));
-            accounts = reader.read(AccountList.class);
-            reader.close();
-        }
-        catch (Exception e)
-        {
-            System.out.println(e);
-            return false;
-        }
-        finally
+        /**
+         * Create a new Table.
+         * 
+         * @param store Accounts of the bank
+         * @param index Index from card number to slot in the store
+         */
+        public Table(AccountStore store, CardIndex index)
         {
-            accountsLock.unlock();
+            this.store = store;
+            this.index = index;
         }
         
-        return true;
+        /**
+         * Accounts of the bank.
+         */
+        public final AccountStore store;
+        
+        /**
+         * Index from card number to slot in the account store.
+         */
+        public final CardIndex index;
     }
     
     /**
-     * File a new account with the bank.
+     * Bank.Snapshot is a consistent copy of the accounts, together
+     * with the journal position it covers.
      * 
-     * @param acc New account to file
-     * @return True if the account was added successfully,
-     *         false otherwise
+     * The copy is taken copy-on-write: the snapshot fixes its journal
+     * position, then copies the accounts one at a time while transactions
+     * go on. A transaction past that position that changes an account
+     * first records its change to the balance, and preserves the OTP
+     * password as it was, so that the snapshot can undo the change.
      */
-    public boolean createAccount(Account acc)
+    private static class Snapshot
     {
-        accountsLock.lock(); // blocks until obtained
+        /**
+         * Copy of the accounts.
+         */
+        public final AccountList accounts = new AccountList();
         
-        accounts.add(acc);
-        saveAccounts();
+        /**
+         * Sum of the changes to the balance made past the journal
+         * position of the snapshot, by slot.
+         */
+        public final ConcurrentHashMap<Integer, LongAdder> later =
+            new ConcurrentHashMap<Integer, LongAdder>();
         
-        accountsLock.unlock();
+        /**
+         * OTP passwords as they were at the journal position of the
+         * snapshot, for those changed since, by slot.
+         */
+        public final ConcurrentHashMap<Integer, Integer> preservedOtp =
+            new ConcurrentHashMap<Integer, Integer>();
         
-        return true;
+        /**
+         * Transaction id of the last journal record reflected in the
+         * copy, or 0 if there is no journal.
+         */
+        public long txid = 0;
     }
     
     /**
-     * Save accounts to disk.
-     * 
-     * @return True if the accounts were written to disk
-     *         successfully, false otherwise
+     * Bank.Deferred counts the transactions of one thread whose commit
+     * has been deferred (see deferCommits()).
      */
-    public boolean saveAccounts()
+    private static class Deferred
     {
-        return saveAccounts(accountsFile);
+        /**
+         * Transaction id of the last transaction deferred.
+         */
+        public long txid = 0;
+        
+        /**
+         * Number of transactions deferred since the last commit().
+         */
+        public int count = 0;
     }
     
     /**
-     * Save accounts to a given filename.
-     * 
-     * @param filename Name of file to write accounts to
-     * @return True if the accounts were written to disk
-     *         successfully, false otherwise
+     * Create a new bank without loading any accounts.
      */
-    public boolean saveAccounts(String filename)
+    public Bank()
     {
-        accountsLock.lock(); // blocks until obtained
-        
-        try
-        {
-            YamlWriter writer = new YamlWriter(new FileWriter(filename));
-            writer.write(accounts);
-            writer.close();
-        }
-        catch (Exception e)
-        {
-            System.out.println(e);
-            return false;
-        }
-        finally
+        if (signer == null)
         {
-            accountsLock.unlock();
+            sessions.startReaper();
         }
-        
-        return true;
     }
     
     /**
-     * Authenticate with the bank.
+     * Create a new bank, loading accounts from a given file.
      * 
-     * @param cardNr Card number of account
-     * @param pinCode PIN code of account
-     * @return If the given credentials were correct,
-     *         returns a session token valid for one hour.
-     *         Otherwise, returns null.
+     * @param accountsFile YAML database of accounts
      */
-    public LoginToken getLoginToken(int cardNr, int pinCode)
+    public Bank(String accountsFile)
     {
-        String s_cardNr = String.format("%04d", cardNr);
-        String s_pinCode = String.format("%04d", pinCode);
-        
-        // System.out.println("login attempt: " + s_cardNr + ", " + s_pinCode);
+        this.accountsFile = accountsFile;
         
-        purgeExpiredLoginTokens();
-        accountsLock.lock();
+        if (signer == null)
+        {
+            sessions.startReaper();
+        }
         
-        Account targetAcc = null;
+        boolean loaded;
         
-        for (Account acc : accounts)
+        if (STORE.equals("mapped") || STORE.equals("paged"))
         {
-            if (acc.getCardNr().equals(s_cardNr) && acc.getPinCode().equals(s_pinCode))
+            mappedFile = accountsFile + MAPPED_SUFFIX;
+            
+            if (Files.exists(Paths.get(mappedFile)))
+            {
+                loaded = openMappedStore();
+            }
+            else
             {
-                targetAcc = acc;
-                break;
+                loaded = loadAccounts();
             }
-            // else
-            // {
-                // System.out.println("mismatch for " + acc.getName() + ": " + acc.getCardNr() + ", " + acc.getPinCode());
-            // }
         }
-        
-        if (targetAcc == null)
+        else
         {
-            accountsLock.unlock();
-            return null;
+            try
+            {
+                journal = new BankJournal(accountsFile + JOURNAL_SUFFIX, durability,
+                    Long.getLong("atm.groupCommitMicros", DEFAULT_GROUP_COMMIT_MICROS));
+            }
+            catch (IOException e)
+            {
+                // without a journal, every transaction saves all accounts
+                System.out.println(e);
+            }
+            
+            loaded = loadAccounts();
         }
         
-        Random rand = new Random();
-        
-        LoginToken token = new LoginToken(rand.nextLong(), 3600);
-        
-        if (users.containsKey(token))
+        if (!loaded)
         {
-            return null;
+            // the bank is empty, not the accounts file; writing it out
+            // and compacting the journal would lose every account
+            loadFailed = true;
+            System.out.println(accountsFile + ": accounts not loaded, saving nothing until they are");
+        }
+        else if (journal != null || mappedFile != null)
+        {
+            startSnapshotWriter();
         }
-        
-        users.put(token, targetAcc);
-        
-        accountsLock.unlock();
-        return token;
     }
     
     /**
-     * Purge expired session tokens.
+     * Check whether the accounts of the bank were loaded. A bank whose
+     * accounts file could not be loaded is empty, and saves nothing
+     * until a later loadAccounts() succeeds.
+     * 
+     * @return True if the accounts were loaded, or none were asked for
      */
-    public void purgeExpiredLoginTokens()
+    public boolean isLoaded()
     {
-        for (LoginToken tok : users.keySet())
-        {
-            if (tok.isExpired())
-            {
-                users.remove(tok);
-            }
-        }
+        return !loadFailed;
     }
     
     /**
-     * Retrieve the current balance of the account represented
-     * by a given session token.
-     * 
-     * @param token Session token
-     * @return Current balance of account, or null if the session
-     *         token was found to be invalid for some reason.
+     * Open the memory-mapped or paged account store, which holds
+     * accounts saved by an earlier run. At most the card index has to
+     * be built.
      */
-    public Integer balance(LoginToken token)
+    private boolean openMappedStore()
     {
-        purgeExpiredLoginTokens();
-        
-        Account targetAcc = users.get(token);
+        AccountStore loaded;
         
-        if (targetAcc == null)
+        try
         {
-            return null;
+            if (STORE.equals("paged"))
+            {
+                loaded = PagedAccountStore.open(mappedFile, CACHED_ACCOUNTS);
+            }
+            else
+            {
+                loaded = MappedAccountStore.open(mappedFile);
+            }
+        }
+        catch (IOException e)
+        {
+            System.out.println(e);
+            return false;
         }
         
-        accountsLock.lock();
-        int result = targetAcc.getBalance();
-        accountsLock.unlock();
+        CardIndex index = indexStore(loaded);
+        long[] stamps = lockAccounts();
         
-        return result;
+        swapStore(loaded, index);
+        unlockAccounts(stamps);
+        
+        return true;
     }
     
     /**
-     * Deposit currency into the account represented by a
-     * given session token.
+     * Get a card index of every account of a store.
      * 
-     * @param token Session token
-     * @param amount Amount of currency to deposit
-     * @return True if the currency was deposited, false
-     *         otherwise
+     * @param loaded Account store to index
+     * @return Card index of the store
      */
-    public boolean deposit(LoginToken token, int amount)
+    private static CardIndex indexStore(AccountStore loaded)
     {
-        purgeExpiredLoginTokens();
-        
-        if (amount <= 0)
+        if (loaded instanceof PagedAccountStore)
         {
-            return false;
+            // indexed on disk, since reading every account would fill the cache
+            return ((PagedAccountStore) loaded).getCardIndex();
         }
         
-        Account targetAcc = users.get(token);
+        CardIndex index = new CardIndex(loaded.size());
         
-        if (targetAcc == null)
+        for (int slot = 0; slot < loaded.size(); ++slot)
         {
-            return false;
+            indexAccount(index, loaded.getCardNr(slot), slot);
         }
         
-        accountsLock.lock();
-        targetAcc.setBalance(targetAcc.getBalance() + amount);
-        boolean result = saveAccounts();
-        accountsLock.unlock();
-        
-        return result;
+        return index;
     }
     
     /**
-     * Withdraw currency from the account represented by a
-     * given session token.
+     * Replace the account store and card index. Every session ends, as
+     * the slot it holds may belong to another account in the new store;
+     * signed tokens are ended by signing with a new random key. Must be
+     * called with every account lock held (see lockAccounts()), so that
+     * no transaction is on its way into the old store.
      * 
-     * @param token Session token
-     * @param otp Next one-time password for the account
-     * @param amount Amount of currency to withdraw
-     * @return True if the currency was withdrawn, false
-     *         otherwise
+     * @param loaded New account store
+     * @param index Card index of the new store
      */
-    public boolean withdraw(LoginToken token, int otp, int amount)
+    private void swapStore(AccountStore loaded, CardIndex index)
     {
-        String s_otp = String.format("%02d", otp);
+        long stamp = tableLock.writeLock(); // blocks until obtained
         
-        // System.out.println("bank withdraw");
-        
-        purgeExpiredLoginTokens();
+        Table old = table;
+        table = new Table(loaded, index);
+        hotBalances.clear();
         
-        if (amount <= 0)
+        if (old.store.size() > 0)
         {
-            // System.out.println("bad amount");
-            return false;
+            sessions.clear();
+            
+            if (signer != null)
+            {
+                signer = new SessionSigner();
+            }
         }
         
-        Account targetAcc = users.get(token);
+        tableLock.unlockWrite(stamp);
         
-        if (targetAcc == null)
+        try
         {
-            // System.out.println("bad token");
-            return false;
+            old.store.close();
         }
-        
-        accountsLock.lock();
-        
-        if (!targetAcc.getNextOtp().equals(s_otp))
+        catch (IOException e)
         {
-            // System.out.println("otp mismatch: " + targetAcc.getNextOtp() + ", " + s_otp);
-            accountsLock.unlock();
-            return false;
+            System.out.println(e);
         }
-        else
+    }
+    
+    /**
+     * Take every account lock exclusively, stopping all transactions.
+     * 
+     * @return Stamps to pass to unlockAccounts()
+     */
+    private long[] lockAccounts()
+    {
+        long[] stamps = new long[accountLocks.length];
+        
+        for (int i = 0; i < accountLocks.length; ++i)
         {
-            // System.out.println("otp success");
-            targetAcc.setNextOtp(String.format("%02d", otp + 2));
+            stamps[i] = accountLocks[i].lock();
         }
         
-        targetAcc.setBalance(targetAcc.getBalance() - amount);
-        boolean result = saveAccounts();
-        accountsLock.unlock();
-        
-        return result;
+        return stamps;
     }
     
     /**
-     * List of accounts.
+     * Release the account locks taken by lockAccounts().
+     * 
+     * @param stamps Stamps returned by lockAccounts()
      */
-    private ArrayList<Account> accounts = new ArrayList<Account>();
+    private void unlockAccounts(long[] stamps)
+    {
+        for (int i = 0; i < accountLocks.length; ++i)
+        {
+            accountLocks[i].unlock(stamps[i]);
+        }
+    }
     
     /**
-     * Map of authenticated user sessions.
+     * Load accounts.
      */
-    private HashMap<LoginToken, Account> users = new HashMap<LoginToken, Account>();
+    public boolean loadAccounts()
+    {
+        return loadAccounts(accountsFile);
+    }
     
     /**
-     * Filename of accounts database.
-     */
-    private String accountsFile = null;
+     * Load accounts from a given filename.
+     * 
+     * @param filename Name of file to load accounts from
+     */
+    public boolean loadAccounts(String filename)
+    {
+        AccountSnapshot snapshot;
+        
+        // parse and index without stopping transactions; only the replay
+        // and the swap do, so that none is made on the old store after
+        // the journal has been replayed
+        try
+        {
+            snapshot = AccountSnapshot.read(filename);
+        }
+        catch (Exception e)
+        {
+            System.out.println(e);
+            return false;
+        }
+        
+        final AccountStore loaded;
+        
+        try
+        {
+            if (mappedFile != null && STORE.equals("paged"))
+            {
+                loaded = PagedAccountStore.create(mappedFile, snapshot.accounts, CACHED_ACCOUNTS);
+            }
+            else if (mappedFile != null)
+            {
+                loaded = MappedAccountStore.create(mappedFile, snapshot.accounts);
+            }
+            else if (STORE.equals("array"))
+            {
+                loaded = new ArrayAccountStore(snapshot.accounts);
+            }
+            else
+            {
+                loaded = new ListAccountStore(snapshot.accounts);
+            }
+        }
+        catch (Exception e)
+        {
+            System.out.println(e);
+            return false;
+        }
+        
+        final CardIndex index = indexStore(loaded);
+        
+        saveLock.lock();
+        long[] stamps = lockAccounts();
+        
+        try
+        {
+            if (journal != null && filename.equals(accountsFile))
+            {
+                journal.replay(snapshot.txid, new BankJournal.Visitor()
+                {
+                    public void apply(long txid, int cardNr, int delta, int nextOtp)
+                    {
+                        int slot = index.get(cardNr);
+                        
+                        if (slot == CardIndex.NO_SLOT)
+                        {
+                            return;
+                        }
+                        
+                        loaded.setBalance(slot, loaded.getBalance(slot) + delta);
+                        
+                        if (nextOtp != BankJournal.NO_OTP)
+                        {
+                            loaded.setNextOtp(slot, nextOtp);
+                        }
+                    }
+                });
+            }
+            
+            swapStore(loaded, index);
+        }
+        catch (IOException e)
+        {
+            System.out.println(e);
+            return false;
+        }
+        finally
+        {
+            unlockAccounts(stamps);
+            saveLock.unlock();
+        }
+        
+        if (loadFailed && filename.equals(accountsFile))
+        {
+            loadFailed = false;
+            
+            if (journal != null || mappedFile != null)
+            {
+                startSnapshotWriter();
+            }
+        }
+        
+        return true;
+    }
+    
+    /**
+     * File a new account with the bank.
+     * 
+     * @param acc New account to file
+     * @return True if the account was added successfully,
+     *         false otherwise
+     */
+    public boolean createAccount(Account acc)
+    {
+        long stamp = tableLock.writeLock(); // blocks until obtained
+        
+        try
+        {
+            Table t = table;
+            indexAccount(t.index, acc.getCardNr(), t.store.add(acc));
+        }
+        catch (Exception e)
+        {
+            System.out.println(e);
+            return false;
+        }
+        finally
+        {
+            tableLock.unlockWrite(stamp);
+        }
+        
+        saveAccounts();
+        
+        return true;
+    }
+    
+    /**
+     * Save accounts to disk.
+     * 
+     * @return True if the accounts were written to disk
+     *         successfully, false otherwise
+     */
+    public boolean saveAccounts()
+    {
+        return saveAccounts(accountsFile);
+    }
+    
+    /**
+     * Save accounts to a given filename.
+     * 
+     * @param filename Name of file to write accounts to
+     * @return True if the accounts were written to disk
+     *         successfully, false otherwise
+     */
+    public boolean saveAccounts(String filename)
+    {
+        if (loadFailed)
+        {
+            System.out.println(accountsFile + ": accounts not loaded, not saving");
+            return false;
+        }
+        
+        // saves are serialized, so the file always ends up holding the
+        // copy taken last
+        saveLock.lock(); // blocks until obtained
+        
+        try
+        {
+            if (mappedFile != null && filename.equals(accountsFile))
+            {
+                // the store is its own snapshot
+                unsaved.set(0);
+                table.store.force();
+                return true;
+            }
+            
+            Snapshot snapshot = copyAccounts();
+            
+            AccountSnapshot.write(filename, snapshot.accounts, snapshot.txid);
+            
+            if (journal != null && filename.equals(accountsFile))
+            {
+                journal.compact(snapshot.txid);
+            }
+        }
+        catch (Exception e)
+        {
+            System.out.println(e);
+            return false;
+        }
+        finally
+        {
+            saveLock.unlock();
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Take a consistent copy of every account, as of the latest journal
+     * record, without stopping transactions. Each account is copied under
+     * its own lock, taken exclusively just long enough to copy that one
+     * account.
+     * 
+     * @return Copy of the accounts
+     */
+    private Snapshot copyAccounts()
+    {
+        final Snapshot snapshot = new Snapshot();
+        long stamp = tableLock.readLock();
+        AccountStore live = table.store;
+        int size = live.size();
+        tableLock.unlockRead(stamp);
+        
+        if (journal != null)
+        {
+            // fix the journal position; whoever appends after this sees
+            // the snapshot and preserves what it changes
+            journal.runBetweenAppends(new Runnable()
+            {
+                public void run()
+                {
+                    snapshot.txid = journal.lastTxid();
+                    activeSnapshot = snapshot;
+                }
+            });
+        }
+        
+        snapshot.accounts.ensureCapacity(size);
+        
+        for (int slot = 0; slot < size; ++slot)
+        {
+            AccountLock lock = lockFor(slot);
+            long accstamp = lock.lock();
+            
+            Account acc = live.get(slot);
+            LongAdder later = snapshot.later.get(slot);
+            Integer otp = snapshot.preservedOtp.get(slot);
+            
+            acc.setBalance(balanceOf(live, slot) - (later != null ? later.sum() : 0));
+            
+            if (otp != null)
+            {
+                acc.setNextOtp(otp);
+            }
+            
+            snapshot.accounts.add(acc);
+            
+            lock.unlock(accstamp);
+        }
+        
+        activeSnapshot = null;
+        
+        return snapshot;
+    }
+    
+    /**
+     * Record a change to an account for the snapshot being taken, if
+     * any, before a transaction makes it. Must be called with the lock
+     * of the account held, exclusively if the OTP password changes.
+     * 
+     * @param live Store holding the account
+     * @param slot Slot of the account about to be changed
+     * @param txid Transaction id of the change
+     * @param delta Change in balance
+     * @param otp True if the OTP password is about to change
+     */
+    private void preserve(AccountStore live, int slot, long txid, int delta, boolean otp)
+    {
+        Snapshot snapshot = activeSnapshot;
+        
+        if (snapshot == null || txid <= snapshot.txid)
+        {
+            return;
+        }
+        
+        LongAdder later = snapshot.later.get(slot);
+        
+        if (later == null)
+        {
+            LongAdder added = new LongAdder();
+            later = snapshot.later.putIfAbsent(slot, added);
+            later = later != null ? later : added;
+        }
+        
+        later.add(delta);
+        
+        if (otp && !snapshot.preservedOtp.containsKey(slot))
+        {
+            snapshot.preservedOtp.put(slot, live.getNextOtp(slot));
+        }
+    }
+    
+    /**
+     * Get the balance of an account, including what has been added to
+     * its accumulator.
+     * 
+     * @param live Store holding the account
+     * @param slot Slot of the account
+     * @return Current balance of the account
+     */
+    private long balanceOf(AccountStore live, int slot)
+    {
+        long balance = live.getBalance(slot);
+        
+        if (!hotBalances.isEmpty())
+        {
+            LongAdder hot = hotBalances.get(slot);
+            
+            if (hot != null)
+            {
+                balance += hot.sum();
+            }
+        }
+        
+        return balance;
+    }
+    
+    /**
+     * Add to the balance of an account. The balance is updated with a
+     * single compare-and-set; if that fails, other transactions are
+     * updating it at the same time, and the account is given an
+     * accumulator that spreads updates over several cells. A mapped or
+     * paged store is what gets forced to disk when a transaction
+     * commits, so there every update goes to the store itself. Must be
+     * called with the lock of the account held, at least shared.
+     * 
+     * @param live Store holding the account
+     * @param slot Slot of the account
+     * @param amount Amount to add
+     */
+    private void credit(AccountStore live, int slot, int amount)
+    {
+        LongAdder hot = hotBalances.isEmpty() ? null : hotBalances.get(slot);
+        
+        if (hot == null)
+        {
+            long balance = live.getBalance(slot);
+            
+            if (live.compareAndSetBalance(slot, balance, balance + amount))
+            {
+                return;
+            }
+            
+            if (mappedFile != null || hotBalances.size() >= MAX_HOT_ACCOUNTS)
+            {
+                live.addBalance(slot, amount);
+                return;
+            }
+            
+            LongAdder added = new LongAdder();
+            hot = hotBalances.putIfAbsent(slot, added);
+            hot = hot != null ? hot : added;
+        }
+        
+        hot.add(amount);
+    }
+    
+    /**
+     * Start the background thread writing snapshots. A snapshot is
+     * written when asked for by requestSnapshot(), and otherwise every
+     * so often if anything has changed since the last one.
+     */
+    private void startSnapshotWriter()
+    {
+        Thread thread = new Thread("BankSnapshotWriter")
+        {
+            public void run()
+            {
+                while (true)
+                {
+                    snapshotLock.lock();
+                    
+                    try
+                    {
+                        if (!snapshotRequested && !closing)
+                        {
+                            snapshotCond.await(SNAPSHOT_SECONDS, TimeUnit.SECONDS);
+                        }
+                        
+                        if (closing)
+                        {
+                            return;
+                        }
+                        
+                        snapshotRequested = false;
+                    }
+                    catch (InterruptedException e)
+                    {
+                        return;
+                    }
+                    finally
+                    {
+                        snapshotLock.unlock();
+                    }
+                    
+                    if (unsavedChanges() > 0)
+                    {
+                        saveAccounts();
+                    }
+                }
+            }
+        };
+        
+        thread.setDaemon(true);
+        snapshotWriter = thread;
+        thread.start();
+    }
+    
+    /**
+     * Close the bank: stop its background threads, and close its journal
+     * and account store. Nothing is saved; the journal and the store
+     * already hold every committed transaction. The bank must not be
+     * used afterwards.
+     */
+    public void close()
+    {
+        snapshotLock.lock();
+        closing = true;
+        snapshotCond.signal();
+        snapshotLock.unlock();
+        
+        Thread writer = snapshotWriter;
+        
+        if (writer != null)
+        {
+            try
+            {
+                writer.join();
+            }
+            catch (InterruptedException e)
+            {
+                System.out.println(e);
+            }
+        }
+        
+        sessions.stopReaper();
+        
+        try
+        {
+            if (journal != null)
+            {
+                journal.close();
+            }
+            
+            table.store.close();
+        }
+        catch (IOException e)
+        {
+            System.out.println(e);
+        }
+    }
+    
+    /**
+     * Ask the background thread to write a snapshot.
+     */
+    private void requestSnapshot()
+    {
+        if (snapshotRequested)
+        {
+            return;
+        }
+        
+        snapshotLock.lock();
+        snapshotRequested = true;
+        snapshotCond.signal();
+        snapshotLock.unlock();
+    }
+    
+    /**
+     * Get the number of changes not yet in a snapshot.
+     * 
+     * @return Number of unsaved changes
+     */
+    private int unsavedChanges()
+    {
+        return journal != null ? journal.records() : unsaved.get();
+    }
+    
+    /**
+     * Record a transaction in the journal. Must be called with the lock
+     * of the account held, before changing the account.
+     * 
+     * @param live Store holding the account
+     * @param slot Slot of the account being changed
+     * @param delta Change in balance
+     * @param nextOtp New OTP password, or BankJournal.NO_OTP if unchanged
+     * @return Transaction id of the record, 0 if there is no journal,
+     *         or -1 if the record could not be written
+     */
+    private long journalAppend(AccountStore live, int slot, int delta, int nextOtp)
+    {
+        if (journal == null)
+        {
+            return 0;
+        }
+        
+        try
+        {
+            return journal.append(live.getCardNr(slot), delta, nextOtp);
+        }
+        catch (IOException e)
+        {
+            System.out.println(e);
+            return -1;
+        }
+    }
+    
+    /**
+     * Stop deposits and withdrawals from waiting for their commit; they
+     * then return as soon as they have been applied, and commit() waits
+     * for all of them at once. For a bank whose transactions are made by
+     * a few threads, such as event loops, each of which commits its own
+     * in batches. Must be called before any transaction is made.
+     */
+    public void deferCommits()
+    {
+        deferCommits = true;
+    }
+    
+    /**
+     * Wait for the transactions the calling thread has made since its
+     * last call to be committed. Only used with deferCommits().
+     * 
+     * @return True if the transactions are committed, false otherwise
+     */
+    public boolean commit()
+    {
+        Deferred own = deferred.get();
+        int count = own.count;
+        
+        if (count == 0)
+        {
+            return true;
+        }
+        
+        own.count = 0;
+        
+        return commitUpTo(own.txid, count);
+    }
+    
+    /**
+     * Wait for a transaction to be committed, once the account lock has
+     * been released, unless commits are deferred.
+     * 
+     * @param txid Transaction id returned by journalAppend()
+     * @return True if the transaction is committed (or its commit
+     *         deferred), false otherwise
+     */
+    private boolean journalCommit(long txid)
+    {
+        if (deferCommits)
+        {
+            Deferred own = deferred.get();
+            own.txid = Math.max(own.txid, txid);
+            ++own.count;
+            return true;
+        }
+        
+        return commitUpTo(txid, 1);
+    }
+    
+    /**
+     * Wait for transactions to be committed, and ask for a snapshot if
+     * the journal has grown long.
+     * 
+     * @param txid Transaction id of the last transaction
+     * @param count Number of transactions
+     * @return True if the transactions are committed, false otherwise
+     */
+    private boolean commitUpTo(long txid, int count)
+    {
+        if (journal == null && mappedFile == null)
+        {
+            return saveAccounts();
+        }
+        
+        try
+        {
+            if (journal != null)
+            {
+                journal.sync(txid);
+            }
+            else
+            {
+                unsaved.addAndGet(count);
+                
+                AccountStore live = table.store;
+                
+                if (durability == BankJournal.Durability.SYNC)
+                {
+                    live.force();
+                }
+                else
+                {
+                    live.flush();
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            System.out.println(e);
+            return false;
+        }
+        
+        if (unsavedChanges() >= SNAPSHOT_INTERVAL)
+        {
+            requestSnapshot();
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Authenticate with the bank.
+     * 
+     * @param cardNr Card number of account
+     * @param pinCode PIN code of account
+     * @return If the given credentials were correct,
+     *         returns a session token valid for one hour.
+     *         Otherwise, returns null.
+     */
+    public LoginToken getLoginToken(int cardNr, int pinCode)
+    {
+        // System.out.println("login attempt: " + cardNr + ", " + pinCode);
+        
+        // the session is made under the table lock too, so that the
+        // accounts cannot be reloaded in between, with the slot then
+        // belonging to another account
+        long stamp = tableLock.readLock();
+        
+        try
+        {
+            Table t = table;
+            int slot = t.index.get(cardNr);
+            
+            if (slot == CardIndex.NO_SLOT || pinCode < 0
+                || t.store.getPinCode(slot) != pinCode)
+            {
+                // System.out.println("no match for " + cardNr + ", " + pinCode);
+                return null;
+            }
+            
+            SessionSigner signer = this.signer;
+            
+            if (signer != null)
+            {
+                // slot and expiration, both unsigned 32 bit
+                long value = ((long) slot << 32)
+                           | ((System.currentTimeMillis() / 1000L + SESSION_SECONDS) & 0xffffffffL);
+                
+                return new LoginToken(value, SESSION_SECONDS, signer.sign(value));
+            }
+            
+            LoginToken token = new LoginToken(ThreadLocalRandom.current().nextLong(), SESSION_SECONDS);
+            
+            if (!sessions.putIfAbsent(token.value, slot, token.expires))
+            {
+                return null;
+            }
+            
+            return token;
+        }
+        finally
+        {
+            tableLock.unlockRead(stamp);
+        }
+    }
+    
+    /**
+     * Look up the account slot a session token was issued for. The
+     * slot is only valid while the accounts are those of t; a caller
+     * must check that they still are once it holds the account lock.
+     * 
+     * @param t Accounts of the bank, as read before the lookup
+     * @param token Session token
+     * @return Slot of the account, or CardIndex.NO_SLOT if the token
+     *         is invalid or has expired
+     */
+    private int sessionSlot(Table t, LoginToken token)
+    {
+        SessionSigner signer = this.signer;
+        
+        if (signer == null)
+        {
+            return sessions.get(token.value);
+        }
+        
+        // the token is checked on its own, without any shared state
+        long expires = token.value & 0xffffffffL;
+        int slot = (int) (token.value >>> 32);
+        
+        if (!signer.verify(token.value, token.signature)
+            || System.currentTimeMillis() / 1000L >= expires || slot >= t.store.size())
+        {
+            return CardIndex.NO_SLOT;
+        }
+        
+        return slot;
+    }
+    
+    /**
+     * Create the signer of session tokens, if the atm.sessionTokens
+     * property asks for signed tokens. The key is the contents of the
+     * file named by the atm.sessionKeyFile property, rather than a
+     * property of its own, which would show in process listings.
+     * Without one, or if it cannot be read or is too short (see
+     * SessionSigner.MIN_KEY_SIZE), a random key is used and tokens are
+     * only valid within this process.
+     * 
+     * @return Signer of session tokens, or null if sessions are kept
+     *         in a SessionStore
+     */
+    private static SessionSigner createSigner()
+    {
+        if (!System.getProperty("atm.sessionTokens", "table").equals("signed"))
+        {
+            return null;
+        }
+        
+        String keyFile = System.getProperty("atm.sessionKeyFile");
+        
+        if (keyFile != null)
+        {
+            try
+            {
+                return new SessionSigner(Files.readAllBytes(Paths.get(keyFile)));
+            }
+            catch (IOException | IllegalArgumentException e)
+            {
+                System.out.println(e);
+                System.out.println("Using a random session key, valid only within this process");
+            }
+        }
+        
+        return new SessionSigner();
+    }
+    
+    /**
+     * Add an account to a card number index. Only card numbers written
+     * the way a login compares them (zero-padded to CARD_DIGITS digits)
+     * are indexed; any other card number could never be logged in with.
+     * 
+     * @param index Index to add the account to
+     * @param cardNr Card number of the account, as parsed by parsePadded()
+     * @param slot Slot of the account
+     */
+    private static void indexAccount(CardIndex index, int cardNr, int slot)
+    {
+        if (cardNr >= 0)
+        {
+            index.putIfAbsent(cardNr, slot);
+        }
+    }
+    
+    /**
+     * Parse a non-negative number written zero-padded to a minimum number
+     * of digits, the inverse of String.format("%0<width>d"). Used to
+     * compare the numeric strings of an account without formatting the
+     * number being compared.
+     * 
+     * @param s String to parse
+     * @param width Minimum number of digits
+     * @return The number, or -1 if the string is not a number written
+     *         exactly that way
+     */
+    public static int parsePadded(String s, int width)
+    {
+        if (s == null || s.length() < width || (s.length() > width && s.charAt(0) == '0'))
+        {
+            return -1;
+        }
+        
+        long n = 0;
+        
+        for (int i = 0; i < s.length(); ++i)
+        {
+            char c = s.charAt(i);
+            
+            if (c < '0' || c > '9')
+            {
+                return -1;
+            }
+            
+            n = n * 10 + (c - '0');
+            
+            if (n > Integer.MAX_VALUE)
+            {
+                return -1;
+            }
+        }
+        
+        return (int) n;
+    }
+    
+    /**
+     * Write a number zero-padded to a minimum number of digits, the way
+     * the accounts file holds it. A negative number, which parsePadded()
+     * gives for anything else, is written as it is.
+     * 
+     * @param n Number to write
+     * @param width Minimum number of digits
+     * @return The number as a string
+     */
+    public static String formatPadded(int n, int width)
+    {
+        return n < 0 ? Integer.toString(n) : String.format("%0" + width + "d", n);
+    }
+    
+    /**
+     * Purge expired session tokens. A background thread does this every
+     * second; expired tokens are never accepted in any case.
+     */
+    public void purgeExpiredLoginTokens()
+    {
+        sessions.expire();
+    }
+    
+    /**
+     * Retrieve the current balance of the account represented
+     * by a given session token.
+     * 
+     * @param token Session token
+     * @return Current balance of account, or null if the session
+     *         token was found to be invalid for some reason.
+     */
+    public Long balance(LoginToken token)
+    {
+        Table t = table;
+        int slot = sessionSlot(t, token);
+        
+        if (slot == CardIndex.NO_SLOT)
+        {
+            return null;
+        }
+        
+        // optimistic read, retried under the lock if a withdrawal, a
+        // snapshot or a reload on an account sharing the lock got in
+        // between; deposits do not invalidate it, as each only adds to
+        // a single cell
+        AccountLock lock = lockFor(slot);
+        long stamp = lock.tryOptimisticRead();
+        long result = balanceOf(t.store, slot);
+        
+        if (!lock.validate(stamp))
+        {
+            stamp = lock.lockShared();
+            result = balanceOf(t.store, slot);
+            lock.unlockShared(stamp);
+        }
+        
+        // reloaded since the session was looked up
+        return t == table ? result : null;
+    }
+    
+    /**
+     * Deposit currency into the account represented by a
+     * given session token.
+     * 
+     * @param token Session token
+     * @param amount Amount of currency to deposit
+     * @return True if the currency was deposited, false
+     *         otherwise
+     */
+    public boolean deposit(LoginToken token, int amount)
+    {
+        if (amount <= 0)
+        {
+            return false;
+        }
+        
+        Table t = table;
+        int slot = sessionSlot(t, token);
+        
+        if (slot == CardIndex.NO_SLOT)
+        {
+            return false;
+        }
+        
+        AccountLock lock = lockFor(slot);
+        long stamp = lock.lockShared();
+        
+        // reloaded since the session was looked up
+        if (t != table)
+        {
+            lock.unlockShared(stamp);
+            return false;
+        }
+        
+        long txid = journalAppend(t.store, slot, amount, BankJournal.NO_OTP);
+        
+        if (txid < 0)
+        {
+            lock.unlockShared(stamp);
+            return false;
+        }
+        
+        preserve(t.store, slot, txid, amount, false);
+        credit(t.store, slot, amount);
+        lock.unlockShared(stamp);
+        
+        return journalCommit(txid);
+    }
+    
+    /**
+     * Withdraw currency from the account represented by a
+     * given session token. The balance is checked to cover the amount,
+     * the OTP password checked and the amount debited under a single
+     * hold of the account lock, so that no other withdrawal can get in
+     * between.
+     * 
+     * @param token Session token
+     * @param otp Next one-time password for the account
+     * @param amount Amount of currency to withdraw
+     * @return Outcome of the withdrawal
+     */
+    public WithdrawResult withdraw(LoginToken token, int otp, int amount)
+    {
+        // System.out.println("bank withdraw");
+        
+        if (amount <= 0)
+        {
+            // System.out.println("bad amount");
+            return WithdrawResult.FAILED;
+        }
+        
+        Table t = table;
+        int slot = sessionSlot(t, token);
+        
+        if (slot == CardIndex.NO_SLOT)
+        {
+            // System.out.println("bad token");
+            return WithdrawResult.BAD_SESSION;
+        }
+        
+        AccountLock lock = lockFor(slot);
+        long stamp = lock.lock();
+        AccountStore store = t.store;
+        
+        // reloaded since the session was looked up
+        if (t != table)
+        {
+            lock.unlock(stamp);
+            return WithdrawResult.BAD_SESSION;
+        }
+        
+        // funds are checked first, as the ATM has always done
+        if (balanceOf(store, slot) < amount)
+        {
+            lock.unlock(stamp);
+            return WithdrawResult.INSUFFICIENT_FUNDS;
+        }
+        
+        if (otp < 0 || store.getNextOtp(slot) != otp)
+        {
+            // System.out.println("otp mismatch: " + store.getNextOtp(slot) + ", " + otp);
+            lock.unlock(stamp);
+            return WithdrawResult.BAD_OTP;
+        }
+        
+        // System.out.println("otp success");
+        long txid = journalAppend(store, slot, -amount, otp + 2);
+        
+        if (txid < 0)
+        {
+            lock.unlock(stamp);
+            return WithdrawResult.FAILED;
+        }
+        
+        preserve(store, slot, txid, -amount, true);
+        store.setNextOtp(slot, otp + 2);
+        store.addBalance(slot, -amount);
+        lock.unlock(stamp);
+        
+        return journalCommit(txid) ? WithdrawResult.OK : WithdrawResult.FAILED;
+    }
+    
+    /**
+     * Get the lock guarding the fields of an account. Neighbouring
+     * slots get different locks.
+     * 
+     * @param slot Slot of the account to lock
+     * @return Account lock of the stripe the account belongs to
+     */
+    private AccountLock lockFor(int slot)
+    {
+        return accountLocks[slot & (accountLocks.length - 1)];
+    }
+    
+    /**
+     * Create the striped account locks: a power of two, several per
+     * processor, so that unrelated accounts seldom share a lock.
+     * 
+     * @return Array of account locks
+     */
+    private static AccountLock[] createAccountLocks()
+    {
+        int n = MIN_ACCOUNT_LOCKS;
+        
+        while (n < Runtime.getRuntime().availableProcessors() * ACCOUNT_LOCKS_PER_CPU)
+        {
+            n <<= 1;
+        }
+        
+        AccountLock[] locks = new AccountLock[n];
+        
+        for (int i = 0; i < n; ++i)
+        {
+            locks[i] = new AccountLock();
+        }
+        
+        return locks;
+    }
+    
+    /**
+     * Number of digits card numbers are zero-padded to.
+     */
+    public static final int CARD_DIGITS = 4;
+    
+    /**
+     * Number of digits PIN codes are zero-padded to.
+     */
+    public static final int PIN_DIGITS = 4;
+    
+    /**
+     * Number of digits OTP passwords are zero-padded to.
+     */
+    public static final int OTP_DIGITS = 2;
+    
+    /**
+     * Suffix appended to the name of the accounts file to name
+     * the journal file.
+     */
+    private static final String JOURNAL_SUFFIX = ".journal";
+    
+    /**
+     * Lifetime of a session token, in seconds.
+     */
+    private static final long SESSION_SECONDS = 3600;
+    
+    /**
+     * Kind of account store to keep the accounts in (list, array,
+     * mapped or paged), from the atm.accountStore property.
+     */
+    private static final String STORE = System.getProperty("atm.accountStore", "list");
+    
+    /**
+     * Suffix appended to the name of the accounts file to name the
+     * memory-mapped or paged account store.
+     */
+    private static final String MAPPED_SUFFIX = ".dat";
+    
+    /**
+     * Number of accounts a paged account store holds in memory.
+     */
+    private static final int CACHED_ACCOUNTS = Integer.getInteger("atm.cachedAccounts", 65536);
+    
+    /**
+     * Default longest time a group commit waits for more transactions,
+     * in microseconds.
+     */
+    private static final long DEFAULT_GROUP_COMMIT_MICROS = 1000;
+    
+    /**
+     * Number of journal records after which a snapshot is taken.
+     */
+    private static final int SNAPSHOT_INTERVAL = Integer.getInteger("atm.snapshotInterval", 10000);
+    
+    /**
+     * Number of seconds after which a snapshot is taken even if the
+     * journal has not grown long.
+     */
+    private static final long SNAPSHOT_SECONDS = Long.getLong("atm.snapshotSeconds", 300);
+    
+    /**
+     * Smallest number of striped account locks. Must be a power of two.
+     */
+    private static final int MIN_ACCOUNT_LOCKS = 16;
+    
+    /**
+     * Number of striped account locks to create per processor.
+     */
+    private static final int ACCOUNT_LOCKS_PER_CPU = 8;
+    
+    /**
+     * Largest number of accounts given an accumulator. Past this, a
+     * contended balance is updated in a compare-and-set loop.
+     */
+    private static final int MAX_HOT_ACCOUNTS = 1024;
+    
+    /**
+     * Accounts of the bank and their card index.
+     */
+    private volatile Table table = new Table(new ListAccountStore(new ArrayList<Account>()),
+                                             new CardIndex(0));
+    
+    /**
+     * Account slots of the session tokens handed out, unless tokens
+     * are signed.
+     */
+    private final SessionStore sessions = new SessionStore();
+    
+    /**
+     * Signer of session tokens, or null if tokens are looked up in the
+     * session store.
+     */
+    private volatile SessionSigner signer = createSigner();
+    
+    /**
+     * Filename of accounts database.
+     */
+    private String accountsFile = null;
+    
+    /**
+     * Journal of transactions not yet in the accounts file, or null if
+     * every transaction saves all accounts or the accounts are kept in
+     * a memory-mapped store.
+     */
+    private BankJournal journal = null;
+    
+    /**
+     * Did loading the accounts file fail, leaving the bank empty?
+     */
+    private volatile boolean loadFailed = false;
+    
+    /**
+     * Filename of the memory-mapped account store, or null if the
+     * accounts are kept in memory.
+     */
+    private String mappedFile = null;
+    
+    /**
+     * Point at which a transaction counts as committed.
+     */
+    private final BankJournal.Durability durability =
+        BankJournal.Durability.valueOf(System.getProperty("atm.durability", "group").toUpperCase());
+    
+    /**
+     * Number of transactions on the memory-mapped store since it was
+     * last forced to disk.
+     */
+    private final AtomicInteger unsaved = new AtomicInteger();
+    
+    /**
+     * Are commits left to commit()?
+     */
+    private volatile boolean deferCommits = false;
+    
+    /**
+     * Transactions of each thread whose commit has been deferred.
+     */
+    private final ThreadLocal<Deferred> deferred = new ThreadLocal<Deferred>()
+    {
+        protected Deferred initialValue()
+        {
+            return new Deferred();
+        }
+    };
+    
+    /**
+     * Table lock, protecting the list of accounts and the card index
+     * from concurrent modification.
+     */
+    private final StampedLock tableLock = new StampedLock();
+    
+    /**
+     * Striped account locks, protecting the fields of the accounts from
+     * concurrent modification. Each account is guarded by the lock its
+     * slot selects.
+     */
+    private final AccountLock[] accountLocks = createAccountLocks();
+    
+    /**
+     * Accumulators of the accounts whose balances have seen contended
+     * updates, by slot. The balance of such an account is the sum of
+     * its balance in the store and its accumulator. Always empty with a
+     * mapped or paged store.
+     */
+    private final ConcurrentHashMap<Integer, LongAdder> hotBalances =
+        new ConcurrentHashMap<Integer, LongAdder>();
+    
+    /**
+     * Lock serializing saves of the accounts to disk.
+     */
+    private final Lock saveLock = new ReentrantLock();
+    
+    /**
+     * Snapshot being taken, or null if there is none.
+     */
+    private volatile Snapshot activeSnapshot = null;
+    
+    /**
+     * Lock guarding requests to the snapshot writer.
+     */
+    private final Lock snapshotLock = new ReentrantLock();
+    
+    /**
+     * Signalled when a snapshot is requested.
+     */
+    private final Condition snapshotCond = snapshotLock.newCondition();
+    
+    /**
+     * Has a snapshot been requested but not yet started?
+     */
+    private volatile boolean snapshotRequested = false;
+    
+    /**
+     * Has close() been called?
+     */
+    private boolean closing = false;
     
     /**
-     * Lock for protecting the accounts from concurrent modification.
+     * Thread writing snapshots, or null if there is none.
      */
-    private Lock accountsLock = new ReentrantLock();
+    private volatile Thread snapshotWriter = null;
 }
@@ -0,0 +1,777 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+/**
+ * BankJournal is an append-only write-ahead journal of the mutations
+ * made to the accounts of a Bank. Every deposit and withdrawal appends
+ * one small fixed-size record instead of rewriting the whole accounts
+ * file; the accounts file becomes a periodic snapshot, and on startup
+ * the records written after the latest snapshot are replayed on top
+ * of it.
+ * 
+ * Each record is laid out as
+ * 
+ * | 64 bit txid | 32 bit cardNr | 32 bit delta | 32 bit nextOtp | 32 bit crc |
+ * 
+ * where txid is the strictly increasing transaction id, delta is the
+ * change in balance, nextOtp is the new OTP password of the account
+ * (or NO_OTP if unchanged), and crc is the CRC32C of the preceding
+ * 20 bytes. A record that is cut short or fails its checksum marks
+ * the end of the journal; it and anything after it is discarded.
+ * 
+ * How soon a record reaches the disk is chosen by the durability mode.
+ * In the ASYNC and GROUP modes records are not written by the threads
+ * appending them, but collected in memory and written and forced by a
+ * single committer thread, one batch per write and force. In GROUP mode
+ * the committer waits up to a latency window for a batch to fill up,
+ * and sync() returns once the record is on disk; in ASYNC mode nobody
+ * waits for the committer.
+ * 
+ * @author Mikael Forsberg <miforsb@kth.se>
+ * @author Robin Gunning <rgunning@kth.se>
+ * @version 20151204T1700
+ */
+public class BankJournal
+{
+    /**
+     * BankJournal.Durability is the point at which a transaction
+     * counts as committed.
+     */
+    public enum Durability
+    {
+        /**
+         * Records are written to the file when appended, and forced to
+         * disk by the operating system whenever it sees fit. Survives a
+         * crash of the server, not of the machine.
+         */
+        NONE,
+        
+        /**
+         * Records are written and forced by the committer in the
+         * background. A crash may lose the latest few records.
+         */
+        ASYNC,
+        
+        /**
+         * Records are written and forced by the committer in batches,
+         * and sync() waits until the record is on disk. The latency
+         * window bounds how long a batch waits for more records.
+         */
+        GROUP,
+        
+        /**
+         * Records are written when appended and every sync() forces
+         * the file on its own.
+         */
+        SYNC
+    }
+    
+    /**
+     * BankJournal.Visitor receives the records of a journal
+     * being replayed.
+     */
+    public interface Visitor
+    {
+        /**
+         * Apply a single record.
+         * 
+         * @param txid Transaction id of the record
+         * @param cardNr Card number of the account
+         * @param delta Change in balance
+         * @param nextOtp New OTP password, or NO_OTP if unchanged
+         */
+        public void apply(long txid, int cardNr, int delta, int nextOtp);
+    }
+    
+    /**
+     * Open a journal for appending, creating it if it does not exist.
+     * A damaged tail left by a crash is cut off.
+     * 
+     * @param filename Name of the journal file
+     * @param durability Point at which a transaction counts as committed
+     * @param windowMicros Longest time a GROUP batch waits for more
+     *        records, in microseconds
+     */
+    public BankJournal(String filename, Durability durability, long windowMicros) throws IOException
+    {
+        this.durability = durability;
+        this.windowNanos = TimeUnit.MICROSECONDS.toNanos(windowMicros);
+        
+        path = Paths.get(filename);
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                   StandardOpenOption.WRITE);
+        
+        long end = scan(channel, 0, null);
+        
+        if (end < channel.size())
+        {
+            System.out.println("journal: discarding " + (channel.size() - end)
+                               + " damaged bytes at the end of " + filename);
+            channel.truncate(end);
+            channel.force(true);
+        }
+        
+        channel.position(end);
+        
+        if (durability == Durability.ASYNC || durability == Durability.GROUP)
+        {
+            pending = ByteBuffer.allocate(RECORD_SIZE * GROUP_MAX_RECORDS);
+            spare = ByteBuffer.allocate(RECORD_SIZE * GROUP_MAX_RECORDS);
+            
+            committer = new Thread("BankJournalCommitter")
+            {
+                public void run()
+                {
+                    commitLoop();
+                }
+            };
+            
+            committer.setDaemon(true);
+            committer.start();
+        }
+    }
+    
+    /**
+     * Replay the records written after a snapshot. Transaction ids handed
+     * out from now on are larger than both the replayed ones and the id
+     * the snapshot covers.
+     * 
+     * @param after Transaction id covered by the snapshot; only records
+     *        with larger ids are replayed
+     * @param visitor Visitor to apply the records
+     */
+    public void replay(long after, Visitor visitor) throws IOException
+    {
+        journalLock.lock();
+        
+        try
+        {
+            scan(channel, after, visitor);
+            
+            if (lastTxid < after)
+            {
+                lastTxid = after;
+            }
+        }
+        finally
+        {
+            journalLock.unlock();
+        }
+    }
+    
+    /**
+     * Append a record. The record is written to the file or handed to the
+     * committer, depending on the durability mode, but is not necessarily
+     * on disk yet; see sync(). Records are kept in the order their
+     * transaction ids were handed out in.
+     * 
+     * @param cardNr Card number of the account
+     * @param delta Change in balance
+     * @param nextOtp New OTP password, or NO_OTP if unchanged
+     * @return Transaction id of the record
+     */
+    public long append(int cardNr, int delta, int nextOtp) throws IOException
+    {
+        journalLock.lock();
+        
+        try
+        {
+            if (failure != null)
+            {
+                throw new IOException("journal failed earlier", failure);
+            }
+            
+            long txid = lastTxid + 1;
+            
+            encode(record, txid, cardNr, delta, nextOtp);
+            
+            if (committer != null)
+            {
+                queue(record);
+                
+                lastTxid = txid;
+                ++records;
+                
+                return txid;
+            }
+            
+            long start = channel.position();
+            
+            try
+            {
+                while (record.hasRemaining())
+                {
+                    channel.write(record);
+                }
+            }
+            catch (IOException e)
+            {
+                // do not leave a partial record for the next one to follow
+                channel.truncate(start);
+                channel.position(start);
+                throw e;
+            }
+            
+            lastTxid = txid;
+            ++records;
+            
+            return txid;
+        }
+        finally
+        {
+            journalLock.unlock();
+        }
+    }
+    
+    /**
+     * Wait until a record is committed, as far as the durability mode
+     * requires: in GROUP mode until the committer has forced it to disk,
+     * in SYNC mode until the file has been forced, otherwise not at all.
+     * 
+     * @param txid Transaction id of the record
+     */
+    public void sync(long txid) throws IOException
+    {
+        if (durability == Durability.NONE || durability == Durability.ASYNC)
+        {
+            return;
+        }
+        
+        journalLock.lock();
+        
+        try
+        {
+            if (durability == Durability.SYNC)
+            {
+                channel.force(false);
+                syncedTxid = lastTxid;
+                return;
+            }
+            
+            while (syncedTxid < txid && failure == null)
+            {
+                syncedCond.awaitUninterruptibly();
+            }
+            
+            if (syncedTxid < txid)
+            {
+                throw new IOException("journal commit failed", failure);
+            }
+        }
+        finally
+        {
+            journalLock.unlock();
+        }
+    }
+    
+    /**
+     * Hand an encoded record to the committer. Must be called with the
+     * journal lock held.
+     * 
+     * @param rec Encoded record
+     */
+    private void queue(ByteBuffer rec)
+    {
+        if (pending.remaining() < RECORD_SIZE)
+        {
+            // the committer is busy with the disk; keep collecting
+            ByteBuffer bigger = ByteBuffer.allocate(pending.capacity() * 2);
+            pending.flip();
+            bigger.put(pending);
+            pending = bigger;
+        }
+        
+        boolean wasEmpty = pending.position() == 0;
+        
+        pending.put(rec);
+        
+        if (wasEmpty || pending.position() == RECORD_SIZE * GROUP_MAX_RECORDS)
+        {
+            pendingCond.signal();
+        }
+    }
+    
+    /**
+     * Main loop of the committer: take the records collected so far,
+     * write them with a single write, force them with a single force,
+     * and let the waiting threads know.
+     */
+    private void commitLoop()
+    {
+        while (true)
+        {
+            ByteBuffer batch;
+            long upto;
+            
+            journalLock.lock();
+            
+            try
+            {
+                while (pending.position() == 0 && !closed)
+                {
+                    pendingCond.awaitUninterruptibly();
+                }
+                
+                if (pending.position() == 0)
+                {
+                    return;
+                }
+                
+                if (durability == Durability.GROUP)
+                {
+                    long deadline = System.nanoTime() + windowNanos;
+                    long left;
+                    
+                    while (pending.position() < RECORD_SIZE * GROUP_MAX_RECORDS && !closed
+                           && (left = deadline - System.nanoTime()) > 0)
+                    {
+                        pendingCond.awaitNanos(left);
+                    }
+                }
+                
+                batch = pending;
+                pending = spare;
+                upto = lastTxid;
+                writing = batch.position() / RECORD_SIZE;
+            }
+            catch (InterruptedException e)
+            {
+                continue;
+            }
+            finally
+            {
+                journalLock.unlock();
+            }
+            
+            IOException error = null;
+            
+            batch.flip();
+            channelLock.lock();
+            
+            try
+            {
+                while (batch.hasRemaining())
+                {
+                    channel.write(batch);
+                }
+                
+                channel.force(false);
+            }
+            catch (IOException e)
+            {
+                System.out.println(e);
+                error = e;
+            }
+            finally
+            {
+                channelLock.unlock();
+            }
+            
+            journalLock.lock();
+            
+            batch.clear();
+            spare = batch;
+            writing = 0;
+            
+            if (error == null)
+            {
+                syncedTxid = upto;
+            }
+            else
+            {
+                failure = error;
+            }
+            
+            syncedCond.signalAll();
+            
+            journalLock.unlock();
+        }
+    }
+    
+    /**
+     * Run an action between two appends. Every record appended after the
+     * action is guaranteed to see its effects, and lastTxid() called from
+     * within the action returns the latest record appended before it.
+     * 
+     * @param action Action to run
+     */
+    public void runBetweenAppends(Runnable action)
+    {
+        journalLock.lock();
+        
+        try
+        {
+            action.run();
+        }
+        finally
+        {
+            journalLock.unlock();
+        }
+    }
+    
+    /**
+     * Get the transaction id of the latest record appended.
+     * 
+     * @return Latest transaction id
+     */
+    public long lastTxid()
+    {
+        return lastTxid;
+    }
+    
+    /**
+     * Get the number of records in the journal.
+     * 
+     * @return Number of records
+     */
+    public int records()
+    {
+        return records;
+    }
+    
+    /**
+     * Drop the records covered by a snapshot. The records that remain are
+     * copied to a new file which then atomically replaces the journal, so
+     * a crash leaves either the old or the new journal, never a mix.
+     * 
+     * @param upto Transaction id covered by the snapshot
+     */
+    public void compact(long upto) throws IOException
+    {
+        // the committer writes outside the journal lock, so keep it out
+        // of the file while it is being replaced
+        channelLock.lock();
+        journalLock.lock();
+        
+        try
+        {
+            Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+            FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                                               StandardOpenOption.TRUNCATE_EXISTING,
+                                               StandardOpenOption.READ, StandardOpenOption.WRITE);
+            
+            ByteBuffer buf = ByteBuffer.allocate(RECORD_SIZE * SCAN_BATCH);
+            long pos = 0;
+            int kept = 0;
+            
+            // the journal only ever holds whole, valid records here
+            while (channel.read(buf, pos) > 0)
+            {
+                buf.flip();
+                
+                int end = buf.limit() - buf.limit() % RECORD_SIZE;
+                int from = 0;
+                
+                if (end == 0)
+                {
+                    break;
+                }
+                
+                // records are in txid order, so skip the covered ones and
+                // copy the rest as they are
+                while (from < end && buf.getLong(from) <= upto)
+                {
+                    from += RECORD_SIZE;
+                }
+                
+                buf.position(from);
+                buf.limit(end);
+                kept += (end - from) / RECORD_SIZE;
+                
+                while (buf.hasRemaining())
+                {
+                    out.write(buf);
+                }
+                
+                pos += end;
+                buf.clear();
+            }
+            
+            out.force(true);
+            Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            
+            channel.close();
+            channel = out;
+            // the batch the committer has taken is written to the new
+            // file once the lock is released
+            records = kept + writing + (pending == null ? 0 : pending.position() / RECORD_SIZE);
+        }
+        finally
+        {
+            journalLock.unlock();
+            channelLock.unlock();
+        }
+    }
+    
+    /**
+     * Close the journal.
+     */
+    public void close() throws IOException
+    {
+        if (committer != null)
+        {
+            journalLock.lock();
+            closed = true;
+            pendingCond.signal();
+            journalLock.unlock();
+            
+            try
+            {
+                committer.join();
+            }
+            catch (InterruptedException e)
+            {
+                System.out.println(e);
+            }
+        }
+        
+        journalLock.lock();
+        
+        try
+        {
+            channel.force(false);
+            channel.close();
+        }
+        finally
+        {
+            journalLock.unlock();
+        }
+    }
+    
+    /**
+     * Read the records of a journal file from the start, validating them
+     * and keeping track of the latest transaction id.
+     * 
+     * @param in Journal file
+     * @param after Only records with larger transaction ids are visited
+     * @param visitor Visitor to apply records to, or null
+     * @return Position just past the last valid record
+     */
+    private long scan(FileChannel in, long after, Visitor visitor) throws IOException
+    {
+        ByteBuffer buf = ByteBuffer.allocate(RECORD_SIZE * SCAN_BATCH);
+        long pos = 0;
+        long prev = 0;
+        int count = 0;
+        
+        while (true)
+        {
+            buf.clear();
+            
+            if (in.read(buf, pos) <= 0)
+            {
+                break;
+            }
+            
+            buf.flip();
+            
+            while (buf.remaining() >= RECORD_SIZE)
+            {
+                int start = buf.position();
+                
+                crc.reset();
+                crc.update(buf.array(), start, RECORD_SIZE - 4);
+                
+                long txid = buf.getLong();
+                int cardNr = buf.getInt();
+                int delta = buf.getInt();
+                int nextOtp = buf.getInt();
+                int sum = buf.getInt();
+                
+                if (sum != (int) crc.getValue() || txid <= prev)
+                {
+                    return finishScan(pos + start, prev, count);
+                }
+                
+                prev = txid;
+                ++count;
+                
+                if (visitor != null && txid > after)
+                {
+                    visitor.apply(txid, cardNr, delta, nextOtp);
+                }
+            }
+            
+            if (buf.position() == 0)
+            {
+                // only part of a record left, the rest was never written
+                break;
+            }
+            
+            pos += buf.position();
+        }
+        
+        return finishScan(pos, prev, count);
+    }
+    
+    /**
+     * Record the outcome of a scan.
+     * 
+     * @param end Position just past the last valid record
+     * @param last Transaction id of the last valid record
+     * @param count Number of valid records
+     * @return The end position
+     */
+    private long finishScan(long end, long last, int count)
+    {
+        if (lastTxid < last)
+        {
+            lastTxid = last;
+        }
+        
+        records = count;
+        
+        return end;
+    }
+    
+    /**
+     * Encode a record into a buffer, leaving it ready for writing.
+     * 
+     * @param buf Buffer of RECORD_SIZE bytes
+     * @param txid Transaction id
+     * @param cardNr Card number of the account
+     * @param delta Change in balance
+     * @param nextOtp New OTP password, or NO_OTP
+     */
+    private void encode(ByteBuffer buf, long txid, int cardNr, int delta, int nextOtp)
+    {
+        buf.clear();
+        buf.putLong(txid);
+        buf.putInt(cardNr);
+        buf.putInt(delta);
+        buf.putInt(nextOtp);
+        
+        crc.reset();
+        crc.update(buf.array(), 0, RECORD_SIZE - 4);
+        
+        buf.putInt((int) crc.getValue());
+        buf.flip();
+    }
+    
+    /**
+     * Value of nextOtp in records that leave the OTP password unchanged.
+     */
+    public static final int NO_OTP = -1;
+    
+    /**
+     * Size of a record in bytes.
+     */
+    public static final int RECORD_SIZE = 24;
+    
+    /**
+     * Number of records read at a time while scanning.
+     */
+    private static final int SCAN_BATCH = 1024;
+    
+    /**
+     * Number of records at which a GROUP batch is committed without
+     * waiting for the rest of the latency window.
+     */
+    private static final int GROUP_MAX_RECORDS = 1024;
+    
+    /**
+     * Point at which a transaction counts as committed.
+     */
+    private final Durability durability;
+    
+    /**
+     * Longest time a GROUP batch waits for more records, in nanoseconds.
+     */
+    private final long windowNanos;
+    
+    /**
+     * Path of the journal file.
+     */
+    private final Path path;
+    
+    /**
+     * Journal file, positioned at its end.
+     */
+    private FileChannel channel;
+    
+    /**
+     * Buffer the record being appended is encoded in.
+     */
+    private final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+    
+    /**
+     * Checksum of records being encoded or scanned.
+     */
+    private final CRC32C crc = new CRC32C();
+    
+    /**
+     * Transaction id of the latest record appended.
+     */
+    private volatile long lastTxid = 0;
+    
+    /**
+     * Transaction id of the latest record known to be on disk.
+     */
+    private long syncedTxid = 0;
+    
+    /**
+     * Number of records in the journal file.
+     */
+    private volatile int records = 0;
+    
+    /**
+     * Lock serializing appends, syncs and compaction.
+     */
+    private final Lock journalLock = new ReentrantLock();
+    
+    /**
+     * Signalled when the committer has records to write.
+     */
+    private final Condition pendingCond = journalLock.newCondition();
+    
+    /**
+     * Signalled when the committer has forced a batch to disk, or
+     * failed to.
+     */
+    private final Condition syncedCond = journalLock.newCondition();
+    
+    /**
+     * Lock held by the committer while writing to the file, and by
+     * compaction while replacing it.
+     */
+    private final Lock channelLock = new ReentrantLock();
+    
+    /**
+     * Committer thread, or null if records are written when appended.
+     */
+    private Thread committer = null;
+    
+    /**
+     * Records collected for the committer, not yet written.
+     */
+    private ByteBuffer pending = null;
+    
+    /**
+     * Empty buffer to collect records in while the committer writes
+     * the previous batch.
+     */
+    private ByteBuffer spare = null;
+    
+    /**
+     * Number of records in the batch the committer has taken from
+     * pending but not yet written.
+     */
+    private int writing = 0;
+    
+    /**
+     * Error of a failed commit. Once set, no more records are accepted.
+     */
+    private IOException failure = null;
+    
+    /**
+     * Has the journal been closed?
+     */
+    private boolean closed = false;
+}
@@ -0,0 +1,181 @@
+/**
+ * CardIndex maps card numbers to account slots (positions in the
+ * bank's list of accounts), so that a login does not have to scan
+ * every account.
+ * 
+ * The index is an open-addressing hash table over two parallel int
+ * arrays with linear probing, so lookups neither box the card number
+ * nor allocate. It is not safe for concurrent modification; the bank
+ * guards it with the same lock as the accounts themselves.
+ * 
+ * @author Mikael Forsberg <miforsb@kth.se>
+ * @author Robin Gunning <rgunning@kth.se>
+ * @version 20151204T1700
+ */
+public class CardIndex
+{
+    /**
+     * Create a new empty CardIndex.
+     * 
+     * @param expected Number of card numbers expected to be indexed
+     */
+    public CardIndex(int expected)
+    {
+        int capacity = MIN_CAPACITY;
+        
+        while (capacity < expected * 2)
+        {
+            capacity <<= 1;
+        }
+        
+        keys = new int[capacity];
+        slots = new int[capacity];
+        java.util.Arrays.fill(slots, NO_SLOT);
+    }
+    
+    /**
+     * Look up the account slot of a card number.
+     * 
+     * @param cardNr Card number to look up
+     * @return Slot of the account, or NO_SLOT if the card number
+     *         is not indexed
+     */
+    public int get(int cardNr)
+    {
+        int mask = keys.length - 1;
+        
+        for (int i = hash(cardNr) & mask; slots[i] != NO_SLOT; i = (i + 1) & mask)
+        {
+            if (keys[i] == cardNr)
+            {
+                return slots[i];
+            }
+        }
+        
+        return NO_SLOT;
+    }
+    
+    /**
+     * Index a card number, unless it is already indexed.
+     * 
+     * @param cardNr Card number to index
+     * @param slot Slot of the account holding the card number
+     * @return True if the card number was added, false if it was
+     *         already indexed (in which case the index is unchanged)
+     */
+    public boolean putIfAbsent(int cardNr, int slot)
+    {
+        if ((size + 1) * 2 > keys.length)
+        {
+            grow();
+        }
+        
+        int mask = keys.length - 1;
+        int i = hash(cardNr) & mask;
+        
+        while (slots[i] != NO_SLOT)
+        {
+            if (keys[i] == cardNr)
+            {
+                return false;
+            }
+            
+            i = (i + 1) & mask;
+        }
+        
+        keys[i] = cardNr;
+        slots[i] = slot;
+        ++size;
+        
+        return true;
+    }
+    
+    /**
+     * Get the number of indexed card numbers.
+     * 
+     * @return Number of indexed card numbers
+     */
+    public int size()
+    {
+        return size;
+    }
+    
+    /**
+     * Double the capacity of the table, rehashing every entry.
+     */
+    private void grow()
+    {
+        int[] oldkeys = keys;
+        int[] oldslots = slots;
+        
+        keys = new int[oldkeys.length * 2];
+        slots = new int[oldkeys.length * 2];
+        java.util.Arrays.fill(slots, NO_SLOT);
+        
+        int mask = keys.length - 1;
+        
+        for (int j = 0; j < oldkeys.length; ++j)
+        {
+            if (oldslots[j] == NO_SLOT)
+            {
+                continue;
+            }
+            
+            int i = hash(oldkeys[j]) & mask;
+            
+            while (slots[i] != NO_SLOT)
+            {
+                i = (i + 1) & mask;
+            }
+            
+            keys[i] = oldkeys[j];
+            slots[i] = oldslots[j];
+        }
+    }
+    
+    /**
+     * Spread the bits of a card number. Card numbers are often
+     * sequential, which would otherwise fill long runs of the table.
+     * 
+     * @param key Card number to hash
+     * @return Hash of the card number
+     */
+    static int hash(int key)
+    {
+        // finalizer of MurmurHash3
+        key ^= key >>> 16;
+        key *= 0x85ebca6b;
+        key ^= key >>> 13;
+        key *= 0xc2b2ae35;
+        key ^= key >>> 16;
+        
+        return key;
+    }
+    
+    /**
+     * Slot value marking an unused table entry, also returned by
+     * get() for card numbers that are not indexed.
+     */
+    public static final int NO_SLOT = -1;
+    
+    /**
+     * Smallest capacity of the table. Must be a power of two.
+     */
+    private static final int MIN_CAPACITY = 16;
+    
+    /**
+     * Indexed card numbers.
+     */
+    private int[] keys;
+    
+    /**
+     * Account slot of each indexed card number, or NO_SLOT for
+     * unused entries.
+     */
+    private int[] slots;
+    
+    /**
+     * Number of indexed card numbers.
+     */
+    private int size = 0;
+}
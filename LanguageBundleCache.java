@@ -0,0 +1,527 @@
+import com.esotericsoftware.yamlbeans.*;
+import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.file.*;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * LanguageBundleCache keeps the server's language file in memory, both
+ * as the raw bytes sent to clients and as its parsed "_Version", so that
+ * answering an UPDATE REQUEST costs neither parsing nor reading the file.
+ * 
+ * The cache watches the language file and reloads it when it changes.
+ * Each load produces a new immutable Bundle which replaces the previous
+ * one atomically; sessions that already hold the previous bundle keep
+ * sending it undisturbed.
+ * 
+ * The strings of the last few versions are kept as well, so that a
+ * client holding one of them can be sent only the strings that changed
+ * (UPDATE DELTA) instead of the whole file. Each bundle is also
+ * compressed once, for clients that accept a compressed UPDATE.
+ * 
+ * @author Mikael Forsberg <miforsb@kth.se>
+ * @author Robin Gunning <rgunning@kth.se>
+ * @version 20151204T1700
+ */
+public class LanguageBundleCache
+{
+    /**
+     * LanguageBundleCache.Bundle is one loaded version of the
+     * language file.
+     */
+    public static class Bundle
+    {
+        /**
+         * Create a new Bundle.
+         * 
+         * @param version Value of the "_Version" field
+         * @param data Contents of the language file
+         * @param strings Strings of the language file, by language and key
+         * @param history Strings of earlier versions, by version
+         */
+        public Bundle(int version, byte[] data, Map<String, Map<String, String>> strings,
+                      Map<Integer, Map<String, Map<String, String>>> history)
+        {
+            this.version = version;
+            this.strings = strings;
+            this.history = history;
+            
+            byte[] frame = new byte[UPDATE_HEADER_SIZE + data.length];
+            
+            frame[0] = (byte) ATM.MSG_UPDATE;
+            frame[1] = (byte) ((data.length & 0xff0000) >> 16);
+            frame[2] = (byte) ((data.length & 0x00ff00) >> 8);
+            frame[3] = (byte) (data.length & 0x0000ff);
+            
+            System.arraycopy(data, 0, frame, UPDATE_HEADER_SIZE, data.length);
+            
+            update = new ATMFrames.Frame(frame);
+            deflated = deflate(data);
+        }
+        
+        /**
+         * Get the message that brings a client from an earlier version to
+         * this one. Deltas are encoded on first use and then shared.
+         * 
+         * @param base Version the client currently has
+         * @return UPDATE DELTA carrying the changed strings, the full UPDATE
+         *         if that happens to be smaller, or null if the base
+         *         version is not among the versions remembered
+         */
+        public ATMFrames.Frame delta(int base)
+        {
+            ATMFrames.Frame frame = deltas.get(base);
+            
+            if (frame != null)
+            {
+                return frame;
+            }
+            
+            Map<String, Map<String, String>> old = history.get(base);
+            
+            if (old == null)
+            {
+                return null;
+            }
+            
+            frame = encodeDelta(old);
+            deltas.putIfAbsent(base, frame);
+            
+            return frame;
+        }
+        
+        /**
+         * Encode the UPDATE DEFLATE carrying the language file.
+         * 
+         * @param data Contents of the language file
+         * @return The encoded message, or the full UPDATE if not smaller
+         */
+        private ATMFrames.Frame deflate(byte[] data)
+        {
+            Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+            
+            try
+            {
+                ByteArrayOutputStream frame = new ByteArrayOutputStream(data.length / 2);
+                
+                // reserve room for the header, filled in once the size is known
+                frame.write(new byte[DEFLATE_HEADER_SIZE]);
+                
+                DeflaterOutputStream out = new DeflaterOutputStream(frame, deflater);
+                out.write(data);
+                out.finish();
+                
+                byte[] bytes = frame.toByteArray();
+                int numbytes = bytes.length - DEFLATE_HEADER_SIZE;
+                
+                if (bytes.length >= UPDATE_HEADER_SIZE + data.length)
+                {
+                    return update;
+                }
+                
+                bytes[0] = (byte) ATM.MSG_UPDATE_DEFLATE;
+                bytes[1] = (byte) ((numbytes & 0xff0000) >> 16);
+                bytes[2] = (byte) ((numbytes & 0x00ff00) >> 8);
+                bytes[3] = (byte) (numbytes & 0x0000ff);
+                bytes[4] = (byte) ((data.length & 0xff0000) >> 16);
+                bytes[5] = (byte) ((data.length & 0x00ff00) >> 8);
+                bytes[6] = (byte) (data.length & 0x0000ff);
+                
+                return new ATMFrames.Frame(bytes);
+            }
+            catch (IOException e)
+            {
+                // cannot happen when writing to memory
+                return update;
+            }
+            finally
+            {
+                deflater.end();
+            }
+        }
+        
+        /**
+         * Encode the UPDATE DELTA from an earlier version to this one.
+         * 
+         * @param old Strings of the earlier version
+         * @return The encoded message, or the full UPDATE if smaller
+         */
+        private ATMFrames.Frame encodeDelta(Map<String, Map<String, String>> old)
+        {
+            try
+            {
+                ByteArrayOutputStream entries = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(entries);
+                int count = 0;
+                
+                // strings added or changed
+                for (Map.Entry<String, Map<String, String>> lang : strings.entrySet())
+                {
+                    Map<String, String> oldlang = old.get(lang.getKey());
+                    
+                    for (Map.Entry<String, String> str : lang.getValue().entrySet())
+                    {
+                        if (oldlang == null || !str.getValue().equals(oldlang.get(str.getKey())))
+                        {
+                            out.writeUTF(lang.getKey());
+                            out.writeUTF(str.getKey());
+                            out.writeBoolean(true);
+                            out.writeUTF(str.getValue());
+                            ++count;
+                        }
+                    }
+                }
+                
+                // strings removed
+                for (Map.Entry<String, Map<String, String>> oldlang : old.entrySet())
+                {
+                    Map<String, String> lang = strings.get(oldlang.getKey());
+                    
+                    for (String key : oldlang.getValue().keySet())
+                    {
+                        if (lang == null || !lang.containsKey(key))
+                        {
+                            out.writeUTF(oldlang.getKey());
+                            out.writeUTF(key);
+                            out.writeBoolean(false);
+                            ++count;
+                        }
+                    }
+                }
+                
+                int numbytes = DELTA_PAYLOAD_HEADER_SIZE + entries.size();
+                
+                if (UPDATE_HEADER_SIZE + numbytes >= update.asBuffer().remaining())
+                {
+                    return update;
+                }
+                
+                ByteArrayOutputStream frame = new ByteArrayOutputStream();
+                DataOutputStream header = new DataOutputStream(frame);
+                
+                header.writeByte(ATM.MSG_UPDATE_DELTA);
+                header.writeByte((numbytes & 0xff0000) >> 16);
+                header.writeByte((numbytes & 0x00ff00) >> 8);
+                header.writeByte(numbytes & 0x0000ff);
+                header.writeInt(version);
+                header.writeInt(count);
+                entries.writeTo(frame);
+                
+                return new ATMFrames.Frame(frame.toByteArray());
+            }
+            catch (IOException e)
+            {
+                // cannot happen when writing to memory
+                return update;
+            }
+        }
+        
+        /**
+         * Value of the "_Version" field.
+         */
+        public final int version;
+        
+        /**
+         * Complete UPDATE message carrying the language file, shared by
+         * all sessions.
+         */
+        public final ATMFrames.Frame update;
+        
+        /**
+         * Compressed UPDATE DEFLATE message carrying the language file,
+         * shared by all sessions that accept it. The same as update if
+         * compressing did not make the message smaller.
+         */
+        public final ATMFrames.Frame deflated;
+        
+        /**
+         * Strings of the language file, by language and key.
+         */
+        private final Map<String, Map<String, String>> strings;
+        
+        /**
+         * Strings of earlier versions, by version.
+         */
+        private final Map<Integer, Map<String, Map<String, String>>> history;
+        
+        /**
+         * Deltas encoded so far, by base version.
+         */
+        private final ConcurrentHashMap<Integer, ATMFrames.Frame> deltas =
+            new ConcurrentHashMap<Integer, ATMFrames.Frame>();
+    }
+    
+    /**
+     * LanguageBundleCache.Listener is notified whenever a new
+     * bundle has been loaded.
+     */
+    public static interface Listener
+    {
+        /**
+         * Called after a new bundle has replaced the previous one.
+         * 
+         * @param bundle The new bundle
+         */
+        public void bundleChanged(Bundle bundle);
+    }
+    
+    /**
+     * Create a new LanguageBundleCache and load the language file.
+     * 
+     * @param filename Name of the language file
+     */
+    public LanguageBundleCache(String filename)
+    {
+        this.path = Paths.get(filename).toAbsolutePath();
+        
+        if (!reload())
+        {
+            current = new Bundle(0, new byte[0], new HashMap<String, Map<String, String>>(),
+                new HashMap<Integer, Map<String, Map<String, String>>>());
+        }
+    }
+    
+    /**
+     * Get the most recently loaded bundle.
+     * 
+     * @return The current bundle
+     */
+    public Bundle current()
+    {
+        return current;
+    }
+    
+    /**
+     * Add a listener to notify when a new bundle has been loaded.
+     * 
+     * @param listener Listener to add
+     */
+    public void addListener(Listener listener)
+    {
+        listeners.add(listener);
+    }
+    
+    /**
+     * Reload the language file. If the file cannot be read or parsed,
+     * for example because it is being written at the moment, the current
+     * bundle is kept.
+     * 
+     * @return True if the file was loaded, false otherwise
+     */
+    public boolean reload()
+    {
+        Bundle bundle;
+        
+        reloadLock.lock();
+        
+        try
+        {
+            byte[] data = Files.readAllBytes(path);
+            
+            if (data.length > MAX_DATA_SIZE)
+            {
+                throw new IOException("language file too large: " + data.length + " bytes");
+            }
+            
+            YamlReader reader = new YamlReader(new StringReader(new String(data, UTF8)));
+            Object root = reader.read();
+            
+            if (!(root instanceof Map))
+            {
+                throw new IOException("language file is not a map");
+            }
+            
+            Map<?, ?> map = (Map<?, ?>) root;
+            Object version = map.get("_Version");
+            
+            if (version == null)
+            {
+                throw new IOException("language file has no _Version");
+            }
+            
+            int newversion = Integer.parseInt(version.toString());
+            Map<String, Map<String, String>> strings = new HashMap<String, Map<String, String>>();
+            
+            for (Map.Entry<?, ?> e : map.entrySet())
+            {
+                if (e.getKey().equals("_Version") || !(e.getValue() instanceof Map))
+                {
+                    continue;
+                }
+                
+                Map<String, String> lang = new HashMap<String, String>();
+                
+                for (Map.Entry<?, ?> ee : ((Map<?, ?>) e.getValue()).entrySet())
+                {
+                    lang.put(String.valueOf(ee.getKey()), String.valueOf(ee.getValue()));
+                }
+                
+                strings.put(String.valueOf(e.getKey()), Collections.unmodifiableMap(lang));
+            }
+            
+            strings = Collections.unmodifiableMap(strings);
+            
+            bundle = new Bundle(newversion, data, strings,
+                new HashMap<Integer, Map<String, Map<String, String>>>(history));
+            
+            history.remove(newversion);
+            history.put(newversion, strings);
+            
+            while (history.size() > HISTORY_SIZE)
+            {
+                history.remove(history.keySet().iterator().next());
+            }
+            
+            current = bundle;
+        }
+        catch (Exception e)
+        {
+            System.out.println("could not load lang data: " + e);
+            return false;
+        }
+        finally
+        {
+            reloadLock.unlock();
+        }
+        
+        for (Listener listener : listeners)
+        {
+            listener.bundleChanged(bundle);
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Start watching the language file, reloading it whenever it is
+     * created or modified. The watcher runs on a daemon thread.
+     */
+    public void watch() throws IOException
+    {
+        final WatchService watcher = path.getFileSystem().newWatchService();
+        
+        path.getParent().register(watcher,
+            StandardWatchEventKinds.ENTRY_CREATE,
+            StandardWatchEventKinds.ENTRY_MODIFY);
+        
+        Thread thread = new Thread("LanguageBundleWatcher")
+        {
+            public void run()
+            {
+                while (true)
+                {
+                    try
+                    {
+                        WatchKey key = watcher.take();
+                        boolean changed = false;
+                        
+                        for (WatchEvent<?> event : key.pollEvents())
+                        {
+                            if (path.getFileName().equals(event.context()))
+                            {
+                                changed = true;
+                            }
+                        }
+                        
+                        key.reset();
+                        
+                        if (changed)
+                        {
+                            // let a writer finish before reading, and fold
+                            // the burst of events of a single save into one
+                            Thread.sleep(SETTLE_MILLIS);
+                            
+                            for (WatchKey more = watcher.poll(); more != null; more = watcher.poll())
+                            {
+                                more.pollEvents();
+                                more.reset();
+                            }
+                            
+                            reload();
+                        }
+                    }
+                    catch (InterruptedException e)
+                    {
+                        return;
+                    }
+                }
+            }
+        };
+        
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    /**
+     * Size of the UPDATE header: message id and 24-bit length.
+     */
+    private static final int UPDATE_HEADER_SIZE = 4;
+    
+    /**
+     * Size of the header of an UPDATE DEFLATE message: message id,
+     * 24-bit compressed length and 24-bit uncompressed length.
+     */
+    private static final int DEFLATE_HEADER_SIZE = 7;
+    
+    /**
+     * Size of the fixed part of the UPDATE DELTA payload: new version
+     * and number of entries.
+     */
+    private static final int DELTA_PAYLOAD_HEADER_SIZE = 8;
+    
+    /**
+     * Number of earlier versions to remember for deltas.
+     */
+    private static final int HISTORY_SIZE = 16;
+    
+    /**
+     * Largest language file that fits the 24-bit length of UPDATE.
+     */
+    private static final int MAX_DATA_SIZE = 0xffffff;
+    
+    /**
+     * Time to wait after a change before reloading the file.
+     */
+    private static final long SETTLE_MILLIS = 100;
+    
+    /**
+     * Character set of the language file.
+     */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    
+    /**
+     * Absolute path of the language file.
+     */
+    private final Path path;
+    
+    /**
+     * Most recently loaded bundle.
+     */
+    private volatile Bundle current;
+    
+    /**
+     * Strings of the most recently loaded versions, by version, oldest
+     * first. Only used while reloading.
+     */
+    private final LinkedHashMap<Integer, Map<String, Map<String, String>>> history =
+        new LinkedHashMap<Integer, Map<String, Map<String, String>>>();
+    
+    /**
+     * Lock serializing reloads.
+     */
+    private final Lock reloadLock = new ReentrantLock();
+    
+    /**
+     * Listeners to notify when a new bundle has been loaded.
+     */
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+}
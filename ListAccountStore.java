@@ -0,0 +1,200 @@
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * ListAccountStore keeps accounts as Account objects in memory, as
+ * loaded from the accounts file. Persisting them is left to the
+ * bank's journal and snapshots.
+ * 
+ * The balances are kept apart from the Account objects, in chunks of
+ * atomic cells. Chunks are never moved, only added, so adding an
+ * account never holds up a balance update.
+ * 
+ * @author Mikael Forsberg <miforsb@kth.se>
+ * @author Robin Gunning <rgunning@kth.se>
+ * @version 20151204T1700
+ */
+public class ListAccountStore implements AccountStore
+{
+    /**
+     * Create a new ListAccountStore.
+     * 
+     * @param accounts Accounts to hold; the list is used as it is,
+     *        not copied
+     */
+    public ListAccountStore(ArrayList<Account> accounts)
+    {
+        this.accounts = accounts;
+        
+        for (int slot = 0; slot < accounts.size(); ++slot)
+        {
+            initBalance(slot, accounts.get(slot).getBalance());
+        }
+    }
+    
+    /**
+     * Implementation of AccountStore.size()
+     */
+    public int size()
+    {
+        return accounts.size();
+    }
+    
+    /**
+     * Implementation of AccountStore.add()
+     */
+    public int add(Account acc)
+    {
+        initBalance(accounts.size(), acc.getBalance());
+        accounts.add(acc);
+        
+        return accounts.size() - 1;
+    }
+    
+    /**
+     * Implementation of AccountStore.get()
+     */
+    public Account get(int slot)
+    {
+        Account acc = accounts.get(slot);
+        
+        return new Account(acc.getName(), getBalance(slot), acc.getCardNr(),
+                           acc.getPinCode(), acc.getNextOtp());
+    }
+    
+    /**
+     * Implementation of AccountStore.getBalance()
+     */
+    public long getBalance(int slot)
+    {
+        return chunks[slot >>> CHUNK_BITS].get(slot & CHUNK_MASK);
+    }
+    
+    /**
+     * Implementation of AccountStore.setBalance()
+     */
+    public void setBalance(int slot, long balance)
+    {
+        chunks[slot >>> CHUNK_BITS].set(slot & CHUNK_MASK, balance);
+    }
+    
+    /**
+     * Implementation of AccountStore.addBalance()
+     */
+    public long addBalance(int slot, long delta)
+    {
+        return chunks[slot >>> CHUNK_BITS].addAndGet(slot & CHUNK_MASK, delta);
+    }
+    
+    /**
+     * Implementation of AccountStore.compareAndSetBalance()
+     */
+    public boolean compareAndSetBalance(int slot, long expected, long balance)
+    {
+        return chunks[slot >>> CHUNK_BITS].compareAndSet(slot & CHUNK_MASK, expected, balance);
+    }
+    
+    /**
+     * Implementation of AccountStore.getCardNr()
+     */
+    public int getCardNr(int slot)
+    {
+        return accounts.get(slot).getCardNr();
+    }
+    
+    /**
+     * Implementation of AccountStore.getPinCode()
+     */
+    public int getPinCode(int slot)
+    {
+        return accounts.get(slot).getPinCode();
+    }
+    
+    /**
+     * Implementation of AccountStore.getNextOtp()
+     */
+    public int getNextOtp(int slot)
+    {
+        return accounts.get(slot).getNextOtp();
+    }
+    
+    /**
+     * Implementation of AccountStore.setNextOtp()
+     */
+    public void setNextOtp(int slot, int nextOtp)
+    {
+        accounts.get(slot).setNextOtp(nextOtp);
+    }
+    
+    /**
+     * Implementation of AccountStore.flush(). The accounts only live
+     * in memory, so there is nothing to do.
+     */
+    public void flush()
+    {
+        
+    }
+    
+    /**
+     * Implementation of AccountStore.force(). The accounts only live
+     * in memory, so there is nothing to do.
+     */
+    public void force()
+    {
+        
+    }
+    
+    /**
+     * Implementation of AccountStore.close()
+     */
+    public void close()
+    {
+        
+    }
+    
+    /**
+     * Set the balance of a new account, adding a chunk if needed.
+     * 
+     * @param slot Slot of the account
+     * @param balance Initial balance
+     */
+    private void initBalance(int slot, long balance)
+    {
+        int chunk = slot >>> CHUNK_BITS;
+        
+        if (chunk == chunks.length)
+        {
+            AtomicLongArray[] grown = java.util.Arrays.copyOf(chunks, chunks.length + 1);
+            grown[chunk] = new AtomicLongArray(CHUNK_SIZE);
+            chunks = grown;
+        }
+        
+        chunks[chunk].set(slot & CHUNK_MASK, balance);
+    }
+    
+    /**
+     * Number of bits of a slot selecting the cell within a chunk.
+     */
+    private static final int CHUNK_BITS = 12;
+    
+    /**
+     * Number of balance cells in a chunk.
+     */
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    
+    /**
+     * Mask selecting the cell within a chunk.
+     */
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    
+    /**
+     * List of accounts. The balances of the Account objects are only
+     * those they were loaded with.
+     */
+    private final ArrayList<Account> accounts;
+    
+    /**
+     * Balance cells, by slot.
+     */
+    private volatile AtomicLongArray[] chunks = new AtomicLongArray[0];
+}
@@ -0,0 +1,518 @@
+import java.io.*;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.*;
+import java.util.List;
+
+/**
+ * MappedAccountStore keeps accounts as fixed-width binary records in a
+ * memory-mapped file. Opening the store parses nothing, and changing a
+ * balance is a single atomic 8-byte update in the mapping; the
+ * operating system writes changed pages back to the file, and force()
+ * makes sure it has.
+ * 
+ * The file starts with a header of RECORD_SIZE bytes,
+ * 
+ * | 32 bit magic | 32 bit version | 32 bit record size | 32 bit count |
+ * 
+ * followed by one record per account,
+ * 
+ * | 64 bit balance | 32 bit cardNr | 32 bit pinCode | 32 bit nextOtp | name | padding |
+ * 
+ * where the name is a fixed-width area holding an 8-bit length followed
+ * by that many bytes of UTF-8. The numbers are held as the accounts file
+ * was parsed into (see Bank.parsePadded()), with -1 for a missing one,
+ * so reading one is a single 4-byte read. The whole file must fit in a
+ * single mapping, which limits the store to about 22 million accounts.
+ * 
+ * @author Mikael Forsberg <miforsb@kth.se>
+ * @author Robin Gunning <rgunning@kth.se>
+ * @version 20151204T1700
+ */
+public class MappedAccountStore implements AccountStore
+{
+    /**
+     * Open an existing store.
+     * 
+     * @param filename Name of the store file
+     * @return The opened store
+     */
+    public static MappedAccountStore open(String filename) throws IOException
+    {
+        FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ,
+                                               StandardOpenOption.WRITE);
+        
+        try
+        {
+            return new MappedAccountStore(channel, readHeader(channel, filename));
+        }
+        catch (IOException e)
+        {
+            channel.close();
+            throw e;
+        }
+    }
+    
+    /**
+     * Create a new store holding a list of accounts, replacing any store
+     * by the same name.
+     * 
+     * @param filename Name of the store file
+     * @param accounts Accounts to hold
+     * @return The created store
+     */
+    public static MappedAccountStore create(String filename, List<Account> accounts) throws IOException
+    {
+        write(filename, accounts);
+        
+        return open(filename);
+    }
+    
+    /**
+     * Check the header of a store file.
+     * 
+     * @param channel Store file
+     * @param filename Name of the store file
+     * @return Number of accounts in the file
+     */
+    static int readHeader(FileChannel channel, String filename) throws IOException
+    {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_FIELDS_SIZE);
+        
+        if (channel.read(header, 0) != HEADER_FIELDS_SIZE || header.getInt(0) != MAGIC
+            || header.getInt(4) != VERSION || header.getInt(8) != RECORD_SIZE)
+        {
+            throw new IOException(filename + " is not an account store of version " + VERSION);
+        }
+        
+        int count = header.getInt(COUNT_OFFSET);
+        
+        if (count < 0 || (long) RECORD_SIZE * (count + 1) > channel.size())
+        {
+            throw new IOException(filename + " is truncated");
+        }
+        
+        return count;
+    }
+    
+    /**
+     * Write a store file holding a list of accounts, replacing any file
+     * by the same name. The store is written to a new file that is then
+     * moved into place. Any card index of PagedAccountStore for the old
+     * file is removed, since it would no longer match.
+     * 
+     * @param filename Name of the store file
+     * @param accounts Accounts to hold
+     */
+    static void write(String filename, List<Account> accounts) throws IOException
+    {
+        Path path = Paths.get(filename);
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                                           StandardOpenOption.TRUNCATE_EXISTING,
+                                           StandardOpenOption.WRITE);
+        
+        try
+        {
+            ByteBuffer buf = ByteBuffer.allocate(RECORD_SIZE * WRITE_BATCH);
+            
+            buf.putInt(MAGIC);
+            buf.putInt(VERSION);
+            buf.putInt(RECORD_SIZE);
+            buf.putInt(accounts.size()); // COUNT_OFFSET
+            buf.position(RECORD_SIZE);
+            
+            for (Account acc : accounts)
+            {
+                if (!buf.hasRemaining())
+                {
+                    drain(buf, out);
+                }
+                
+                encode(buf, buf.position(), acc);
+                buf.position(buf.position() + RECORD_SIZE);
+            }
+            
+            drain(buf, out);
+            out.force(true);
+        }
+        finally
+        {
+            out.close();
+        }
+        
+        Files.deleteIfExists(Paths.get(filename + PagedAccountStore.INDEX_SUFFIX));
+        Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+    
+    /**
+     * Create a new MappedAccountStore.
+     * 
+     * @param channel Store file
+     * @param count Number of accounts in the file
+     */
+    private MappedAccountStore(FileChannel channel, int count) throws IOException
+    {
+        this.channel = channel;
+        this.count = count;
+        
+        map(Math.max(count, MIN_CAPACITY));
+    }
+    
+    /**
+     * Implementation of AccountStore.size()
+     */
+    public int size()
+    {
+        return count;
+    }
+    
+    /**
+     * Implementation of AccountStore.add()
+     */
+    public int add(Account acc) throws IOException
+    {
+        if (count == capacity)
+        {
+            map(capacity * 2);
+        }
+        
+        encode(buffer, offset(count), acc);
+        buffer.putInt(COUNT_OFFSET, count + 1);
+        
+        return count++;
+    }
+    
+    /**
+     * Implementation of AccountStore.get()
+     */
+    public Account get(int slot)
+    {
+        Account acc = decode(buffer, offset(slot));
+        
+        acc.setBalance(getBalance(slot));
+        
+        return acc;
+    }
+    
+    /**
+     * Implementation of AccountStore.getBalance()
+     */
+    public long getBalance(int slot)
+    {
+        return (long) BALANCE.getVolatile(buffer, offset(slot) + BALANCE_OFFSET);
+    }
+    
+    /**
+     * Implementation of AccountStore.setBalance()
+     */
+    public void setBalance(int slot, long balance)
+    {
+        BALANCE.setVolatile(buffer, offset(slot) + BALANCE_OFFSET, balance);
+    }
+    
+    /**
+     * Implementation of AccountStore.addBalance()
+     */
+    public long addBalance(int slot, long delta)
+    {
+        return (long) BALANCE.getAndAdd(buffer, offset(slot) + BALANCE_OFFSET, delta) + delta;
+    }
+    
+    /**
+     * Implementation of AccountStore.compareAndSetBalance()
+     */
+    public boolean compareAndSetBalance(int slot, long expected, long balance)
+    {
+        return BALANCE.compareAndSet(buffer, offset(slot) + BALANCE_OFFSET, expected, balance);
+    }
+    
+    /**
+     * Implementation of AccountStore.getCardNr()
+     */
+    public int getCardNr(int slot)
+    {
+        return buffer.getInt(offset(slot) + CARDNR_OFFSET);
+    }
+    
+    /**
+     * Implementation of AccountStore.getPinCode()
+     */
+    public int getPinCode(int slot)
+    {
+        return buffer.getInt(offset(slot) + PINCODE_OFFSET);
+    }
+    
+    /**
+     * Implementation of AccountStore.getNextOtp()
+     */
+    public int getNextOtp(int slot)
+    {
+        return buffer.getInt(offset(slot) + NEXTOTP_OFFSET);
+    }
+    
+    /**
+     * Implementation of AccountStore.setNextOtp()
+     */
+    public void setNextOtp(int slot, int nextOtp)
+    {
+        buffer.putInt(offset(slot) + NEXTOTP_OFFSET, nextOtp);
+    }
+    
+    /**
+     * Implementation of AccountStore.flush(). The mapping shares its
+     * pages with the operating system, so there is nothing to do.
+     */
+    public void flush()
+    {
+        
+    }
+    
+    /**
+     * Implementation of AccountStore.force()
+     */
+    public void force()
+    {
+        buffer.force();
+    }
+    
+    /**
+     * Implementation of AccountStore.close()
+     */
+    public void close() throws IOException
+    {
+        buffer.force();
+        channel.close();
+    }
+    
+    /**
+     * Map the store file, large enough for a number of accounts. The
+     * file grows as needed. Earlier mappings stay valid, since they
+     * share the pages of the file with the new one.
+     * 
+     * @param accounts Number of accounts to make room for
+     */
+    private void map(int accounts) throws IOException
+    {
+        long size = (long) RECORD_SIZE * (accounts + 1);
+        
+        if (size > Integer.MAX_VALUE)
+        {
+            throw new IOException("account store full");
+        }
+        
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        capacity = accounts;
+    }
+    
+    /**
+     * Get the position of the record of an account.
+     * 
+     * @param slot Slot of the account
+     * @return Position of the record in the file
+     */
+    private static int offset(int slot)
+    {
+        return RECORD_SIZE * (slot + 1);
+    }
+    
+    /**
+     * Decode a record into an account.
+     * 
+     * @param buf Buffer holding the record
+     * @param pos Position of the record in the buffer
+     * @return New Account holding the fields of the record
+     */
+    static Account decode(ByteBuffer buf, int pos)
+    {
+        return new Account(getString(buf, pos + NAME_OFFSET), buf.getLong(pos + BALANCE_OFFSET),
+                           buf.getInt(pos + CARDNR_OFFSET), buf.getInt(pos + PINCODE_OFFSET),
+                           buf.getInt(pos + NEXTOTP_OFFSET));
+    }
+    
+    /**
+     * Read a string field.
+     * 
+     * @param buf Buffer to read from
+     * @param pos Position of the field in the buffer
+     * @return Value of the field
+     */
+    private static String getString(ByteBuffer buf, int pos)
+    {
+        byte[] bytes = new byte[buf.get(pos) & 0xff];
+        
+        for (int i = 0; i < bytes.length; ++i)
+        {
+            bytes[i] = buf.get(pos + 1 + i);
+        }
+        
+        return new String(bytes, UTF8);
+    }
+    
+    /**
+     * Encode an account into a record.
+     * 
+     * @param buf Buffer to encode into
+     * @param pos Position of the record in the buffer
+     * @param acc Account to encode
+     */
+    static void encode(ByteBuffer buf, int pos, Account acc)
+    {
+        for (int i = 0; i < RECORD_SIZE; ++i)
+        {
+            buf.put(pos + i, (byte) 0);
+        }
+        
+        buf.putLong(pos + BALANCE_OFFSET, acc.getBalance());
+        buf.putInt(pos + CARDNR_OFFSET, acc.getCardNr());
+        buf.putInt(pos + PINCODE_OFFSET, acc.getPinCode());
+        buf.putInt(pos + NEXTOTP_OFFSET, acc.getNextOtp());
+        putString(buf, pos + NAME_OFFSET, NAME_SIZE, acc.getName());
+    }
+    
+    /**
+     * Write a string field.
+     * 
+     * @param buf Buffer to write into
+     * @param pos Position of the field in the buffer
+     * @param size Size of the field
+     * @param value Value to write
+     */
+    private static void putString(ByteBuffer buf, int pos, int size, String value)
+    {
+        byte[] bytes = value.getBytes(UTF8);
+        
+        if (bytes.length >= size)
+        {
+            throw new IllegalArgumentException("\"" + value + "\" does not fit in " + (size - 1) + " bytes");
+        }
+        
+        buf.put(pos, (byte) bytes.length);
+        
+        for (int i = 0; i < bytes.length; ++i)
+        {
+            buf.put(pos + 1 + i, bytes[i]);
+        }
+    }
+    
+    /**
+     * Write the contents of a buffer to a file and clear it.
+     * 
+     * @param buf Buffer to write
+     * @param out File to write to
+     */
+    private static void drain(ByteBuffer buf, FileChannel out) throws IOException
+    {
+        buf.flip();
+        
+        while (buf.hasRemaining())
+        {
+            out.write(buf);
+        }
+        
+        buf.clear();
+    }
+    
+    /**
+     * Magic number identifying a store file ("ATMS").
+     */
+    private static final int MAGIC = 0x41544d53;
+    
+    /**
+     * Version of the store file format.
+     */
+    private static final int VERSION = 1;
+    
+    /**
+     * Size of a record, and of the header.
+     */
+    public static final int RECORD_SIZE = 96;
+    
+    /**
+     * Size of the fields of the header.
+     */
+    private static final int HEADER_FIELDS_SIZE = 16;
+    
+    /**
+     * Offset of the number of accounts within the header.
+     */
+    static final int COUNT_OFFSET = 12;
+    
+    /**
+     * Size of the name field.
+     */
+    private static final int NAME_SIZE = 64;
+    
+    /**
+     * Offset of the balance within a record.
+     */
+    static final int BALANCE_OFFSET = 0;
+    
+    /**
+     * Offset of the card number within a record.
+     */
+    static final int CARDNR_OFFSET = 8;
+    
+    /**
+     * Offset of the PIN code within a record.
+     */
+    static final int PINCODE_OFFSET = CARDNR_OFFSET + 4;
+    
+    /**
+     * Offset of the next OTP password within a record.
+     */
+    static final int NEXTOTP_OFFSET = PINCODE_OFFSET + 4;
+    
+    /**
+     * Offset of the name within a record.
+     */
+    private static final int NAME_OFFSET = NEXTOTP_OFFSET + 4;
+    
+    /**
+     * Atomic access to the 64 bit balance of a record. Records start at
+     * multiples of RECORD_SIZE into a page-aligned mapping, so every
+     * balance is aligned as atomic access requires.
+     */
+    private static final VarHandle BALANCE =
+        MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+    
+    /**
+     * Smallest number of accounts to map room for.
+     */
+    private static final int MIN_CAPACITY = 1024;
+    
+    /**
+     * Number of records written at a time when creating a store.
+     */
+    private static final int WRITE_BATCH = 4096;
+    
+    /**
+     * Character set of the string fields.
+     */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    
+    /**
+     * Store file.
+     */
+    private final FileChannel channel;
+    
+    /**
+     * Mapping of the store file.
+     */
+    private volatile MappedByteBuffer buffer;
+    
+    /**
+     * Number of accounts the mapping has room for.
+     */
+    private int capacity;
+    
+    /**
+     * Number of accounts in the store.
+     */
+    private volatile int count;
+}
@@ -0,0 +1,1201 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * PagedAccountStore keeps accounts in a store file of the same format
+ * as MappedAccountStore, but holds only a bounded working set of them
+ * in memory, so that a bank may have far more accounts than fit in the
+ * heap. An account is read from the file the first time it is used and
+ * stays cached until its room is needed for another. The account to
+ * evict is picked by the CLOCK algorithm, which approximates least
+ * recently used while a hit only has to set a flag. Changed accounts
+ * are written back to the file when they are evicted, and all of them
+ * by flush(), which the bank calls as transactions commit; a segment
+ * keeps a list of its changed frames, so that flushing does not have
+ * to look at every frame.
+ * 
+ * The cache is split into segments by slot, each with its own lock and
+ * clock. The fields of an account are only touched with the lock of
+ * its segment held, which also makes the balance updates atomic; the
+ * lock is never held for longer than one field access, or the reading
+ * and writing back of one account on a miss.
+ * 
+ * Card numbers are looked up in an index file next to the store file,
+ * an open-addressing hash table of card numbers and slots that is read
+ * with a positional read per lookup, so the card index is not held in
+ * memory either (see getCardIndex()). The index file is built when it
+ * is missing. Accounts added later are indexed in memory, until the
+ * index file is built again.
+ * 
+ * @author Mikael Forsberg <miforsb@kth.se>
+ * @author Robin Gunning <rgunning@kth.se>
+ * @version 20151204T1700
+ */
+public class PagedAccountStore implements AccountStore
+{
+    /**
+     * PagedAccountStore.Segment is one part of the cache. It holds the
+     * accounts of the slots that map to it in a fixed number of frames,
+     * each the size of a record of the store file. Its fields are
+     * guarded by its lock.
+     */
+    private class Segment
+    {
+        /**
+         * Create a new empty Segment.
+         * 
+         * @param size Number of frames
+         */
+        public Segment(int size)
+        {
+            int capacity = 2;
+            
+            while (capacity < size * 2)
+            {
+                capacity <<= 1;
+            }
+            
+            frames = ByteBuffer.allocate(size * RECORD_SIZE);
+            io = frames.duplicate();
+            slots = new int[size];
+            referenced = new boolean[size];
+            dirty = new boolean[size];
+            changes = new int[size];
+            table = new int[capacity];
+            Arrays.fill(slots, EMPTY);
+        }
+        
+        /**
+         * Get the frame holding an account, reading the account from the
+         * file if it is not cached. The lock must be held.
+         * 
+         * @param slot Slot of the account
+         * @param change True if the account is about to be changed
+         * @return Position of the frame in frames
+         */
+        public int frame(int slot, boolean change)
+        {
+            int mask = table.length - 1;
+            
+            for (int i = CardIndex.hash(slot) & mask; table[i] != 0; i = (i + 1) & mask)
+            {
+                int frame = table[i] - 1;
+                
+                if (slots[frame] == slot)
+                {
+                    referenced[frame] = true;
+                    
+                    if (change)
+                    {
+                        changed(frame * RECORD_SIZE);
+                    }
+                    
+                    return frame * RECORD_SIZE;
+                }
+            }
+            
+            int frame = evict();
+            
+            try
+            {
+                readFully(channel, view(frame), offset(slot));
+            }
+            catch (IOException e)
+            {
+                throw new UncheckedIOException(e);
+            }
+            
+            int i = CardIndex.hash(slot) & mask;
+            
+            while (table[i] != 0)
+            {
+                i = (i + 1) & mask;
+            }
+            
+            table[i] = frame + 1;
+            slots[frame] = slot;
+            referenced[frame] = true;
+            
+            if (change)
+            {
+                changed(frame * RECORD_SIZE);
+            }
+            
+            return frame * RECORD_SIZE;
+        }
+        
+        /**
+         * Mark the account in a frame as changed. The lock must be held.
+         * 
+         * @param pos Position in frames of the frame, or of a field in it
+         */
+        public void changed(int pos)
+        {
+            int frame = pos / RECORD_SIZE;
+            
+            if (dirty[frame])
+            {
+                return;
+            }
+            
+            dirty[frame] = true;
+            
+            // frames written back on eviction stay listed, so the list
+            // may fill up; then every frame is looked at instead
+            if (numChanges < changes.length)
+            {
+                changes[numChanges] = frame;
+            }
+            
+            ++numChanges;
+        }
+        
+        /**
+         * Write every changed account back to the file. The lock must be
+         * held.
+         */
+        public void writeBack() throws IOException
+        {
+            if (numChanges > changes.length)
+            {
+                for (int frame = 0; frame < slots.length; ++frame)
+                {
+                    if (dirty[frame])
+                    {
+                        write(frame);
+                    }
+                }
+            }
+            else
+            {
+                for (int i = 0; i < numChanges; ++i)
+                {
+                    if (dirty[changes[i]])
+                    {
+                        write(changes[i]);
+                    }
+                }
+            }
+            
+            numChanges = 0;
+        }
+        
+        /**
+         * Free a frame, sweeping the clock hand over the frames until it
+         * finds one that is unused or has not been referenced since the
+         * last sweep. The account in that frame is written back if it
+         * has changed.
+         * 
+         * @return The free frame
+         */
+        private int evict()
+        {
+            while (true)
+            {
+                int frame = hand;
+                
+                hand = (hand + 1) % slots.length;
+                
+                if (slots[frame] == EMPTY)
+                {
+                    return frame;
+                }
+                
+                if (referenced[frame])
+                {
+                    referenced[frame] = false;
+                    continue;
+                }
+                
+                if (dirty[frame])
+                {
+                    try
+                    {
+                        write(frame);
+                    }
+                    catch (IOException e)
+                    {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+                
+                remove(frame);
+                
+                return frame;
+            }
+        }
+        
+        /**
+         * Write the account in a frame back to the file.
+         * 
+         * @param frame Frame to write
+         */
+        private void write(int frame) throws IOException
+        {
+            writeFully(channel, view(frame), offset(slots[frame]));
+            dirty[frame] = false;
+        }
+        
+        /**
+         * Remove the account in a frame from the table, moving back any
+         * entries after it that would otherwise no longer be found.
+         * 
+         * @param frame Frame to empty
+         */
+        private void remove(int frame)
+        {
+            int mask = table.length - 1;
+            int i = CardIndex.hash(slots[frame]) & mask;
+            
+            while (table[i] != frame + 1)
+            {
+                i = (i + 1) & mask;
+            }
+            
+            for (int j = (i + 1) & mask; table[j] != 0; j = (j + 1) & mask)
+            {
+                int home = CardIndex.hash(slots[table[j] - 1]) & mask;
+                
+                // the entry at j may fill the hole at i if i lies
+                // between its home and j
+                if (((j - home) & mask) >= ((j - i) & mask))
+                {
+                    table[i] = table[j];
+                    i = j;
+                }
+            }
+            
+            table[i] = 0;
+            slots[frame] = EMPTY;
+        }
+        
+        /**
+         * Get io, limited to a frame.
+         * 
+         * @param frame Frame to read or write
+         * @return io, positioned at the frame
+         */
+        private ByteBuffer view(int frame)
+        {
+            io.clear();
+            io.position(frame * RECORD_SIZE);
+            io.limit(frame * RECORD_SIZE + RECORD_SIZE);
+            
+            return io;
+        }
+        
+        /**
+         * Lock guarding the segment.
+         */
+        public final Lock lock = new ReentrantLock();
+        
+        /**
+         * Records of the cached accounts, one per frame.
+         */
+        public final ByteBuffer frames;
+        
+        /**
+         * View of frames used for reading and writing the file.
+         */
+        private final ByteBuffer io;
+        
+        /**
+         * Slot of the account in each frame, or EMPTY.
+         */
+        private final int[] slots;
+        
+        /**
+         * Whether each frame has been referenced since the clock hand
+         * last passed it.
+         */
+        private final boolean[] referenced;
+        
+        /**
+         * Whether the account in each frame has changed since it was
+         * last written to the file.
+         */
+        private final boolean[] dirty;
+        
+        /**
+         * Frames marked as changed since the last writeBack(), in the
+         * order they were marked.
+         */
+        private final int[] changes;
+        
+        /**
+         * Number of frames marked as changed since the last writeBack(),
+         * which may exceed the length of changes.
+         */
+        private int numChanges = 0;
+        
+        /**
+         * Open-addressing hash table from slot to frame, holding one
+         * more than the frame, or 0 for unused entries.
+         */
+        private final int[] table;
+        
+        /**
+         * Frame the clock hand points at.
+         */
+        private int hand = 0;
+    }
+    
+    /**
+     * PagedAccountStore.FileIndex is a CardIndex over an index file.
+     * Card numbers not in the file are indexed in the memory of the
+     * CardIndex itself.
+     */
+    private static class FileIndex extends CardIndex
+    {
+        /**
+         * Create a new FileIndex.
+         * 
+         * @param channel Index file
+         * @param capacity Number of entries in the table of the file
+         * @param entries Number of card numbers in the file
+         */
+        public FileIndex(FileChannel channel, int capacity, int entries)
+        {
+            super(0);
+            
+            this.channel = channel;
+            this.capacity = capacity;
+            this.entries = entries;
+        }
+        
+        /**
+         * Overrides CardIndex.get()
+         */
+        public int get(int cardNr)
+        {
+            int slot = find(cardNr);
+            
+            return slot != NO_SLOT ? slot : super.get(cardNr);
+        }
+        
+        /**
+         * Overrides CardIndex.putIfAbsent()
+         */
+        public boolean putIfAbsent(int cardNr, int slot)
+        {
+            return find(cardNr) == NO_SLOT && super.putIfAbsent(cardNr, slot);
+        }
+        
+        /**
+         * Overrides CardIndex.size()
+         */
+        public int size()
+        {
+            return entries + super.size();
+        }
+        
+        /**
+         * Release the index file.
+         */
+        public void close() throws IOException
+        {
+            channel.close();
+        }
+        
+        /**
+         * Look up the slot of a card number in the index file, reading
+         * PROBE_ENTRIES entries at a time.
+         * 
+         * @param cardNr Card number to look up
+         * @return Slot of the account, or NO_SLOT if the card number is
+         *         not in the file
+         */
+        private int find(int cardNr)
+        {
+            ByteBuffer probe = probes.get();
+            int mask = capacity - 1;
+            int i = hash(cardNr) & mask;
+            
+            while (true)
+            {
+                int n = Math.min(PROBE_ENTRIES, capacity - i);
+                
+                probe.clear();
+                probe.limit(n * ENTRY_SIZE);
+                
+                try
+                {
+                    readFully(channel, probe, INDEX_HEADER_SIZE + (long) i * ENTRY_SIZE);
+                }
+                catch (IOException e)
+                {
+                    throw new UncheckedIOException(e);
+                }
+                
+                for (int j = 0; j < n * ENTRY_SIZE; j += ENTRY_SIZE)
+                {
+                    int slot = probe.getInt(j + 4) - 1;
+                    
+                    if (slot == NO_SLOT || probe.getInt(j) == cardNr)
+                    {
+                        return slot;
+                    }
+                }
+                
+                i = (i + n) & mask;
+            }
+        }
+        
+        /**
+         * Index file.
+         */
+        private final FileChannel channel;
+        
+        /**
+         * Number of entries in the table of the file.
+         */
+        private final int capacity;
+        
+        /**
+         * Number of card numbers in the file.
+         */
+        private final int entries;
+        
+        /**
+         * Buffer of each thread for the entries read by a lookup.
+         */
+        private final ThreadLocal<ByteBuffer> probes = new ThreadLocal<ByteBuffer>()
+        {
+            protected ByteBuffer initialValue()
+            {
+                return ByteBuffer.allocate(PROBE_ENTRIES * ENTRY_SIZE);
+            }
+        };
+    }
+    
+    /**
+     * PagedAccountStore.IndexBuilder is a CardIndex that writes its
+     * table into a new index file, through mappings of the file rather
+     * than the heap.
+     */
+    private static class IndexBuilder extends CardIndex
+    {
+        /**
+         * Create a new IndexBuilder.
+         * 
+         * @param channel Index file, open for reading and writing
+         * @param capacity Number of entries in the table
+         */
+        public IndexBuilder(FileChannel channel, int capacity) throws IOException
+        {
+            super(0);
+            
+            long size = (long) capacity * ENTRY_SIZE;
+            
+            this.capacity = capacity;
+            regions = new MappedByteBuffer[(int) ((size + REGION_SIZE - 1) / REGION_SIZE)];
+            
+            for (int r = 0; r < regions.length; ++r)
+            {
+                long start = (long) r * REGION_SIZE;
+                
+                regions[r] = channel.map(FileChannel.MapMode.READ_WRITE, INDEX_HEADER_SIZE + start,
+                                         Math.min(REGION_SIZE, size - start));
+            }
+        }
+        
+        /**
+         * Overrides CardIndex.putIfAbsent()
+         */
+        public boolean putIfAbsent(int cardNr, int slot)
+        {
+            int mask = capacity - 1;
+            
+            for (int i = hash(cardNr) & mask; ; i = (i + 1) & mask)
+            {
+                MappedByteBuffer region = regions[i / REGION_ENTRIES];
+                int pos = (i % REGION_ENTRIES) * ENTRY_SIZE;
+                
+                if (region.getInt(pos + 4) == 0)
+                {
+                    region.putInt(pos, cardNr);
+                    region.putInt(pos + 4, slot + 1);
+                    ++entries;
+                    
+                    return true;
+                }
+                
+                if (region.getInt(pos) == cardNr)
+                {
+                    return false;
+                }
+            }
+        }
+        
+        /**
+         * Overrides CardIndex.size()
+         */
+        public int size()
+        {
+            return entries;
+        }
+        
+        /**
+         * Write the table to disk.
+         */
+        public void force()
+        {
+            for (MappedByteBuffer region : regions)
+            {
+                region.force();
+            }
+        }
+        
+        /**
+         * Number of entries in the table.
+         */
+        private final int capacity;
+        
+        /**
+         * Mappings of the table, REGION_SIZE bytes each.
+         */
+        private final MappedByteBuffer[] regions;
+        
+        /**
+         * Number of card numbers in the table.
+         */
+        private int entries = 0;
+    }
+    
+    /**
+     * Open an existing store, building its index file if there is none.
+     * 
+     * @param filename Name of the store file
+     * @param cached Number of accounts to hold in memory
+     * @return The opened store
+     */
+    public static PagedAccountStore open(String filename, int cached) throws IOException
+    {
+        FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ,
+                                               StandardOpenOption.WRITE);
+        
+        try
+        {
+            int count = MappedAccountStore.readHeader(channel, filename);
+            
+            return new PagedAccountStore(channel, count, openIndex(channel, filename, count), cached);
+        }
+        catch (IOException e)
+        {
+            channel.close();
+            throw e;
+        }
+    }
+    
+    /**
+     * Create a new store holding a list of accounts, replacing any store
+     * by the same name.
+     * 
+     * @param filename Name of the store file
+     * @param accounts Accounts to hold
+     * @param cached Number of accounts to hold in memory
+     * @return The created store
+     */
+    public static PagedAccountStore create(String filename, List<Account> accounts, int cached) throws IOException
+    {
+        MappedAccountStore.write(filename, accounts);
+        
+        return open(filename, cached);
+    }
+    
+    /**
+     * Create a new PagedAccountStore.
+     * 
+     * @param channel Store file
+     * @param count Number of accounts in the file
+     * @param index Card index of the file
+     * @param cached Number of accounts to hold in memory
+     */
+    private PagedAccountStore(FileChannel channel, int count, FileIndex index, int cached)
+    {
+        this.channel = channel;
+        this.count = count;
+        this.index = index;
+        
+        segments = new Segment[SEGMENTS];
+        
+        for (int i = 0; i < SEGMENTS; ++i)
+        {
+            segments[i] = new Segment(Math.max(1, (cached + SEGMENTS - 1) / SEGMENTS));
+        }
+    }
+    
+    /**
+     * Get the card index of the store. It reads the index file, and
+     * indexes card numbers added to it in memory; like any CardIndex,
+     * it must not be changed concurrently with its use.
+     * 
+     * @return Card index of the store
+     */
+    public CardIndex getCardIndex()
+    {
+        return index;
+    }
+    
+    /**
+     * Implementation of AccountStore.size()
+     */
+    public int size()
+    {
+        return count;
+    }
+    
+    /**
+     * Implementation of AccountStore.add()
+     */
+    public int add(Account acc) throws IOException
+    {
+        ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+        ByteBuffer header = ByteBuffer.allocate(4);
+        
+        MappedAccountStore.encode(record, 0, acc);
+        header.putInt(0, count + 1);
+        
+        // the record is in place before the header counts it
+        writeFully(channel, record, offset(count));
+        writeFully(channel, header, MappedAccountStore.COUNT_OFFSET);
+        
+        return count++;
+    }
+    
+    /**
+     * Implementation of AccountStore.get()
+     */
+    public Account get(int slot)
+    {
+        Segment seg = lock(slot);
+        
+        try
+        {
+            return MappedAccountStore.decode(seg.frames, seg.frame(slot, false));
+        }
+        finally
+        {
+            seg.lock.unlock();
+        }
+    }
+    
+    /**
+     * Implementation of AccountStore.getBalance()
+     */
+    public long getBalance(int slot)
+    {
+        Segment seg = lock(slot);
+        
+        try
+        {
+            return seg.frames.getLong(seg.frame(slot, false) + BALANCE_OFFSET);
+        }
+        finally
+        {
+            seg.lock.unlock();
+        }
+    }
+    
+    /**
+     * Implementation of AccountStore.setBalance()
+     */
+    public void setBalance(int slot, long balance)
+    {
+        Segment seg = lock(slot);
+        
+        try
+        {
+            seg.frames.putLong(seg.frame(slot, true) + BALANCE_OFFSET, balance);
+        }
+        finally
+        {
+            seg.lock.unlock();
+        }
+    }
+    
+    /**
+     * Implementation of AccountStore.addBalance()
+     */
+    public long addBalance(int slot, long delta)
+    {
+        Segment seg = lock(slot);
+        
+        try
+        {
+            int pos = seg.frame(slot, true) + BALANCE_OFFSET;
+            long balance = seg.frames.getLong(pos) + delta;
+            
+            seg.frames.putLong(pos, balance);
+            
+            return balance;
+        }
+        finally
+        {
+            seg.lock.unlock();
+        }
+    }
+    
+    /**
+     * Implementation of AccountStore.compareAndSetBalance()
+     */
+    public boolean compareAndSetBalance(int slot, long expected, long balance)
+    {
+        Segment seg = lock(slot);
+        
+        try
+        {
+            int pos = seg.frame(slot, false) + BALANCE_OFFSET;
+            
+            if (seg.frames.getLong(pos) != expected)
+            {
+                return false;
+            }
+            
+            seg.frames.putLong(pos, balance);
+            seg.changed(pos);
+            
+            return true;
+        }
+        finally
+        {
+            seg.lock.unlock();
+        }
+    }
+    
+    /**
+     * Implementation of AccountStore.getCardNr()
+     */
+    public int getCardNr(int slot)
+    {
+        return getInt(slot, CARDNR_OFFSET);
+    }
+    
+    /**
+     * Implementation of AccountStore.getPinCode()
+     */
+    public int getPinCode(int slot)
+    {
+        return getInt(slot, PINCODE_OFFSET);
+    }
+    
+    /**
+     * Implementation of AccountStore.getNextOtp()
+     */
+    public int getNextOtp(int slot)
+    {
+        return getInt(slot, NEXTOTP_OFFSET);
+    }
+    
+    /**
+     * Implementation of AccountStore.setNextOtp()
+     */
+    public void setNextOtp(int slot, int nextOtp)
+    {
+        Segment seg = lock(slot);
+        
+        try
+        {
+            seg.frames.putInt(seg.frame(slot, true) + NEXTOTP_OFFSET, nextOtp);
+        }
+        finally
+        {
+            seg.lock.unlock();
+        }
+    }
+    
+    /**
+     * Implementation of AccountStore.flush()
+     */
+    public void flush() throws IOException
+    {
+        for (Segment seg : segments)
+        {
+            seg.lock.lock();
+            
+            try
+            {
+                seg.writeBack();
+            }
+            finally
+            {
+                seg.lock.unlock();
+            }
+        }
+    }
+    
+    /**
+     * Implementation of AccountStore.force()
+     */
+    public void force() throws IOException
+    {
+        flush();
+        channel.force(false);
+    }
+    
+    /**
+     * Implementation of AccountStore.close()
+     */
+    public void close() throws IOException
+    {
+        try
+        {
+            force();
+        }
+        finally
+        {
+            channel.close();
+            index.close();
+        }
+    }
+    
+    /**
+     * Read a 32 bit field of an account.
+     * 
+     * @param slot Slot of the account
+     * @param field Offset of the field within the record
+     * @return Value of the field
+     */
+    private int getInt(int slot, int field)
+    {
+        Segment seg = lock(slot);
+        
+        try
+        {
+            return seg.frames.getInt(seg.frame(slot, false) + field);
+        }
+        finally
+        {
+            seg.lock.unlock();
+        }
+    }
+    
+    /**
+     * Lock the segment of the cache an account belongs to.
+     * 
+     * @param slot Slot of the account
+     * @return The locked segment
+     */
+    private Segment lock(int slot)
+    {
+        Segment seg = segments[slot & (SEGMENTS - 1)];
+        
+        seg.lock.lock(); // blocks until obtained
+        
+        return seg;
+    }
+    
+    /**
+     * Open the index file of a store, building it if there is none.
+     * Accounts added to the store since the index file was built are
+     * indexed in memory.
+     * 
+     * @param records Store file
+     * @param filename Name of the store file
+     * @param count Number of accounts in the store file
+     * @return Card index of the store
+     */
+    private static FileIndex openIndex(FileChannel records, String filename, int count) throws IOException
+    {
+        Path path = Paths.get(filename + INDEX_SUFFIX);
+        
+        if (!Files.exists(path))
+        {
+            buildIndex(records, path, count);
+        }
+        
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        
+        try
+        {
+            ByteBuffer header = ByteBuffer.allocate(INDEX_HEADER_SIZE);
+            
+            readFully(channel, header, 0);
+            
+            int capacity = header.getInt(8);
+            int indexed = header.getInt(12);
+            
+            if (header.getInt(0) != INDEX_MAGIC || header.getInt(4) != INDEX_VERSION
+                || capacity < MIN_INDEX_CAPACITY || (capacity & (capacity - 1)) != 0
+                || indexed < 0 || indexed > count
+                || INDEX_HEADER_SIZE + (long) capacity * ENTRY_SIZE > channel.size())
+            {
+                throw new IOException(path + " is not a card index of version " + INDEX_VERSION);
+            }
+            
+            FileIndex index = new FileIndex(channel, capacity, header.getInt(16));
+            
+            indexRange(records, indexed, count, index);
+            
+            return index;
+        }
+        catch (IOException e)
+        {
+            channel.close();
+            throw e;
+        }
+    }
+    
+    /**
+     * Build the index file of a store. The index is written to a new
+     * file that is then moved into place.
+     * 
+     * @param records Store file
+     * @param path Path of the index file
+     * @param count Number of accounts in the store file
+     */
+    private static void buildIndex(FileChannel records, Path path, int count) throws IOException
+    {
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                                           StandardOpenOption.TRUNCATE_EXISTING,
+                                           StandardOpenOption.READ, StandardOpenOption.WRITE);
+        
+        try
+        {
+            int capacity = MIN_INDEX_CAPACITY;
+            
+            while (capacity < count * 2L)
+            {
+                if (capacity == MAX_INDEX_CAPACITY)
+                {
+                    throw new IOException("too many accounts to index");
+                }
+                
+                capacity <<= 1;
+            }
+            
+            IndexBuilder builder = new IndexBuilder(out, capacity);
+            
+            indexRange(records, 0, count, builder);
+            builder.force();
+            
+            ByteBuffer header = ByteBuffer.allocate(INDEX_HEADER_SIZE);
+            
+            header.putInt(INDEX_MAGIC);
+            header.putInt(INDEX_VERSION);
+            header.putInt(capacity);
+            header.putInt(count);
+            header.putInt(builder.size());
+            header.clear();
+            
+            writeFully(out, header, 0);
+            out.force(true);
+        }
+        finally
+        {
+            out.close();
+        }
+        
+        Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+    
+    /**
+     * Index the card numbers of a range of accounts, read from the store
+     * file SCAN_BATCH accounts at a time. Card numbers that a login could
+     * never match are left out, as by Bank.
+     * 
+     * @param records Store file
+     * @param from Slot of the first account
+     * @param to Slot after the last account
+     * @param index Index to add the accounts to
+     */
+    private static void indexRange(FileChannel records, int from, int to, CardIndex index) throws IOException
+    {
+        ByteBuffer batch = ByteBuffer.allocate(RECORD_SIZE * SCAN_BATCH);
+        
+        for (int slot = from; slot < to; )
+        {
+            int n = Math.min(SCAN_BATCH, to - slot);
+            
+            batch.clear();
+            batch.limit(n * RECORD_SIZE);
+            readFully(records, batch, offset(slot));
+            
+            for (int i = 0; i < n; ++i, ++slot)
+            {
+                int cardNr = batch.getInt(i * RECORD_SIZE + CARDNR_OFFSET);
+                
+                if (cardNr >= 0)
+                {
+                    index.putIfAbsent(cardNr, slot);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Get the position of the record of an account.
+     * 
+     * @param slot Slot of the account
+     * @return Position of the record in the store file
+     */
+    private static long offset(int slot)
+    {
+        return (long) RECORD_SIZE * (slot + 1);
+    }
+    
+    /**
+     * Fill the remainder of a buffer from a file.
+     * 
+     * @param channel File to read from
+     * @param buf Buffer to fill
+     * @param position Position in the file to read from
+     */
+    private static void readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException
+    {
+        for (long pos = position; buf.hasRemaining(); )
+        {
+            int numread = channel.read(buf, pos);
+            
+            if (numread < 0)
+            {
+                throw new EOFException();
+            }
+            
+            pos += numread;
+        }
+    }
+    
+    /**
+     * Write the remainder of a buffer to a file.
+     * 
+     * @param channel File to write to
+     * @param buf Buffer to write
+     * @param position Position in the file to write to
+     */
+    private static void writeFully(FileChannel channel, ByteBuffer buf, long position) throws IOException
+    {
+        for (long pos = position; buf.hasRemaining(); )
+        {
+            pos += channel.write(buf, pos);
+        }
+    }
+    
+    /**
+     * Suffix appended to the name of the store file to form the name of
+     * its index file.
+     */
+    public static final String INDEX_SUFFIX = ".index";
+    
+    /**
+     * Magic number identifying an index file ("ATMI").
+     */
+    private static final int INDEX_MAGIC = 0x41544d49;
+    
+    /**
+     * Version of the index file format.
+     */
+    private static final int INDEX_VERSION = 1;
+    
+    /**
+     * Size of the header of an index file,
+     * 
+     * | 32 bit magic | 32 bit version | 32 bit capacity | 32 bit number
+     * of accounts indexed | 32 bit number of card numbers | padding |
+     * 
+     * which is followed by capacity entries of ENTRY_SIZE bytes.
+     */
+    private static final int INDEX_HEADER_SIZE = 32;
+    
+    /**
+     * Size of an entry of an index file, a 32 bit card number followed
+     * by one more than the 32 bit slot of its account, or 0 for unused
+     * entries. The table of a new index file is thus all unused.
+     */
+    private static final int ENTRY_SIZE = 8;
+    
+    /**
+     * Smallest number of entries in the table of an index file. Must be
+     * a power of two.
+     */
+    private static final int MIN_INDEX_CAPACITY = 1024;
+    
+    /**
+     * Largest number of entries in the table of an index file.
+     */
+    private static final int MAX_INDEX_CAPACITY = 1 << 30;
+    
+    /**
+     * Number of index entries read at a time by a lookup. At most half
+     * the entries are used, so a lookup rarely needs more than one read.
+     */
+    private static final int PROBE_ENTRIES = 8;
+    
+    /**
+     * Size of each mapping an index file is built through.
+     */
+    private static final long REGION_SIZE = 1L << 30;
+    
+    /**
+     * Number of index entries in each mapping.
+     */
+    private static final int REGION_ENTRIES = (int) (REGION_SIZE / ENTRY_SIZE);
+    
+    /**
+     * Number of accounts read at a time when indexing.
+     */
+    private static final int SCAN_BATCH = 4096;
+    
+    /**
+     * Number of segments of the cache. Must be a power of two.
+     */
+    private static final int SEGMENTS = 16;
+    
+    /**
+     * Slot value marking an unused frame.
+     */
+    private static final int EMPTY = -1;
+    
+    /**
+     * Size of a record of the store file.
+     */
+    private static final int RECORD_SIZE = MappedAccountStore.RECORD_SIZE;
+    
+    /**
+     * Offset of the balance within a record.
+     */
+    private static final int BALANCE_OFFSET = MappedAccountStore.BALANCE_OFFSET;
+    
+    /**
+     * Offset of the card number within a record.
+     */
+    private static final int CARDNR_OFFSET = MappedAccountStore.CARDNR_OFFSET;
+    
+    /**
+     * Offset of the PIN code within a record.
+     */
+    private static final int PINCODE_OFFSET = MappedAccountStore.PINCODE_OFFSET;
+    
+    /**
+     * Offset of the next OTP password within a record.
+     */
+    private static final int NEXTOTP_OFFSET = MappedAccountStore.NEXTOTP_OFFSET;
+    
+    /**
+     * Store file.
+     */
+    private final FileChannel channel;
+    
+    /**
+     * Segments of the cache, chosen by the low bits of the slot.
+     */
+    private final Segment[] segments;
+    
+    /**
+     * Card index of the store.
+     */
+    private final FileIndex index;
+    
+    /**
+     * Number of accounts in the store.
+     */
+    private volatile int count;
+}
@@ -0,0 +1,172 @@
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * SessionSigner signs and verifies the values of stateless session
+ * tokens with HMAC-SHA256, truncated to 64 bits.
+ * 
+ * A signed token carries everything needed to validate it, so a bank
+ * issuing signed tokens keeps no table of sessions, and any bank
+ * holding the same key accepts tokens issued by any other. The price
+ * is that a token cannot be revoked before it expires. The tokens are
+ * only passed between objects in the server process; the protocol
+ * does not carry them to clients.
+ * 
+ * @author Mikael Forsberg <miforsb@kth.se>
+ * @author Robin Gunning <rgunning@kth.se>
+ * @version 20151204T1700
+ */
+public class SessionSigner
+{
+    /**
+     * Create a new SessionSigner.
+     * 
+     * @param key Secret key shared by every bank accepting the tokens,
+     *        at least MIN_KEY_SIZE bytes
+     * @throws IllegalArgumentException If the key is too short
+     */
+    public SessionSigner(byte[] key)
+    {
+        if (key.length < MIN_KEY_SIZE)
+        {
+            throw new IllegalArgumentException("session key must be at least " + MIN_KEY_SIZE
+                                               + " bytes, got " + key.length);
+        }
+        
+        this.key = new SecretKeySpec(key.clone(), ALGORITHM);
+        
+        // fail here rather than on the first login
+        sign(0);
+    }
+    
+    /**
+     * Create a new SessionSigner with a random key. Tokens signed with
+     * it are only valid within this process.
+     */
+    public SessionSigner()
+    {
+        this(randomKey());
+    }
+    
+    /**
+     * Compute the signature of a token value.
+     * 
+     * @param value Token value to sign
+     * @return Signature of the value
+     */
+    public long sign(long value)
+    {
+        Mac mac = macs.get();
+        byte[] scratch = scratches.get();
+        
+        for (int i = 0; i < 8; ++i)
+        {
+            scratch[i] = (byte) (value >>> (56 - 8 * i));
+        }
+        
+        mac.update(scratch, 0, 8);
+        
+        try
+        {
+            mac.doFinal(scratch, 8);
+        }
+        catch (ShortBufferException e)
+        {
+            throw new IllegalStateException(e);
+        }
+        
+        long signature = 0;
+        
+        for (int i = 8; i < 16; ++i)
+        {
+            signature = (signature << 8) | (scratch[i] & 0xff);
+        }
+        
+        return signature;
+    }
+    
+    /**
+     * Check the signature of a token value. Takes the same time whether
+     * or not the signature matches.
+     * 
+     * @param value Token value
+     * @param signature Signature presented with the value
+     * @return True if the signature is that of the value
+     */
+    public boolean verify(long value, long signature)
+    {
+        return (sign(value) ^ signature) == 0;
+    }
+    
+    /**
+     * Generate a random key.
+     * 
+     * @return New key of KEY_SIZE bytes
+     */
+    private static byte[] randomKey()
+    {
+        byte[] key = new byte[KEY_SIZE];
+        new SecureRandom().nextBytes(key);
+        
+        return key;
+    }
+    
+    /**
+     * MAC algorithm used for signing.
+     */
+    private static final String ALGORITHM = "HmacSHA256";
+    
+    /**
+     * Size of a random key, the output size of the hash.
+     */
+    private static final int KEY_SIZE = 32;
+    
+    /**
+     * Smallest size of a key given to the signer. A shorter key is
+     * easier to guess than the signature it makes.
+     */
+    public static final int MIN_KEY_SIZE = KEY_SIZE;
+    
+    /**
+     * Secret key.
+     */
+    private final SecretKeySpec key;
+    
+    /**
+     * MAC of each thread, keyed with the secret key. A Mac is not safe
+     * for concurrent use, and creating one per signature costs more
+     * than the signature itself.
+     */
+    private final ThreadLocal<Mac> macs = new ThreadLocal<Mac>()
+    {
+        protected Mac initialValue()
+        {
+            try
+            {
+                Mac mac = Mac.getInstance(ALGORITHM);
+                mac.init(key);
+                
+                return mac;
+            }
+            catch (GeneralSecurityException e)
+            {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+    
+    /**
+     * Buffer of each thread for a token value (8 bytes) followed by its
+     * digest, so that signing allocates no buffers of its own.
+     */
+    private final ThreadLocal<byte[]> scratches = new ThreadLocal<byte[]>()
+    {
+        protected byte[] initialValue()
+        {
+            return new byte[8 + KEY_SIZE];
+        }
+    };
+}
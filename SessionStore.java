@@ -0,0 +1,571 @@
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * SessionStore maps the values of login tokens to the account slots
+ * they were issued for, and forgets them once they expire.
+ * 
+ * The store is split into segments, each an open-addressing hash table
+ * over parallel arrays with linear probing (as in CardIndex), guarded
+ * by a lock of its own, so that neither lookups nor logins on different
+ * segments contend and tokens are never boxed. Lookups read the table
+ * optimistically and only take the lock if a login got in between.
+ * 
+ * Expiry is a hashed timing wheel: every token is also put in the
+ * bucket of the second it expires in, and a reaper thread empties one
+ * bucket per second. Each token is thus looked at once when it expires
+ * instead of on every scan of the whole store, and the request path
+ * never purges anything; lookups merely ignore tokens whose time has
+ * passed but which have not been reaped yet.
+ * 
+ * @author Mikael Forsberg <miforsb@kth.se>
+ * @author Robin Gunning <rgunning@kth.se>
+ * @version 20151204T1700
+ */
+public class SessionStore
+{
+    /**
+     * SessionStore.Table holds the entries of a segment. The arrays are
+     * replaced together when the table grows.
+     */
+    private static class Table
+    {
+        /**
+         * Create a new empty Table.
+         * 
+         * @param capacity Number of entries, a power of two
+         */
+        public Table(int capacity)
+        {
+            tokens = new long[capacity];
+            slots = new int[capacity];
+            expires = new long[capacity];
+            java.util.Arrays.fill(slots, CardIndex.NO_SLOT);
+        }
+        
+        /**
+         * Token value of each entry.
+         */
+        public final long[] tokens;
+        
+        /**
+         * Account slot of each entry, or CardIndex.NO_SLOT for unused
+         * entries.
+         */
+        public final int[] slots;
+        
+        /**
+         * UNIX timestamp of expiration of each entry.
+         */
+        public final long[] expires;
+    }
+    
+    /**
+     * SessionStore.Segment is one lock's worth of the store: a table
+     * of entries and the timing wheel of their expiration.
+     */
+    private static class Segment
+    {
+        /**
+         * Find the entry of a token.
+         * 
+         * @param t Table to search
+         * @param token Token value to find
+         * @return Index of the entry, or -1 if there is none
+         */
+        public int find(Table t, long token)
+        {
+            int mask = t.tokens.length - 1;
+            
+            // bounded, since an optimistic reader may see a table
+            // halfway through a change
+            for (int n = 0, i = (int) hash(token) & mask; n <= mask; ++n, i = (i + 1) & mask)
+            {
+                if (t.slots[i] == CardIndex.NO_SLOT)
+                {
+                    break;
+                }
+                
+                if (t.tokens[i] == token)
+                {
+                    return i;
+                }
+            }
+            
+            return -1;
+        }
+        
+        /**
+         * Look up the account slot of a token that has not expired.
+         * 
+         * @param token Token value to look up
+         * @param now Current UNIX timestamp
+         * @return Slot of the account, or CardIndex.NO_SLOT
+         */
+        public int get(long token, long now)
+        {
+            Table t = table;
+            int i = find(t, token);
+            
+            return i >= 0 && t.expires[i] > now ? t.slots[i] : CardIndex.NO_SLOT;
+        }
+        
+        /**
+         * Add a token, unless it is already present. Must be called with
+         * the lock held exclusively.
+         * 
+         * @param token Token value to add
+         * @param slot Slot of the account the token is for
+         * @param expires UNIX timestamp of expiration
+         * @return True if the token was added, false if it was present
+         */
+        public boolean putIfAbsent(long token, int slot, long expires)
+        {
+            if ((size + 1) * 2 > table.tokens.length)
+            {
+                grow();
+            }
+            
+            Table t = table;
+            int mask = t.tokens.length - 1;
+            int i = (int) hash(token) & mask;
+            
+            while (t.slots[i] != CardIndex.NO_SLOT)
+            {
+                if (t.tokens[i] == token)
+                {
+                    return false;
+                }
+                
+                i = (i + 1) & mask;
+            }
+            
+            t.tokens[i] = token;
+            t.expires[i] = expires;
+            t.slots[i] = slot;
+            ++size;
+            
+            // a token expiring in a second already reaped goes in the
+            // next bucket to be reaped
+            int b = (int) Math.max(expires, reaped + 1) & WHEEL_MASK;
+            long[] bucket = wheel[b];
+            
+            if (bucket == null || wheelSizes[b] == bucket.length)
+            {
+                bucket = java.util.Arrays.copyOf(bucket != null ? bucket : new long[0],
+                                                 Math.max(MIN_BUCKET_SIZE, wheelSizes[b] * 2));
+                wheel[b] = bucket;
+            }
+            
+            bucket[wheelSizes[b]++] = token;
+            
+            return true;
+        }
+        
+        /**
+         * Remove the tokens that have expired since the last call. Only
+         * the buckets of the seconds that have passed are looked at. Must
+         * be called with the lock held exclusively.
+         * 
+         * @param now Current UNIX timestamp
+         */
+        public void expire(long now)
+        {
+            // after a long pause, one turn of the wheel covers everything
+            for (long second = Math.max(reaped + 1, now - WHEEL_SIZE + 1); second <= now; ++second)
+            {
+                reap((int) second & WHEEL_MASK, now);
+            }
+            
+            reaped = Math.max(reaped, now);
+        }
+        
+        /**
+         * Remove every token. Must be called with the lock held
+         * exclusively.
+         */
+        public void clear()
+        {
+            table = new Table(MIN_CAPACITY);
+            size = 0;
+            Arrays.fill(wheel, null);
+            Arrays.fill(wheelSizes, 0);
+        }
+        
+        /**
+         * Remove the tokens of one bucket of the timing wheel that have
+         * expired. Tokens that are further than a turn of the wheel away
+         * stay in the bucket. Must be called with the lock held
+         * exclusively.
+         * 
+         * @param b Bucket to empty
+         * @param now Current UNIX timestamp
+         */
+        private void reap(int b, long now)
+        {
+            long[] bucket = wheel[b];
+            int kept = 0;
+            
+            for (int j = 0; j < wheelSizes[b]; ++j)
+            {
+                int i = find(table, bucket[j]);
+                
+                if (i < 0)
+                {
+                    continue;
+                }
+                
+                if (table.expires[i] <= now)
+                {
+                    removeAt(i);
+                }
+                else
+                {
+                    bucket[kept++] = bucket[j];
+                }
+            }
+            
+            wheelSizes[b] = kept;
+            
+            if (kept == 0)
+            {
+                // let a bucket that filled up in a burst shrink again
+                wheel[b] = null;
+            }
+        }
+        
+        /**
+         * Remove an entry, shifting back the entries after it in its
+         * probe run so that no lookup stops short. Must be called with
+         * the lock held exclusively.
+         * 
+         * @param i Index of the entry to remove
+         */
+        private void removeAt(int i)
+        {
+            Table t = table;
+            int mask = t.tokens.length - 1;
+            
+            for (int j = (i + 1) & mask; t.slots[j] != CardIndex.NO_SLOT; j = (j + 1) & mask)
+            {
+                int home = (int) hash(t.tokens[j]) & mask;
+                
+                // the entry at j may move to i unless its home lies
+                // cyclically within (i, j]
+                if (((j - home) & mask) >= ((j - i) & mask))
+                {
+                    t.tokens[i] = t.tokens[j];
+                    t.expires[i] = t.expires[j];
+                    t.slots[i] = t.slots[j];
+                    i = j;
+                }
+            }
+            
+            t.slots[i] = CardIndex.NO_SLOT;
+            --size;
+        }
+        
+        /**
+         * Double the capacity of the table, rehashing every entry into
+         * a new one. Must be called with the lock held exclusively.
+         */
+        private void grow()
+        {
+            Table old = table;
+            Table t = new Table(old.tokens.length * 2);
+            int mask = t.tokens.length - 1;
+            
+            for (int j = 0; j < old.tokens.length; ++j)
+            {
+                if (old.slots[j] == CardIndex.NO_SLOT)
+                {
+                    continue;
+                }
+                
+                int i = (int) hash(old.tokens[j]) & mask;
+                
+                while (t.slots[i] != CardIndex.NO_SLOT)
+                {
+                    i = (i + 1) & mask;
+                }
+                
+                t.tokens[i] = old.tokens[j];
+                t.expires[i] = old.expires[j];
+                t.slots[i] = old.slots[j];
+            }
+            
+            table = t;
+        }
+        
+        /**
+         * Lock guarding the segment.
+         */
+        public final StampedLock lock = new StampedLock();
+        
+        /**
+         * Entries of the segment.
+         */
+        public Table table = new Table(MIN_CAPACITY);
+        
+        /**
+         * Number of entries in use.
+         */
+        public int size = 0;
+        
+        /**
+         * Buckets of the timing wheel, indexed by second of expiration
+         * modulo WHEEL_SIZE. Each holds the token values expiring in
+         * that second, or null if there are none.
+         */
+        public final long[][] wheel = new long[WHEEL_SIZE][];
+        
+        /**
+         * Number of token values in each bucket of the timing wheel.
+         */
+        public final int[] wheelSizes = new int[WHEEL_SIZE];
+        
+        /**
+         * Last second whose bucket has been reaped.
+         */
+        public long reaped = currentSecond();
+    }
+    
+    /**
+     * Create a new empty SessionStore.
+     */
+    public SessionStore()
+    {
+        int count = MIN_SEGMENTS;
+        
+        while (count < Runtime.getRuntime().availableProcessors() * SEGMENTS_PER_CPU)
+        {
+            count <<= 1;
+        }
+        
+        segments = new Segment[count];
+        
+        for (int i = 0; i < count; ++i)
+        {
+            segments[i] = new Segment();
+        }
+    }
+    
+    /**
+     * Look up the account slot of a token.
+     * 
+     * @param token Token value to look up
+     * @return Slot of the account, or CardIndex.NO_SLOT if the token
+     *         is unknown or has expired
+     */
+    public int get(long token)
+    {
+        long now = currentSecond();
+        Segment seg = segmentFor(token);
+        long stamp = seg.lock.tryOptimisticRead();
+        int slot = seg.get(token, now);
+        
+        if (!seg.lock.validate(stamp))
+        {
+            stamp = seg.lock.readLock();
+            slot = seg.get(token, now);
+            seg.lock.unlockRead(stamp);
+        }
+        
+        return slot;
+    }
+    
+    /**
+     * Add a token, unless it is already present.
+     * 
+     * @param token Token value to add
+     * @param slot Slot of the account the token is for
+     * @param expires UNIX timestamp of expiration
+     * @return True if the token was added, false if it was present
+     */
+    public boolean putIfAbsent(long token, int slot, long expires)
+    {
+        Segment seg = segmentFor(token);
+        long stamp = seg.lock.writeLock();
+        
+        try
+        {
+            return seg.putIfAbsent(token, slot, expires);
+        }
+        finally
+        {
+            seg.lock.unlockWrite(stamp);
+        }
+    }
+    
+    /**
+     * Get the number of tokens held, including expired tokens not
+     * yet reaped.
+     * 
+     * @return Number of tokens
+     */
+    public int size()
+    {
+        int size = 0;
+        
+        for (Segment seg : segments)
+        {
+            long stamp = seg.lock.readLock();
+            size += seg.size;
+            seg.lock.unlockRead(stamp);
+        }
+        
+        return size;
+    }
+    
+    /**
+     * Remove the tokens that have expired since the last call, one
+     * segment at a time.
+     */
+    public void expire()
+    {
+        long now = currentSecond();
+        
+        for (Segment seg : segments)
+        {
+            long stamp = seg.lock.writeLock();
+            seg.expire(now);
+            seg.lock.unlockWrite(stamp);
+        }
+    }
+    
+    /**
+     * Remove every token, one segment at a time.
+     */
+    public void clear()
+    {
+        for (Segment seg : segments)
+        {
+            long stamp = seg.lock.writeLock();
+            seg.clear();
+            seg.lock.unlockWrite(stamp);
+        }
+    }
+    
+    /**
+     * Start a daemon thread calling expire() once a second.
+     */
+    public void startReaper()
+    {
+        reaper = new Thread("SessionStoreReaper")
+        {
+            public void run()
+            {
+                while (true)
+                {
+                    try
+                    {
+                        Thread.sleep(1000 - System.currentTimeMillis() % 1000);
+                        expire();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        return;
+                    }
+                }
+            }
+        };
+        
+        reaper.setDaemon(true);
+        reaper.start();
+    }
+    
+    /**
+     * Stop the thread started by startReaper(), if any.
+     */
+    public void stopReaper()
+    {
+        Thread reaper = this.reaper;
+        
+        if (reaper != null)
+        {
+            reaper.interrupt();
+        }
+    }
+    
+    /**
+     * Get the segment a token belongs to.
+     * 
+     * @param token Token value
+     * @return Segment of the token
+     */
+    private Segment segmentFor(long token)
+    {
+        // the table index uses the low bits of the hash
+        return segments[(int) (hash(token) >>> 32) & (segments.length - 1)];
+    }
+    
+    /**
+     * Get the current UNIX timestamp, in the unit of token expiration.
+     * 
+     * @return Current second
+     */
+    private static long currentSecond()
+    {
+        return System.currentTimeMillis() / 1000L;
+    }
+    
+    /**
+     * Spread the bits of a token value.
+     * 
+     * @param key Token value to hash
+     * @return Hash of the token value
+     */
+    private static long hash(long key)
+    {
+        // 64 bit finalizer of MurmurHash3
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        
+        return key;
+    }
+    
+    /**
+     * Number of buckets of a timing wheel, one per second. Tokens live
+     * for an hour, so a token is normally reaped on the first turn.
+     * Must be a power of two.
+     */
+    private static final int WHEEL_SIZE = 4096;
+    
+    /**
+     * Mask selecting the bucket of a second.
+     */
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+    
+    /**
+     * Smallest size of a non-empty bucket of a timing wheel.
+     */
+    private static final int MIN_BUCKET_SIZE = 8;
+    
+    /**
+     * Smallest capacity of the table of a segment. Must be a power of two.
+     */
+    private static final int MIN_CAPACITY = 16;
+    
+    /**
+     * Smallest number of segments. Must be a power of two.
+     */
+    private static final int MIN_SEGMENTS = 16;
+    
+    /**
+     * Number of segments per available processor.
+     */
+    private static final int SEGMENTS_PER_CPU = 4;
+    
+    /**
+     * Segments of the store.
+     */
+    private final Segment[] segments;
+    
+    /**
+     * Thread calling expire(), or null if there is none.
+     */
+    private volatile Thread reaper = null;
+}
@@ -0,0 +1,847 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * ShardedBank partitions the accounts of a bank into shards by card
+ * number. Each shard is a Bank of its own, with its own accounts file
+ * and journal, and all deposits and withdrawals on a shard are made
+ * by a single writer thread owning it.
+ * 
+ * Callers hand a transaction to the writer of its shard through a
+ * lock-free queue and wait for its future to complete. The writer takes
+ * whatever transactions are queued, applies them one after the other,
+ * then commits them together (see Bank.deferCommits()), so a shard's
+ * journal is written sequentially in batches and no two threads ever
+ * contend for the accounts of a shard. Logins and balance queries only
+ * read, and are answered by the calling thread.
+ * 
+ * Instead of running writer threads of its own, the bank can leave the
+ * shards to be owned by other threads, such as the event loops of the
+ * "core" server mode; a thread owning a shard makes its transactions
+ * on it directly and commits them when it sees fit. With deferred
+ * commits (see deferCommits()), any thread makes its transactions on
+ * the shards directly, and commits them itself; the shard's account
+ * locks then keep the threads apart.
+ * 
+ * The shard files are named after the accounts file, with ".shardN"
+ * inserted before the extension. The first time, they are made by
+ * splitting the accounts file, and the number of shards is recorded
+ * in a file named after the accounts file with SHARDS_SUFFIX appended.
+ * After that, the accounts file is no longer used, and the bank refuses
+ * to open the shards as any other number of shards, as that would
+ * leave accounts in shards no card number maps to.
+ * 
+ * @author Mikael Forsberg <miforsb@kth.se>
+ * @author Robin Gunning <rgunning@kth.se>
+ * @version 20151204T1700
+ */
+public class ShardedBank extends Bank
+{
+    /**
+     * ShardedBank.Op is a transaction waiting for the writer of a shard.
+     */
+    private abstract static class Op
+    {
+        /**
+         * Apply the transaction, without waiting for it to be committed.
+         * Called by the writer thread.
+         * 
+         * @param bank Bank of the shard
+         */
+        public abstract void apply(Bank bank);
+        
+        /**
+         * Complete the future of the transaction, once its batch has
+         * been committed.
+         * 
+         * @param committed True if the batch was committed
+         */
+        public abstract void complete(boolean committed);
+    }
+    
+    /**
+     * ShardedBank.DepositOp is a deposit waiting for the writer of a shard.
+     */
+    private static class DepositOp extends Op
+    {
+        /**
+         * Create a new DepositOp.
+         * 
+         * @param token Session token
+         * @param amount Amount of currency to deposit
+         */
+        public DepositOp(LoginToken token, int amount)
+        {
+            this.token = token;
+            this.amount = amount;
+        }
+        
+        /**
+         * Implementation of Op.apply()
+         */
+        public void apply(Bank bank)
+        {
+            result = bank.deposit(token, amount);
+        }
+        
+        /**
+         * Implementation of Op.complete()
+         */
+        public void complete(boolean committed)
+        {
+            future.complete(result && committed);
+        }
+        
+        /**
+         * Session token.
+         */
+        private final LoginToken token;
+        
+        /**
+         * Amount of currency to deposit.
+         */
+        private final int amount;
+        
+        /**
+         * Outcome of applying the deposit.
+         */
+        private boolean result = false;
+        
+        /**
+         * Completed with the outcome of the deposit.
+         */
+        public final CompletableFuture<Boolean> future = new CompletableFuture<Boolean>();
+    }
+    
+    /**
+     * ShardedBank.WithdrawOp is a withdrawal waiting for the writer of
+     * a shard.
+     */
+    private static class WithdrawOp extends Op
+    {
+        /**
+         * Create a new WithdrawOp.
+         * 
+         * @param token Session token
+         * @param otp Next one-time password for the account
+         * @param amount Amount of currency to withdraw
+         */
+        public WithdrawOp(LoginToken token, int otp, int amount)
+        {
+            this.token = token;
+            this.otp = otp;
+            this.amount = amount;
+        }
+        
+        /**
+         * Implementation of Op.apply()
+         */
+        public void apply(Bank bank)
+        {
+            result = bank.withdraw(token, otp, amount);
+        }
+        
+        /**
+         * Implementation of Op.complete()
+         */
+        public void complete(boolean committed)
+        {
+            future.complete(result == WithdrawResult.OK && !committed ? WithdrawResult.FAILED : result);
+        }
+        
+        /**
+         * Session token.
+         */
+        private final LoginToken token;
+        
+        /**
+         * Next one-time password for the account.
+         */
+        private final int otp;
+        
+        /**
+         * Amount of currency to withdraw.
+         */
+        private final int amount;
+        
+        /**
+         * Outcome of applying the withdrawal.
+         */
+        private WithdrawResult result = WithdrawResult.FAILED;
+        
+        /**
+         * Completed with the outcome of the withdrawal.
+         */
+        public final CompletableFuture<WithdrawResult> future = new CompletableFuture<WithdrawResult>();
+    }
+    
+    /**
+     * ShardedBank.Shard holds the accounts of one shard, and the
+     * transactions waiting for its writer. The writer is either a thread
+     * of its own, or a thread that has taken ownership of the shard
+     * (see own()).
+     */
+    private static class Shard
+    {
+        /**
+         * Create a new Shard.
+         * 
+         * @param bank Bank holding the accounts of the shard
+         */
+        public Shard(Bank bank)
+        {
+            this.bank = bank;
+            bank.deferCommits();
+        }
+        
+        /**
+         * Queue a transaction for the writer.
+         * 
+         * @param op Transaction to queue
+         */
+        public void submit(Op op)
+        {
+            queue.offer(op);
+            
+            Runnable wakeup = this.wakeup;
+            
+            if (wakeup != null)
+            {
+                wakeup.run();
+            }
+            else if (idle)
+            {
+                LockSupport.unpark(owner);
+            }
+        }
+        
+        /**
+         * Apply queued transactions, up to a batch. Called by the writer.
+         * 
+         * @return Number of transactions applied since the last commit
+         */
+        public int applyQueued()
+        {
+            Op op;
+            
+            while (applied < BATCH_SIZE && (op = queue.poll()) != null)
+            {
+                try
+                {
+                    op.apply(bank);
+                }
+                catch (RuntimeException e)
+                {
+                    System.out.println(e);
+                }
+                
+                batch[applied++] = op;
+            }
+            
+            return applied;
+        }
+        
+        /**
+         * Commit every transaction applied since the last commit, and
+         * complete the futures of those that were queued. Called by the
+         * writer.
+         * 
+         * @return True if the transactions were committed
+         */
+        public boolean commit()
+        {
+            boolean committed = bank.commit();
+            
+            for (int i = 0; i < applied; ++i)
+            {
+                batch[i].complete(committed);
+                batch[i] = null;
+            }
+            
+            applied = 0;
+            
+            return committed;
+        }
+        
+        /**
+         * Apply and commit queued transactions forever, as the writer
+         * thread of the shard.
+         */
+        public void write()
+        {
+            while (true)
+            {
+                if (applyQueued() == 0)
+                {
+                    // announce the park before the last look at the queue,
+                    // so that a submit either is seen or unparks
+                    idle = true;
+                    
+                    if (queue.isEmpty())
+                    {
+                        LockSupport.park(this);
+                    }
+                    
+                    idle = false;
+                    continue;
+                }
+                
+                commit();
+            }
+        }
+        
+        /**
+         * Bank holding the accounts of the shard.
+         */
+        public final Bank bank;
+        
+        /**
+         * Writer of the shard.
+         */
+        public volatile Thread owner = null;
+        
+        /**
+         * Wakes an owner that is not a writer thread when a transaction
+         * is queued, or null for a writer thread.
+         */
+        public volatile Runnable wakeup = null;
+        
+        /**
+         * Transactions waiting for the writer.
+         */
+        private final ConcurrentLinkedQueue<Op> queue = new ConcurrentLinkedQueue<Op>();
+        
+        /**
+         * Queued transactions applied but not yet committed.
+         */
+        private final Op[] batch = new Op[BATCH_SIZE];
+        
+        /**
+         * Number of transactions in the batch.
+         */
+        private int applied = 0;
+        
+        /**
+         * Is the writer thread parked, or about to park?
+         */
+        private volatile boolean idle = false;
+    }
+    
+    /**
+     * Create a new sharded bank, with a writer thread for each shard.
+     * 
+     * @param accountsFile Accounts file the shards are named after, and
+     *        split from the first time
+     * @param count Number of shards
+     */
+    public ShardedBank(String accountsFile, int count)
+    {
+        this(accountsFile, count, true);
+    }
+    
+    /**
+     * Create a new sharded bank.
+     * 
+     * @param accountsFile Accounts file the shards are named after, and
+     *        split from the first time
+     * @param count Number of shards
+     * @param writers Whether to start a writer thread for each shard;
+     *        if not, every shard must be taken over with own()
+     * @throws IllegalStateException If the accounts file could not be
+     *         split, or has been split into another number of shards
+     */
+    public ShardedBank(String accountsFile, int count, boolean writers)
+    {
+        shards = new Shard[count];
+        
+        int split = splitCount(accountsFile);
+        
+        if (split == 0)
+        {
+            split(accountsFile, count);
+        }
+        else if (split < 0)
+        {
+            throw new IllegalStateException("Could not read the shard count of " + accountsFile);
+        }
+        else if (split != count)
+        {
+            throw new IllegalStateException(accountsFile + " is split into " + split
+                                            + " shards, not " + count);
+        }
+        
+        for (int i = 0; i < count; ++i)
+        {
+            final Shard shard = new Shard(new Bank(shardFile(accountsFile, i)));
+            shards[i] = shard;
+            
+            if (writers)
+            {
+                Thread writer = new Thread("BankShard-" + i)
+                {
+                    public void run()
+                    {
+                        shard.write();
+                    }
+                };
+                
+                writer.setDaemon(true);
+                shard.owner = writer;
+                writer.start();
+            }
+        }
+    }
+    
+    /**
+     * Get the number of shards.
+     * 
+     * @return Number of shards
+     */
+    public int shardCount()
+    {
+        return shards.length;
+    }
+    
+    /**
+     * Make the calling thread the writer of a shard, for a bank made
+     * without writer threads. Deposits and withdrawals the thread makes
+     * on its shard are then applied right away, without being queued,
+     * and are committed by its next commitShard(). Transactions queued
+     * by other threads are applied by applyQueued(), and also committed
+     * by commitShard(); the writer must never wait for one of those.
+     * 
+     * @param index Index of the shard
+     * @param wakeup Run whenever a transaction is queued for the writer
+     */
+    public void own(int index, Runnable wakeup)
+    {
+        shards[index].wakeup = wakeup;
+        shards[index].owner = Thread.currentThread();
+    }
+    
+    /**
+     * Apply the transactions queued for a shard by other threads. Only
+     * called by the thread owning the shard.
+     * 
+     * @param index Index of the shard
+     */
+    public void applyQueued(int index)
+    {
+        shards[index].applyQueued();
+    }
+    
+    /**
+     * Commit every transaction applied to a shard since the last commit.
+     * Only called by the thread owning the shard.
+     * 
+     * @param index Index of the shard
+     * @return True if the transactions were committed
+     */
+    public boolean commitShard(int index)
+    {
+        return shards[index].commit();
+    }
+    
+    /**
+     * Make deposits and withdrawals on the shards right away, from the
+     * calling thread, instead of handing them to the writers, and leave
+     * their commits to commit(). For a bank used by a few threads that
+     * must not wait for a writer, such as event loops not owning shards.
+     */
+    public void deferCommits()
+    {
+        deferred = true;
+    }
+    
+    /**
+     * Wait for the transactions the calling thread has made on any shard
+     * since its last call to be committed. Only used with deferCommits().
+     * 
+     * @return True if the transactions are committed, false otherwise
+     */
+    public boolean commit()
+    {
+        boolean committed = true;
+        
+        for (Shard shard : shards)
+        {
+            committed &= shard.bank.commit();
+        }
+        
+        return committed;
+    }
+    
+    /**
+     * Get the name of the file of a shard.
+     * 
+     * @param accountsFile Accounts file the shards are named after
+     * @param index Index of the shard
+     * @return Name of the shard file
+     */
+    public static String shardFile(String accountsFile, int index)
+    {
+        int dot = accountsFile.lastIndexOf('.');
+        
+        if (dot <= accountsFile.lastIndexOf(File.separatorChar))
+        {
+            return accountsFile + ".shard" + index;
+        }
+        
+        return accountsFile.substring(0, dot) + ".shard" + index + accountsFile.substring(dot);
+    }
+    
+    /**
+     * Get the number of shards an accounts file has been split into.
+     * 
+     * @param accountsFile Accounts file the shards are named after
+     * @return Number of shards, 0 if the file has not been split, or -1
+     *         if the number could not be read
+     */
+    public static int splitCount(String accountsFile)
+    {
+        Path marker = Paths.get(accountsFile + SHARDS_SUFFIX);
+        
+        if (!Files.exists(marker))
+        {
+            return 0;
+        }
+        
+        try
+        {
+            return Integer.parseInt(new String(Files.readAllBytes(marker)).trim());
+        }
+        catch (IOException | NumberFormatException e)
+        {
+            System.out.println(e);
+            return -1;
+        }
+    }
+    
+    /**
+     * Get the index of the shard holding a card number.
+     * 
+     * @param cardNr Card number
+     * @param count Number of shards
+     * @return Index of the shard
+     */
+    public static int shardOf(int cardNr, int count)
+    {
+        return Math.floorMod(cardNr, count);
+    }
+    
+    /**
+     * Split an accounts file into shard files. The accounts are loaded
+     * by a Bank of their own first, so that anything in the journal of
+     * the accounts file is carried over.
+     * 
+     * @param accountsFile Accounts file to split
+     * @param count Number of shards
+     * @throws IllegalStateException If the accounts file could not be split
+     */
+    private static void split(String accountsFile, int count)
+    {
+        String whole = accountsFile + ".split";
+        Bank bank = new Bank(accountsFile);
+        
+        try
+        {
+            if (!bank.isLoaded() || !bank.saveAccounts(whole))
+            {
+                throw new IllegalStateException("Could not split " + accountsFile);
+            }
+            
+            AccountSnapshot snapshot = AccountSnapshot.read(whole);
+            AccountList[] parts = new AccountList[count];
+            
+            for (int i = 0; i < count; ++i)
+            {
+                parts[i] = new AccountList();
+            }
+            
+            for (Account acc : snapshot.accounts)
+            {
+                // a card number that never matches a login gives -1;
+                // any shard will do for it
+                parts[shardOf(acc.getCardNr(), count)].add(acc);
+            }
+            
+            for (int i = 0; i < count; ++i)
+            {
+                AccountSnapshot.write(shardFile(accountsFile, i), parts[i], 0);
+            }
+            
+            // written last, as it marks the split as done
+            Path marker = Paths.get(accountsFile + SHARDS_SUFFIX);
+            Path temp = Paths.get(accountsFile + SHARDS_SUFFIX + ".tmp");
+            
+            Files.write(temp, (count + "\n").getBytes());
+            Files.move(temp, marker, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            
+            new File(whole).delete();
+        }
+        catch (IOException e)
+        {
+            throw new IllegalStateException("Could not split " + accountsFile + ": " + e, e);
+        }
+        finally
+        {
+            bank.close();
+        }
+    }
+    
+    /**
+     * Get the shard that issued a session token.
+     * 
+     * @param token Session token
+     * @return Shard of the token, or null if there is no such shard
+     */
+    private Shard shardFor(LoginToken token)
+    {
+        int index = token.getShard();
+        
+        return index >= 0 && index < shards.length ? shards[index] : null;
+    }
+    
+    /**
+     * Authenticate with the shard holding the card number.
+     * 
+     * @param cardNr Card number of account
+     * @param pinCode PIN code of account
+     * @return Session token, or null if the credentials were wrong
+     */
+    public LoginToken getLoginToken(int cardNr, int pinCode)
+    {
+        int index = shardOf(cardNr, shards.length);
+        LoginToken token = shards[index].bank.getLoginToken(cardNr, pinCode);
+        
+        return token != null ? token.withShard(index) : null;
+    }
+    
+    /**
+     * Retrieve the current balance of the account represented
+     * by a given session token.
+     * 
+     * @param token Session token
+     * @return Current balance of account, or null if the session
+     *         token was found to be invalid for some reason.
+     */
+    public Long balance(LoginToken token)
+    {
+        Shard shard = shardFor(token);
+        
+        return shard != null ? shard.bank.balance(token) : null;
+    }
+    
+    /**
+     * Deposit currency, waiting for the writer of the shard. Made right
+     * away if the calling thread owns the shard (see own()), or if
+     * commits are deferred (see deferCommits()).
+     * 
+     * @param token Session token
+     * @param amount Amount of currency to deposit
+     * @return True if the currency was deposited, false otherwise
+     */
+    public boolean deposit(LoginToken token, int amount)
+    {
+        Shard shard = shardFor(token);
+        
+        if (shard != null && (deferred || shard.owner == Thread.currentThread()))
+        {
+            return shard.bank.deposit(token, amount);
+        }
+        
+        return submitDeposit(token, amount).join();
+    }
+    
+    /**
+     * Withdraw currency, waiting for the writer of the shard. Made
+     * right away if the calling thread owns the shard (see own()), or
+     * if commits are deferred (see deferCommits()).
+     * 
+     * @param token Session token
+     * @param otp Next one-time password for the account
+     * @param amount Amount of currency to withdraw
+     * @return Outcome of the withdrawal
+     */
+    public WithdrawResult withdraw(LoginToken token, int otp, int amount)
+    {
+        Shard shard = shardFor(token);
+        
+        if (shard != null && (deferred || shard.owner == Thread.currentThread()))
+        {
+            return shard.bank.withdraw(token, otp, amount);
+        }
+        
+        return submitWithdraw(token, otp, amount).join();
+    }
+    
+    /**
+     * Hand a deposit to the writer of its shard.
+     * 
+     * @param token Session token
+     * @param amount Amount of currency to deposit
+     * @return Future completed with true once the currency has been
+     *         deposited and committed, or with false
+     */
+    public CompletableFuture<Boolean> submitDeposit(LoginToken token, int amount)
+    {
+        Shard shard = shardFor(token);
+        
+        if (shard == null)
+        {
+            return CompletableFuture.completedFuture(false);
+        }
+        
+        DepositOp op = new DepositOp(token, amount);
+        shard.submit(op);
+        
+        return op.future;
+    }
+    
+    /**
+     * Hand a withdrawal to the writer of its shard.
+     * 
+     * @param token Session token
+     * @param otp Next one-time password for the account
+     * @param amount Amount of currency to withdraw
+     * @return Future completed with the outcome of the withdrawal, once
+     *         committed
+     */
+    public CompletableFuture<WithdrawResult> submitWithdraw(LoginToken token, int otp, int amount)
+    {
+        Shard shard = shardFor(token);
+        
+        if (shard == null)
+        {
+            return CompletableFuture.completedFuture(WithdrawResult.BAD_SESSION);
+        }
+        
+        WithdrawOp op = new WithdrawOp(token, otp, amount);
+        shard.submit(op);
+        
+        return op.future;
+    }
+    
+    /**
+     * File a new account with the shard holding its card number.
+     * 
+     * @param acc New account to file
+     * @return True if the account was added successfully,
+     *         false otherwise
+     */
+    public boolean createAccount(Account acc)
+    {
+        return shards[shardOf(acc.getCardNr(), shards.length)].bank.createAccount(acc);
+    }
+    
+    /**
+     * Reload the accounts of every shard.
+     * 
+     * @return True if every shard was loaded successfully
+     */
+    public boolean loadAccounts()
+    {
+        boolean ok = true;
+        
+        for (Shard shard : shards)
+        {
+            ok &= shard.bank.loadAccounts();
+        }
+        
+        return ok;
+    }
+    
+    /**
+     * Check whether the accounts of every shard were loaded.
+     * 
+     * @return True if every shard was loaded
+     */
+    public boolean isLoaded()
+    {
+        boolean ok = true;
+        
+        for (Shard shard : shards)
+        {
+            ok &= shard.bank.isLoaded();
+        }
+        
+        return ok;
+    }
+    
+    /**
+     * Save the accounts of every shard.
+     * 
+     * @return True if every shard was saved successfully
+     */
+    public boolean saveAccounts()
+    {
+        boolean ok = true;
+        
+        for (Shard shard : shards)
+        {
+            ok &= shard.bank.saveAccounts();
+        }
+        
+        return ok;
+    }
+    
+    /**
+     * Save the accounts of every shard, to shard files named after a
+     * given filename.
+     * 
+     * @param filename Name the shard files are named after
+     * @return True if every shard was saved successfully
+     */
+    public boolean saveAccounts(String filename)
+    {
+        boolean ok = true;
+        
+        for (int i = 0; i < shards.length; ++i)
+        {
+            ok &= shards[i].bank.saveAccounts(shardFile(filename, i));
+        }
+        
+        return ok;
+    }
+    
+    /**
+     * Purge expired session tokens of every shard.
+     */
+    public void purgeExpiredLoginTokens()
+    {
+        for (Shard shard : shards)
+        {
+            shard.bank.purgeExpiredLoginTokens();
+        }
+    }
+    
+    /**
+     * Largest number of transactions a writer applies before
+     * committing them.
+     */
+    private static final int BATCH_SIZE = 256;
+    
+    /**
+     * Suffix of the file recording the number of shards, appended to the
+     * name of the accounts file.
+     */
+    public static final String SHARDS_SUFFIX = ".shards";
+    
+    /**
+     * Shards of the bank.
+     */
+    private final Shard[] shards;
+    
+    /**
+     * Are transactions made by the calling thread and committed by
+     * commit(), rather than by the writers?
+     */
+    private volatile boolean deferred = false;
+}